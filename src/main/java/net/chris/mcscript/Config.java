@@ -1,5 +1,8 @@
 package net.chris.mcscript;
 
+import net.chris.mcscript.item.custom.LoopProfile;
+import net.chris.mcscript.runtime.ExecutionEngine;
+import net.chris.mcscript.runtime.RuntimeSettings;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.item.Item;
 import net.minecraftforge.common.ForgeConfigSpec;
@@ -36,12 +39,118 @@ public class Config
             .comment("A list of items to log on common setup.")
             .defineListAllowEmpty("items", List.of("minecraft:iron_ingot"), Config::validateItemName);
 
+    private static final ForgeConfigSpec.IntValue METRICS_EXPORT_INTERVAL = BUILDER
+            .comment("How often, in seconds, to write MCSL runtime metrics to mcscript/metrics.*. 0 disables the export")
+            .defineInRange("metricsExportInterval", 0, 0, 3600);
+
+    private static final ForgeConfigSpec.ConfigValue<String> METRICS_EXPORT_FORMAT = BUILDER
+            .comment("File format for exported metrics, either csv or json")
+            .defineInList("metricsExportFormat", "csv", List.of("csv", "json"));
+
+    private static final ForgeConfigSpec.IntValue MAX_SCRIPT_INSTRUCTIONS = BUILDER
+            .comment("Most instructions a script may run, going by a dry run before it starts. Scripts estimated over any limit are refused. 0 disables the limit")
+            .defineInRange("maxScriptInstructions", 20_000_000, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue MAX_SCRIPT_BLOCKS = BUILDER
+            .comment("Most blocks a script may write, going by its dry run. 0 disables the limit")
+            .defineInRange("maxScriptBlocks", 1_000_000, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue MAX_SCRIPT_CHUNKS = BUILDER
+            .comment("Most chunks a script may write into, going by its dry run. 0 disables the limit")
+            .defineInRange("maxScriptChunks", 4096, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue MAX_SCRIPT_ENTITIES = BUILDER
+            .comment("Most mobs a script may spawn, going by its dry run. 0 disables the limit")
+            .defineInRange("maxScriptEntities", 256, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue LARGE_SCRIPT_BLOCKS = BUILDER
+            .comment("Scripts estimated to write more blocks than this are large builds, which run one at a time. 0 disables the queue")
+            .defineInRange("largeScriptBlocks", 100_000, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue ESTIMATE_MILLIS = BUILDER
+            .comment("How long, in milliseconds, a script's dry run may take before it is judged on what it did so far. It runs on the server thread, scripts that need longer are held to the limits while they run")
+            .defineInRange("estimateMillis", 5, 1, 10);
+
+    private static final ForgeConfigSpec.IntValue ADMISSION_BYPASS_LEVEL = BUILDER
+            .comment("Permission level at which scripts over the limits are queued as large builds instead of refused")
+            .defineInRange("admissionBypassLevel", 4, 0, 4);
+
+    // Everything below can be changed while the server runs, the file is reloaded when it is saved
+    private static final ForgeConfigSpec.IntValue INSTRUCTIONS_PER_TICK = BUILDER
+            .comment("Instructions all scripts together may run in one server tick. 0 pauses every script")
+            .defineInRange("instructionsPerTick", 20_000, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue TICK_BUDGET_MICROS = BUILDER
+            .comment("Time, in microseconds, scripts may take out of one server tick")
+            .defineInRange("tickBudgetMicros", 5000, 100, 50_000);
+
+    private static final ForgeConfigSpec.IntValue BLOCK_WRITES_PER_TICK = BUILDER
+            .comment("Blocks scripts may write into the world in one server tick, flushed as one batch per script")
+            .defineInRange("blockWritesPerTick", 4096, 1, 1_000_000);
+
+    private static final ForgeConfigSpec.IntValue SLICE_INSTRUCTIONS = BUILDER
+            .comment("Instructions a script runs before the next script gets a turn in the same tick")
+            .defineInRange("sliceInstructions", 500, 1, 1_000_000);
+
+    private static final ForgeConfigSpec.IntValue PLAYER_INSTRUCTIONS_PER_TICK = BUILDER
+            .comment("Instructions one player's scripts together may run in one server tick. 0 disables the limit")
+            .defineInRange("playerInstructionsPerTick", 0, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.IntValue MAX_SCRIPTS_PER_PLAYER = BUILDER
+            .comment("Scripts, including event handler runs, one player may have running or queued at once. 0 disables the limit")
+            .defineInRange("maxScriptsPerPlayer", 0, 0, 1000);
+
+    private static final ForgeConfigSpec.IntValue MAX_SCRIPT_MEMORY_KB = BUILDER
+            .comment("Approximate heap, in kilobytes, one script may hold in variables, lists and queued block writes before it is stopped. 0 disables the limit")
+            .defineInRange("maxScriptMemoryKb", 131_072, 0, 16 * 1024 * 1024);
+
+    private static final ForgeConfigSpec.IntValue CHAT_LINES_PER_TICK = BUILDER
+            .comment("Lines of script output a player's chat allowance refills by every tick")
+            .defineInRange("chatLinesPerTick", 1, 1, 100);
+
+    private static final ForgeConfigSpec.IntValue CHAT_BURST_LINES = BUILDER
+            .comment("Most lines of script output a player can receive at once")
+            .defineInRange("chatBurstLines", 40, 1, 1000);
+
+    private static final ForgeConfigSpec.IntValue FOOTPRINT_CACHE_SIZE = BUILDER
+            .comment("Script runs remembered for incremental rebuilds. 0 turns incremental rebuilds off")
+            .defineInRange("footprintCacheSize", 32, 0, 1024);
+
+    private static final ForgeConfigSpec.IntValue INLINE_CACHE_SITES = BUILDER
+            .comment("Conditions and expressions quickened per script before the rest are evaluated unquickened")
+            .defineInRange("inlineCacheSites", 4096, 0, 1 << 20);
+
+    private static final ForgeConfigSpec.IntValue CHUNK_RESEND_THRESHOLD = BUILDER
+            .comment("Blocks changed in one chunk in one tick from which the whole chunk is resent to clients")
+            .defineInRange("chunkResendThreshold", 1024, 1, 65_536);
+
+    private static final ForgeConfigSpec.ConfigValue<String> TRACE_LEVEL = BUILDER
+            .comment("Script trace output: debug sends every script's detailed debug messages, off sends only what scripts print")
+            .defineInList("traceLevel", "off", List.of("off", "debug"));
+
+    private static final ForgeConfigSpec.EnumValue<ExecutionEngine> DEFAULT_ENGINE = BUILDER
+            .comment("How scripts are run: INTERPRETER, QUICKENED (specialized conditions and arithmetic) or COMPILED (also compiles hot loops, with traceLevel off)")
+            .defineEnum("defaultEngine", ExecutionEngine.COMPILED);
+
+    private static final ForgeConfigSpec.IntValue COMPILE_THRESHOLD = BUILDER
+            .comment("Iterations a loop runs before the COMPILED engine compiles it")
+            .defineInRange("compileThreshold", LoopProfile.COMPILE_THRESHOLD, 1, Integer.MAX_VALUE);
+
     static final ForgeConfigSpec SPEC = BUILDER.build();
 
     public static boolean logDirtBlock;
     public static int magicNumber;
     public static String magicNumberIntroduction;
     public static Set<Item> items;
+    public static int metricsExportInterval;
+    public static String metricsExportFormat;
+    public static int maxScriptInstructions;
+    public static int maxScriptBlocks;
+    public static int maxScriptChunks;
+    public static int maxScriptEntities;
+    public static int largeScriptBlocks;
+    public static int estimateMillis;
+    public static int admissionBypassLevel;
 
     private static boolean validateItemName(final Object obj)
     {
@@ -59,5 +168,23 @@ public class Config
         items = ITEM_STRINGS.get().stream()
                 .map(itemName -> ForgeRegistries.ITEMS.getValue(ResourceLocation.tryParse(itemName)))
                 .collect(Collectors.toSet());
+
+        metricsExportInterval = METRICS_EXPORT_INTERVAL.get();
+        metricsExportFormat = METRICS_EXPORT_FORMAT.get();
+        maxScriptInstructions = MAX_SCRIPT_INSTRUCTIONS.get();
+        maxScriptBlocks = MAX_SCRIPT_BLOCKS.get();
+        maxScriptChunks = MAX_SCRIPT_CHUNKS.get();
+        maxScriptEntities = MAX_SCRIPT_ENTITIES.get();
+        largeScriptBlocks = LARGE_SCRIPT_BLOCKS.get();
+        estimateMillis = ESTIMATE_MILLIS.get();
+        admissionBypassLevel = ADMISSION_BYPASS_LEVEL.get();
+
+        // Picked up by the scheduler at the start of the next tick, so running scripts are throttled straight away
+        RuntimeSettings.apply(new RuntimeSettings(INSTRUCTIONS_PER_TICK.get(), TICK_BUDGET_MICROS.get() * 1000L,
+                BLOCK_WRITES_PER_TICK.get(), SLICE_INSTRUCTIONS.get(), PLAYER_INSTRUCTIONS_PER_TICK.get(),
+                MAX_SCRIPTS_PER_PLAYER.get(), MAX_SCRIPT_MEMORY_KB.get() * 1024L, CHAT_LINES_PER_TICK.get(),
+                CHAT_BURST_LINES.get(),
+                FOOTPRINT_CACHE_SIZE.get(), INLINE_CACHE_SITES.get(), CHUNK_RESEND_THRESHOLD.get(),
+                "debug".equals(TRACE_LEVEL.get()), DEFAULT_ENGINE.get(), COMPILE_THRESHOLD.get()));
     }
 }
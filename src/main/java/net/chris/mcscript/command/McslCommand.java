@@ -0,0 +1,211 @@
+package net.chris.mcscript.command;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import net.chris.mcscript.item.custom.ScriptExecItem;
+import net.chris.mcscript.item.custom.ScriptExporter;
+import net.chris.mcscript.runtime.RuntimeSettings;
+import net.chris.mcscript.runtime.ScriptAdmission;
+import net.chris.mcscript.runtime.ScriptChat;
+import net.chris.mcscript.runtime.ScriptEventDispatcher;
+import net.chris.mcscript.runtime.ScriptHandler;
+import net.chris.mcscript.runtime.ScriptMetrics;
+import net.chris.mcscript.runtime.ScriptOutput;
+import net.chris.mcscript.runtime.ScriptTemplates;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerPlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+// Registers the /mcsl command tree
+public class McslCommand {
+    // Lines of a script's output shown by /mcsl log
+    private static final int LOG_LINES = 50;
+
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
+        dispatcher.register(Commands.literal("mcsl")
+                .requires(source -> source.hasPermission(2))
+                .then(Commands.literal("stats")
+                        .executes(context -> showStats(context.getSource())))
+                .then(Commands.literal("log")
+                        .executes(context -> showLog(context.getSource(), null))
+                        .then(Commands.argument("script", StringArgumentType.string())
+                                .executes(context -> showLog(context.getSource(),
+                                        StringArgumentType.getString(context, "script")))))
+                .then(Commands.literal("estimate")
+                        .then(Commands.argument("script", StringArgumentType.string())
+                                .executes(context -> showEstimate(context.getSource(),
+                                        StringArgumentType.getString(context, "script")))))
+                .then(Commands.literal("export")
+                        .then(Commands.argument("script", StringArgumentType.string())
+                                .executes(context -> exportScript(context.getSource(),
+                                        StringArgumentType.getString(context, "script"), null))
+                                .then(Commands.argument("name", StringArgumentType.string())
+                                        .executes(context -> exportScript(context.getSource(),
+                                                StringArgumentType.getString(context, "script"),
+                                                StringArgumentType.getString(context, "name"))))))
+                .then(Commands.literal("handlers")
+                        .executes(context -> listHandlers(context.getSource()))
+                        .then(Commands.literal("clear")
+                                .then(Commands.argument("script", StringArgumentType.string())
+                                        .executes(context -> clearHandlers(context.getSource(),
+                                                StringArgumentType.getString(context, "script")))))));
+    }
+
+    private static int showStats(CommandSourceStack source) {
+        ScriptMetrics.Snapshot stats = ScriptMetrics.get().snapshot();
+
+        sendLine(source, "MCSL runtime stats");
+        sendLine(source, "Scripts: " + stats.started() + " started, " + stats.completed() + " completed, "
+                + stats.aborted() + " aborted, " + stats.queueDepth() + " queued");
+        sendLine(source, "Instructions: " + stats.instructions() + " total, "
+                + String.format(Locale.ROOT, "%.0f", stats.instructionsPerSecond()) + "/s");
+        sendLine(source, "Blocks placed: " + stats.blocksPlaced() + " total, " + stats.lastTickBlocks()
+                + " last tick, " + stats.peakTickBlocks() + " peak tick");
+        sendLine(source, "Entities spawned: " + stats.entitiesSpawned());
+        sendLine(source, "Latency (" + stats.runs() + " runs): p50 " + millis(stats.latencyP50())
+                + ", p90 " + millis(stats.latencyP90()) + ", p99 " + millis(stats.latencyP99())
+                + ", max " + millis(stats.latencyMax()));
+        sendLine(source, "Tick share: " + percent(stats.lastTickShare()) + " last tick, "
+                + percent(stats.averageTickShare()) + " average");
+        RuntimeSettings settings = RuntimeSettings.get();
+        sendLine(source, "Budget per tick: " + settings.instructionsPerTick() + " instructions, "
+                + settings.blockWritesPerTick() + " blocks, " + millis(settings.tickNanos()) + ", "
+                + (settings.playerInstructionsPerTick() > 0 ? settings.playerInstructionsPerTick() + " per player" : "no player limit")
+                + "; engine " + settings.engine().name().toLowerCase(Locale.ROOT));
+        return 1;
+    }
+
+    private static int showLog(CommandSourceStack source, String script) {
+        ServerPlayer player = source.getPlayer();
+        if (player == null) {
+            sendLine(source, "Only players have script logs");
+            return 0;
+        }
+
+        ScriptChat.Run run = ScriptChat.get().findRun(player.getUUID(), script);
+        if (run == null) {
+            sendLine(source, script == null ? "You haven't run any scripts" : "No recent run of " + script);
+            return 0;
+        }
+
+        ScriptOutput output = run.output();
+        List<String> lines = output.tail(LOG_LINES);
+        String state = output.isFinished() ? "finished" : "running";
+        sendLine(source, run.scriptName() + " (" + state + "), last " + lines.size() + " of "
+                + output.getTotalLines() + " lines:\n" + String.join("\n", lines));
+        return lines.size();
+    }
+
+    // Dry runs the script from where the command was run, as if it had been started with the item
+    private static int showEstimate(CommandSourceStack source, String script) {
+        File file = ScriptExecItem.findScript(script);
+        if (file == null) {
+            sendLine(source, "No script named " + script);
+            return 0;
+        }
+
+        try {
+            ServerPlayer player = source.getPlayer();
+            ScriptAdmission.Result result = ScriptAdmission.admit(player, source.getLevel(), ScriptExecItem.readFile(file.getPath()));
+            if (result.estimate().errors() > 0) {
+                sendLine(source, file.getName() + " has " + result.estimate().errors() + " errors and would not run");
+                return 0;
+            }
+
+            sendLine(source, "Estimate for " + file.getName() + ": " + ScriptAdmission.describe(result.estimate()));
+            String decision = switch (result.decision()) {
+                case ACCEPT -> "Would run";
+                case QUEUE -> "Would run as a large build, one at a time";
+                case REJECT -> "Would be refused";
+            };
+            sendLine(source, result.reasons().isEmpty() ? decision : decision + ": " + String.join(", ", result.reasons()));
+            return 1;
+        } catch (IOException e) {
+            sendLine(source, "Error reading script: " + e.getMessage());
+            return 0;
+        } catch (Exception e) {
+            sendLine(source, "Error estimating script: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Dry runs the script from where the command was run and saves what it builds as a structure template,
+    // named after the script unless a name is given
+    private static int exportScript(CommandSourceStack source, String script, String name) {
+        File file = ScriptExecItem.findScript(script);
+        if (file == null) {
+            sendLine(source, "No script named " + script);
+            return 0;
+        }
+        String templateName = name != null ? name : file.getName().replaceFirst("\\.mcsl$", "").toLowerCase(Locale.ROOT);
+        ResourceLocation id = ScriptTemplates.id(templateName);
+        if (id == null) {
+            sendLine(source, "Structure names may only use lowercase letters, digits, /, ., - and _");
+            return 0;
+        }
+
+        try {
+            ScriptTemplates.Export export = ScriptExporter.export(source.getPlayer(), source.getLevel(),
+                    ScriptExecItem.readFile(file.getPath()), ScriptAdmission.limits(0));
+            ScriptTemplates.save(source.getLevel(), id, export.tag());
+
+            BlockPos corner = export.corner();
+            sendLine(source, "Exported " + file.getName() + " as " + id + ": " + export.blocks() + " blocks in "
+                    + export.size().getX() + "x" + export.size().getY() + "x" + export.size().getZ());
+            sendLine(source, "placeStructure(\"" + templateName + "\", " + corner.getX() + ", " + corner.getY() + ", "
+                    + corner.getZ() + ") builds it where the script would");
+            return export.blocks();
+        } catch (IOException e) {
+            sendLine(source, "Error exporting script: " + e.getMessage());
+            return 0;
+        } catch (Exception e) {
+            sendLine(source, "Could not export " + file.getName() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private static int listHandlers(CommandSourceStack source) {
+        Collection<ScriptEventDispatcher.Registration> registrations = ScriptEventDispatcher.get().getRegistrations();
+        if (registrations.isEmpty()) {
+            sendLine(source, "No scripts are listening for events");
+            return 0;
+        }
+
+        for (ScriptEventDispatcher.Registration registration : registrations) {
+            StringBuilder events = new StringBuilder();
+            for (ScriptHandler handler : registration.handlers()) {
+                if (events.length() > 0) events.append(", ");
+                events.append(handler.getType().getScriptName()).append(" ").append(handler.getKey());
+            }
+            sendLine(source, registration.scriptName() + ": " + events);
+        }
+        return registrations.size();
+    }
+
+    private static int clearHandlers(CommandSourceStack source, String script) {
+        int removed = ScriptEventDispatcher.get().unregister(script);
+        sendLine(source, "Removed " + removed + " registrations of " + script);
+        return removed;
+    }
+
+    private static void sendLine(CommandSourceStack source, String line) {
+        source.sendSuccess(() -> Component.literal(line), false);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1_000_000.0);
+    }
+
+    private static String percent(double fraction) {
+        return String.format(Locale.ROOT, "%.2f%%", fraction * 100.0);
+    }
+}
@@ -1,29 +1,92 @@
 package net.chris.mcscript.event;
 
 import net.chris.mcscript.MCScript;
+import net.chris.mcscript.command.McslCommand;
 import net.chris.mcscript.item.ModItems;
-import net.minecraft.network.chat.Component;
-import net.minecraft.world.entity.animal.Sheep;
+import net.chris.mcscript.item.custom.ChiselItem;
+import net.chris.mcscript.runtime.MetricsExporter;
+import net.chris.mcscript.runtime.ScriptChat;
+import net.chris.mcscript.runtime.ScriptClientSync;
+import net.chris.mcscript.runtime.ScriptEventDispatcher;
+import net.chris.mcscript.runtime.ScriptFootprints;
+import net.chris.mcscript.runtime.ScriptLogWriter;
+import net.chris.mcscript.runtime.ScriptMetrics;
+import net.chris.mcscript.runtime.ScriptSaveData;
+import net.chris.mcscript.runtime.ScriptScheduler;
+import net.chris.mcscript.runtime.ScriptTemplates;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.entity.player.Player;
-import net.minecraft.world.item.Items;
+import net.minecraftforge.event.RegisterCommandsEvent;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.server.ServerStartedEvent;
+import net.minecraftforge.event.server.ServerStoppedEvent;
 import net.minecraftforge.event.entity.living.LivingDamageEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
 import net.minecraftforge.event.entity.player.PlayerInteractEvent;
+import net.minecraftforge.event.level.BlockEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 
 @Mod.EventBusSubscriber(modid = MCScript.MOD_ID, bus = Mod.EventBusSubscriber.Bus.FORGE)
 public class ModEvents {
 
+    // Scripts listen for these with On blocks, see sheep.mcsl for the old stick and sheep example
     @SubscribeEvent
     public static void onLivingDamage(LivingDamageEvent event) {
-        if(event.getEntity() instanceof Sheep sheep && event.getSource().getDirectEntity() instanceof Player player) {
-            if(player.getMainHandItem().getItem() == Items.STICK) {
-                player.sendSystemMessage(Component.literal(player.getName().getString() + " Just hit a Sheep"));
+        if(event.getEntity().level() instanceof ServerLevel level) {
+            Player attacker = event.getSource().getDirectEntity() instanceof Player player ? player : null;
+            ScriptEventDispatcher.get().onDamage(level, event.getEntity(), attacker, event.getAmount());
+        }
+    }
 
-            }
+    @SubscribeEvent
+    public static void onBlockBreak(BlockEvent.BreakEvent event) {
+        if(event.getLevel() instanceof ServerLevel level) {
+            ScriptEventDispatcher.get().onBlockBreak(level, event.getPos(), event.getState(), event.getPlayer());
         }
     }
 
+    @SubscribeEvent
+    public static void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+        ChiselItem.forgetCorners(event.getEntity().getUUID());
+    }
+
+    @SubscribeEvent
+    public static void onRegisterCommands(RegisterCommandsEvent event) {
+        McslCommand.register(event.getDispatcher());
+    }
 
+    @SubscribeEvent
+    public static void onServerTickStart(TickEvent.ServerTickEvent.Pre event) {
+        ScriptMetrics.get().beginTick();
+    }
+
+    @SubscribeEvent
+    public static void onServerTickEnd(TickEvent.ServerTickEvent.Post event) {
+        ScriptEventDispatcher.get().tick(event.getServer());
+        ScriptScheduler.get().tick();
+        ScriptClientSync.get().flush();
+        ScriptChat.get().flush();
+        ScriptMetrics.get().endTick();
+        MetricsExporter.tick();
+    }
+
+    // Scripts checkpointed by the last save carry on where they left off
+    @SubscribeEvent
+    public static void onServerStarted(ServerStartedEvent event) {
+        ScriptEventDispatcher.get().restore(event.getServer(), ScriptSaveData.get(event.getServer()).takePendingHandlers());
+        ScriptScheduler.get().restore(event.getServer());
+    }
+
+    @SubscribeEvent
+    public static void onServerStopped(ServerStoppedEvent event) {
+        ScriptScheduler.get().clear();
+        ScriptEventDispatcher.get().clear();
+        ScriptClientSync.get().clear();
+        ScriptChat.get().clear();
+        ScriptFootprints.get().clear();
+        ScriptTemplates.clear();
+        ScriptLogWriter.get().closeAll();
+    }
 
 }
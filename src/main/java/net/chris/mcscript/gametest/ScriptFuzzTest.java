@@ -0,0 +1,265 @@
+package net.chris.mcscript.gametest;
+
+import com.mojang.logging.LogUtils;
+import net.chris.mcscript.MCScript;
+import net.chris.mcscript.item.custom.MCScriptInterpreter;
+import net.chris.mcscript.item.custom.ScriptCheckpoint;
+import net.chris.mcscript.item.custom.ScriptTrace;
+import net.chris.mcscript.runtime.ExecutionState;
+import net.minecraft.core.BlockPos;
+import net.minecraft.gametest.framework.GameTest;
+import net.minecraft.gametest.framework.GameTestHelper;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraftforge.fml.loading.FMLPaths;
+import net.minecraftforge.gametest.GameTestHolder;
+import net.minecraftforge.gametest.PrefixGameTestTemplate;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Differential fuzz test for the execution engines, run with ./gradlew runGameTestServer.
+// Random programs from ScriptGenerator are run by the plain interpreter and by every other way
+// of executing a script: quickened conditions and arithmetic, compiled loops at different thresholds,
+// small slices that suspend and resume mid-loop, and checkpoints written and read back between slices. Each run records its
+// block writes, spawns and messages through a ScriptTrace without touching the world, and every
+// engine has to produce exactly the interpreter's trace and instruction count. A program that
+// doesn't is shrunk line by line to a small reproduction, which is logged and written to
+// <game dir>/mcscript/fuzz-failures/. The number of programs and the first seed are system
+// properties, set from Gradle by the gameTestServer run config.
+@GameTestHolder(MCScript.MOD_ID)
+@PrefixGameTestTemplate(false)
+public class ScriptFuzzTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private static final int MAX_TICKS = 72_000;
+    private static final int PROGRAMS = Integer.getInteger("mcscript.fuzz.programs", 500);
+    private static final long SEED = Long.getLong("mcscript.fuzz.seed", 1L);
+    // Programs run per server tick, so a long run doesn't trip the watchdog
+    private static final int PROGRAMS_PER_TICK = 4;
+    // Runs that go past this are left out of the comparison, a shrunk program may no longer end
+    private static final long MAX_INSTRUCTIONS = 200_000;
+    // Failures reported before the test gives up
+    private static final int MAX_FAILURES = 5;
+
+    // One way of running a script. A threshold of 0 keeps every loop in the interpreter.
+    public record Engine(String name, boolean quicken, int jitThreshold, long slice, boolean checkpoint) {
+    }
+
+    // The first engine is the reference the others are compared with
+    public static final List<Engine> ENGINES = List.of(
+            new Engine("interpreter", false, 0, Long.MAX_VALUE, false),
+            new Engine("quickened interpreter", true, 0, Long.MAX_VALUE, false),
+            new Engine("interpreter in slices of 7", false, 0, 7, false),
+            new Engine("compiled loops", true, 1, Long.MAX_VALUE, false),
+            new Engine("compiled loops in slices of 3", true, 1, 3, false),
+            new Engine("compiled after 20 iterations in slices of 97", true, 20, 97, false),
+            new Engine("checkpointed every 50 instructions", true, 0, 50, true),
+            new Engine("compiled loops checkpointed every 31 instructions", true, 1, 31, true)
+    );
+
+    // What one run did, complete is false if it was stopped at MAX_INSTRUCTIONS
+    public record Run(List<String> events, long instructions, boolean valid, boolean complete) {
+    }
+
+    // An engine that disagreed with the interpreter, with the smallest program found that shows it
+    public record Failure(long seed, Engine engine, String program, String difference) {
+    }
+
+    @GameTest(template = "empty", timeoutTicks = MAX_TICKS)
+    public static void differential(GameTestHelper helper) {
+        List<Failure> failures = new ArrayList<>();
+        int[] done = {0};
+        int[] skipped = {0};
+        helper.onEachTick(() -> {
+            if (done[0] >= PROGRAMS) return;
+            for (int i = 0; i < PROGRAMS_PER_TICK && done[0] < PROGRAMS && failures.size() < MAX_FAILURES; i++) {
+                long seed = SEED + done[0]++;
+                String program = new ScriptGenerator(seed).generate();
+                Failure failure = check(seed, program, helper.getLevel());
+                if (failure == CHECK_SKIPPED) {
+                    skipped[0]++;
+                } else if (failure != null) {
+                    failures.add(failure);
+                    report(failure);
+                }
+            }
+
+            if (done[0] >= PROGRAMS || failures.size() >= MAX_FAILURES) {
+                done[0] = PROGRAMS;
+                LOGGER.info("MCSL fuzz: {} programs from seed {}, {} engines, {} skipped, {} failures",
+                        PROGRAMS, SEED, ENGINES.size(), skipped[0], failures.size());
+                if (failures.isEmpty()) {
+                    helper.succeed();
+                } else {
+                    Failure first = failures.get(0);
+                    helper.fail(first.engine().name() + " differs from the interpreter on seed " + first.seed()
+                            + ": " + first.difference());
+                }
+            }
+        });
+    }
+
+    // Returned by check for a program that couldn't be compared, because it didn't load or didn't end
+    private static final Failure CHECK_SKIPPED = new Failure(0, null, null, null);
+
+    // Runs the program with every engine and returns the first disagreement, shrunk, or null
+    public static Failure check(long seed, String program, ServerLevel level) {
+        Run reference = run(ENGINES.get(0), program, level);
+        if (!reference.valid() || !reference.complete()) return CHECK_SKIPPED;
+
+        for (Engine engine : ENGINES.subList(1, ENGINES.size())) {
+            String difference = compare(reference, run(engine, program, level));
+            if (difference != null) {
+                String shrunk = shrink(engine, program, level);
+                return new Failure(seed, engine, shrunk, compare(run(ENGINES.get(0), shrunk, level), run(engine, shrunk, level)));
+            }
+        }
+        return null;
+    }
+
+    public static Run run(Engine engine, String program, ServerLevel level) {
+        Recorder recorder = new Recorder();
+        MCScriptInterpreter interpreter = new MCScriptInterpreter(null, level);
+        interpreter.recordTo(recorder);
+        interpreter.setQuickening(engine.quicken());
+        interpreter.setJitThreshold(engine.jitThreshold());
+        interpreter.load(program);
+        if (!interpreter.getDiagnostics().isEmpty()) {
+            return new Run(recorder.events, 0, false, true);
+        }
+
+        while (true) {
+            // Capped so a program that never ends, as shrinking often makes, still comes back
+            ExecutionState state = interpreter.resume(Math.min(engine.slice(), MAX_INSTRUCTIONS + 1));
+            if (state == ExecutionState.FINISHED || state == ExecutionState.ABORTED) break;
+            if (state == ExecutionState.WAITING) {
+                interpreter.skipWait();
+            }
+            if (interpreter.getInstructionCount() > MAX_INSTRUCTIONS) {
+                return new Run(recorder.events, interpreter.getInstructionCount(), true, false);
+            }
+            if (engine.checkpoint()) {
+                interpreter = roundTrip(interpreter, level, engine, recorder);
+            }
+        }
+        return new Run(recorder.events, interpreter.getInstructionCount(), true, true);
+    }
+
+    // Writes the interpreter to a checkpoint and reads it back, as a server restart would
+    private static MCScriptInterpreter roundTrip(MCScriptInterpreter interpreter, ServerLevel level, Engine engine,
+                                                 Recorder recorder) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ScriptCheckpoint.write(interpreter, out);
+            out.flush();
+            MCScriptInterpreter restored = ScriptCheckpoint.read(
+                    new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), level, null);
+            restored.recordTo(recorder);
+            restored.setQuickening(engine.quicken());
+            restored.setJitThreshold(engine.jitThreshold());
+            return restored;
+        } catch (IOException e) {
+            recorder.events.add("checkpoint failed: " + e.getMessage());
+            return interpreter;
+        }
+    }
+
+    // Describes the first difference between two runs, or returns null if they did the same thing
+    private static String compare(Run expected, Run actual) {
+        if (!actual.valid() || !actual.complete()) {
+            return actual.valid() ? "didn't finish within " + MAX_INSTRUCTIONS + " instructions" : "didn't load";
+        }
+        List<String> a = expected.events();
+        List<String> b = actual.events();
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+            if (!a.get(i).equals(b.get(i))) {
+                return "event " + i + " was '" + b.get(i) + "' instead of '" + a.get(i) + "'";
+            }
+        }
+        if (a.size() != b.size()) {
+            return b.size() + " events instead of " + a.size();
+        }
+        if (expected.instructions() != actual.instructions()) {
+            return actual.instructions() + " instructions instead of " + expected.instructions();
+        }
+        return null;
+    }
+
+    // Removes chunks of lines, halving the chunk size whenever nothing more can go, for as long as
+    // the program still loads, still ends and the engine still disagrees with the interpreter
+    private static String shrink(Engine engine, String program, ServerLevel level) {
+        List<String> lines = new ArrayList<>(Arrays.asList(program.split("\n")));
+        int chunk = Math.max(1, lines.size() / 2);
+        while (true) {
+            boolean removed = false;
+            for (int start = 0; start < lines.size(); ) {
+                List<String> candidate = new ArrayList<>(lines.subList(0, start));
+                candidate.addAll(lines.subList(Math.min(lines.size(), start + chunk), lines.size()));
+                if (!candidate.isEmpty() && stillFails(engine, String.join("\n", candidate) + "\n", level)) {
+                    lines = candidate;
+                    removed = true;
+                } else {
+                    start += chunk;
+                }
+            }
+            if (!removed) {
+                if (chunk == 1) break;
+                chunk = Math.max(1, chunk / 2);
+            }
+        }
+        return String.join("\n", lines) + "\n";
+    }
+
+    private static boolean stillFails(Engine engine, String program, ServerLevel level) {
+        Run reference = run(ENGINES.get(0), program, level);
+        if (!reference.valid() || !reference.complete()) return false;
+        Run actual = run(engine, program, level);
+        return actual.valid() && actual.complete() && compare(reference, actual) != null;
+    }
+
+    private static void report(Failure failure) {
+        LOGGER.error("MCSL fuzz: {} differs from the interpreter on seed {}: {}\n{}",
+                failure.engine().name(), failure.seed(), failure.difference(), failure.program());
+        Path file = FMLPaths.GAMEDIR.get().resolve("mcscript").resolve("fuzz-failures")
+                .resolve(String.format(Locale.ROOT, "seed-%d.mcsl", failure.seed()));
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "// " + failure.engine().name() + ": " + failure.difference() + "\n"
+                    + failure.program(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write the fuzz failure to {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static class Recorder implements ScriptTrace {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void blockWritten(BlockPos pos, BlockState state) {
+            events.add("write " + pos.getX() + " " + pos.getY() + " " + pos.getZ() + " " + state);
+        }
+
+        @Override
+        public void mobSpawned(String type, double x, double y, double z) {
+            events.add("spawn " + type + " " + x + " " + y + " " + z);
+        }
+
+        @Override
+        public void printed(String message) {
+            events.add("print " + message);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package net.chris.mcscript.gametest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generates random MCSL programs from a small grammar for ScriptFuzzTest.
+// Programs use a few integer variables, arithmetic including division and overflow, While and
+// For loops, If chains, function calls, prints, block writes and the odd spawn. Every loop counts
+// a counter of its own up to a small bound and nothing else assigns the counter, so programs end.
+// Now and then a variable is given a string, which sends compiled loops down their fallback path.
+public class ScriptGenerator {
+    private static final String[] VARIABLES = {"a", "b", "c", "d"};
+    private static final String[] BLOCKS = {"stone", "dirt", "glass", "sand"};
+    private static final String[] MOBS = {"zombie", "pig"};
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%"};
+    private static final String[] COMPARISONS = {"<", ">", "=="};
+    private static final int MAX_DEPTH = 2;
+    private static final int MAX_LOOP_BOUND = 40;
+    private static final int MAX_FUNCTIONS = 2;
+
+    private final Random random;
+    private final List<String> lines = new ArrayList<>();
+    // Names of the loop counters in scope, readable but never assigned by generated statements
+    private final List<String> counters = new ArrayList<>();
+    private int nextCounter;
+    private int functions;
+
+    public ScriptGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public String generate() {
+        lines.clear();
+        counters.clear();
+        nextCounter = 0;
+
+        functions = random.nextInt(MAX_FUNCTIONS + 1);
+        for (int i = 0; i < functions; i++) {
+            lines.add("Func f" + i + "(p) {");
+            lines.add("    If (p " + comparison() + " " + literal() + ")");
+            lines.add("        Return p " + operator() + " " + literal() + ";");
+            lines.add("    Return " + expression(List.of("p")) + ";");
+            lines.add("}");
+        }
+        for (String variable : VARIABLES) {
+            lines.add("Let " + variable + " = " + literal() + ";");
+        }
+
+        int statements = 3 + random.nextInt(8);
+        for (int i = 0; i < statements; i++) {
+            statement(0, "");
+        }
+        for (String variable : VARIABLES) {
+            lines.add("print(" + variable + ");");
+        }
+        return String.join("\n", lines) + "\n";
+    }
+
+    private void statement(int depth, String indent) {
+        int choice = random.nextInt(depth < MAX_DEPTH ? 12 : 9);
+        switch (choice) {
+            case 0, 1, 2 -> lines.add(indent + simpleStatement());
+            case 3 -> lines.add(indent + "print(" + atom() + ");");
+            case 4 -> ifChain(indent);
+            case 5 -> {
+                if (functions > 0) {
+                    lines.add(indent + target() + " = f" + random.nextInt(functions) + "(" + atom() + ");");
+                } else {
+                    lines.add(indent + simpleStatement());
+                }
+            }
+            case 6 -> {
+                if (random.nextInt(4) == 0) {
+                    lines.add(indent + "spawn(\"" + pick(MOBS) + "\", " + atom() + ", 1, " + atom() + ");");
+                } else {
+                    lines.add(indent + "placeBlock(" + atom() + ", " + atom() + ", " + atom() + ", \"" + pick(BLOCKS) + "\");");
+                }
+            }
+            // Only Let takes a string, plain assignment rejects one
+            case 7 -> lines.add(indent + "Let " + target() + " = \"s" + random.nextInt(3) + "\";");
+            case 8 -> lines.add(indent + target() + " = " + literal() + ";");
+            case 9, 10 -> whileLoop(depth, indent);
+            default -> forLoop(indent);
+        }
+    }
+
+    // An assignment, print or block write, the statements an If body can hold
+    private String simpleStatement() {
+        return switch (random.nextInt(4)) {
+            case 0 -> "print(" + atom() + ");";
+            case 1 -> "placeBlock(" + atom() + ", " + atom() + ", " + atom() + ", \"" + pick(BLOCKS) + "\");";
+            default -> target() + " = " + expression(List.of()) + ";";
+        };
+    }
+
+    private void ifChain(String indent) {
+        lines.add(indent + "If (" + condition() + ")");
+        lines.add(indent + "    " + simpleStatement());
+        if (random.nextBoolean()) {
+            lines.add(indent + "Elif (" + condition() + ")");
+            lines.add(indent + "    " + simpleStatement());
+        }
+        if (random.nextBoolean()) {
+            lines.add(indent + "Else");
+            lines.add(indent + "    " + simpleStatement());
+        }
+    }
+
+    private void whileLoop(int depth, String indent) {
+        String counter = "l" + nextCounter++;
+        lines.add(indent + "Let " + counter + " = 0;");
+        lines.add(indent + "While (" + counter + " < " + (1 + random.nextInt(MAX_LOOP_BOUND)) + ") {");
+        counters.add(counter);
+        int statements = 1 + random.nextInt(4);
+        for (int i = 0; i < statements; i++) {
+            statement(depth + 1, indent + "    ");
+        }
+        counters.remove(counter);
+        lines.add(indent + "    " + counter + " = " + counter + " + 1;");
+        lines.add(indent + "}");
+    }
+
+    // A For body is a list of If statements
+    private void forLoop(String indent) {
+        String counter = "l" + nextCounter++;
+        String end = "e" + nextCounter++;
+        lines.add(indent + "Let " + counter + " = " + random.nextInt(3) + ";");
+        lines.add(indent + "Let " + end + " = " + random.nextInt(MAX_LOOP_BOUND) + ";");
+        lines.add(indent + "For (" + counter + " upto " + end + ")");
+        counters.add(counter);
+        int statements = 1 + random.nextInt(3);
+        for (int i = 0; i < statements; i++) {
+            lines.add(indent + "    If (" + condition() + ")");
+            lines.add(indent + "        " + simpleStatement());
+        }
+        counters.remove(counter);
+    }
+
+    private String condition() {
+        if (random.nextInt(3) == 0) {
+            return atom() + " % " + (1 + random.nextInt(7)) + " == " + random.nextInt(3);
+        }
+        return atom() + " " + comparison() + " " + atom();
+    }
+
+    private String expression(List<String> extra) {
+        String left = random.nextInt(4) == 0 && !extra.isEmpty() ? pick(extra) : atom();
+        if (random.nextInt(3) == 0) return left;
+        return left + " " + operator() + " " + atom();
+    }
+
+    private String atom() {
+        int choice = random.nextInt(5);
+        if (choice == 0) return literal();
+        if (choice == 1 && !counters.isEmpty()) return counters.get(random.nextInt(counters.size()));
+        return pick(VARIABLES);
+    }
+
+    private String literal() {
+        return switch (random.nextInt(10)) {
+            case 0 -> "0";
+            case 1 -> "2147483647";
+            case 2 -> "-" + (1 + random.nextInt(9));
+            default -> String.valueOf(random.nextInt(50));
+        };
+    }
+
+    private String target() {
+        return pick(VARIABLES);
+    }
+
+    private String operator() {
+        return pick(OPERATORS);
+    }
+
+    private String comparison() {
+        return pick(COMPARISONS);
+    }
+
+    private String pick(String[] options) {
+        return options[random.nextInt(options.length)];
+    }
+
+    private String pick(List<String> options) {
+        return options.get(random.nextInt(options.size()));
+    }
+}
@@ -0,0 +1,265 @@
+package net.chris.mcscript.gametest;
+
+import com.mojang.logging.LogUtils;
+import net.chris.mcscript.MCScript;
+import net.chris.mcscript.item.custom.ScriptExecItem;
+import net.chris.mcscript.runtime.LatencyHistogram;
+import net.chris.mcscript.runtime.ScriptMetrics;
+import net.chris.mcscript.runtime.ScriptScheduler;
+import net.chris.mcscript.runtime.ScriptTask;
+import net.minecraft.core.BlockPos;
+import net.minecraft.gametest.framework.GameTest;
+import net.minecraft.gametest.framework.GameTestHelper;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.GameType;
+import net.minecraftforge.fml.loading.FMLPaths;
+import net.minecraftforge.gametest.GameTestHolder;
+import net.minecraftforge.gametest.PrefixGameTestTemplate;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Soak test for the script runtime, run headless with ./gradlew runGameTestServer.
+// Virtual players keep starting scripts the way the script item does, a mix of the bundled
+// scripts and generated large builds, while tick times, throughput, script latency, heap and GC
+// are sampled. The report is logged and written to <game dir>/mcscript/soak-report.txt.
+// The number of players, the length of the run and the script directory are system properties,
+// set from Gradle by the gameTestServer run config.
+@GameTestHolder(MCScript.MOD_ID)
+@PrefixGameTestTemplate(false)
+public class ScriptSoakTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    // The test's own timeout, two hours of ticks; the soak ends after mcscript.soak.ticks
+    private static final int MAX_TICKS = 144_000;
+    private static final int PLAYERS = Integer.getInteger("mcscript.soak.players", 8);
+    private static final int TICKS = Math.min(Integer.getInteger("mcscript.soak.ticks", 6000), MAX_TICKS - 1);
+    private static final String SCRIPT_DIR = System.getProperty("mcscript.soak.scripts", "scripts");
+
+    private static final long TICK_BUDGET_NANOS = 50_000_000L;
+    // Distance between the virtual players, so their builds don't overlap
+    private static final int PLAYER_SPACING = 96;
+    // Ticks a player waits after a script finishes before starting the next
+    private static final int THINK_TICKS = 20;
+    // Every this many starts a player runs a generated large build instead of a bundled script
+    private static final int LARGE_EVERY = 5;
+    private static final int[] LARGE_SIZES = {24, 48, 64};
+    private static final String[] LARGE_BLOCKS = {"stone", "cobblestone", "oak_planks", "glass"};
+    private static final int HEAP_SAMPLE_TICKS = 20;
+
+    private final GameTestHelper helper;
+    private final Random random = new Random(1234);
+    private final List<String[]> scripts = new ArrayList<>();
+    private final List<VirtualPlayer> players = new ArrayList<>();
+
+    private final LatencyHistogram tickTimes = new LatencyHistogram();
+    private final LatencyHistogram scriptLatency = new LatencyHistogram();
+    private final ScriptMetrics.Snapshot startMetrics = ScriptMetrics.get().snapshot();
+    private final long startNanos = System.nanoTime();
+    private final long startGcCount = gcCount();
+    private final long startGcMillis = gcMillis();
+    private int tick;
+    private int started;
+    private int refused;
+    private int finished;
+    private int slowTicks;
+    private int peakQueue;
+    private long peakHeap;
+
+    private static class VirtualPlayer {
+        final Player player;
+        ScriptTask task;
+        int nextStart;
+        int runs;
+
+        VirtualPlayer(Player player, int nextStart) {
+            this.player = player;
+            this.nextStart = nextStart;
+        }
+    }
+
+    @GameTest(template = "empty", timeoutTicks = MAX_TICKS)
+    public static void soak(GameTestHelper helper) {
+        new ScriptSoakTest(helper).start();
+    }
+
+    private ScriptSoakTest(GameTestHelper helper) {
+        this.helper = helper;
+    }
+
+    private void start() {
+        File[] files = new File(SCRIPT_DIR).listFiles((dir, name) -> name.endsWith(".mcsl"));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    scripts.add(new String[]{file.getName(), ScriptExecItem.readFile(file.getPath())});
+                } catch (IOException e) {
+                    LOGGER.warn("Soak test could not read {}: {}", file, e.getMessage());
+                }
+            }
+        }
+        LOGGER.info("MCSL soak test: {} players for {} ticks, {} bundled scripts from {}",
+                PLAYERS, TICKS, scripts.size(), SCRIPT_DIR);
+
+        BlockPos base = helper.absolutePos(BlockPos.ZERO);
+        for (int i = 0; i < PLAYERS; i++) {
+            Player player = helper.makeMockPlayer(GameType.CREATIVE);
+            player.moveTo(base.getX() + (i + 1) * PLAYER_SPACING, base.getY() + 1, base.getZ(), 0.0F, 0.0F);
+            // Stagger the first scripts so the players don't all start on the same tick
+            players.add(new VirtualPlayer(player, i * THINK_TICKS / Math.max(1, PLAYERS)));
+        }
+        helper.onEachTick(this::tick);
+    }
+
+    private void tick() {
+        tick++;
+        MinecraftServer server = helper.getLevel().getServer();
+        // The previous tick's time, without the time the server slept
+        long tickNanos = server.getTickTimesNanos()[(server.getTickCount() - 1) % 100];
+        if (tickNanos > 0) {
+            tickTimes.record(tickNanos);
+            if (tickNanos > TICK_BUDGET_NANOS) slowTicks++;
+        }
+
+        for (VirtualPlayer virtual : players) {
+            if (virtual.task != null && virtual.task.getInterpreter().getOutput().isFinished()) {
+                scriptLatency.record(System.nanoTime() - virtual.task.getSubmittedNanos());
+                finished++;
+                virtual.task = null;
+                virtual.nextStart = tick + THINK_TICKS;
+            }
+            if (virtual.task == null && tick >= virtual.nextStart) {
+                startNext(virtual);
+            }
+        }
+
+        peakQueue = Math.max(peakQueue, ScriptScheduler.get().size());
+        if (tick % HEAP_SAMPLE_TICKS == 0) {
+            Runtime runtime = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+        if (tick == TICKS) {
+            report();
+            helper.succeed();
+        }
+    }
+
+    private void startNext(VirtualPlayer virtual) {
+        String name;
+        String code;
+        if (scripts.isEmpty() || virtual.runs % LARGE_EVERY == LARGE_EVERY - 1) {
+            int size = LARGE_SIZES[random.nextInt(LARGE_SIZES.length)];
+            name = "soak_large_" + size + ".mcsl";
+            code = largeBuild(size, LARGE_BLOCKS[random.nextInt(LARGE_BLOCKS.length)]);
+        } else {
+            String[] script = scripts.get(random.nextInt(scripts.size()));
+            name = script[0];
+            code = script[1];
+        }
+        virtual.runs++;
+
+        try {
+            virtual.task = ScriptExecItem.startScript(virtual.player, helper.getLevel(), name, code);
+        } catch (Exception e) {
+            LOGGER.warn("Soak test could not start {}: {}", name, e.getMessage());
+            virtual.task = null;
+        }
+        if (virtual.task != null) {
+            started++;
+        } else {
+            refused++;
+            virtual.nextStart = tick + THINK_TICKS;
+        }
+    }
+
+    // A size by size floor of the block with a wall four high along one side, written with nested While loops
+    private static String largeBuild(int size, String block) {
+        return "Let x = 0;\n"
+                + "Let y = 0;\n"
+                + "Let z = 0;\n"
+                + "While (x < " + size + ") {\n"
+                + "    z = 0;\n"
+                + "    While (z < " + size + ") {\n"
+                + "        placeBlock(x, 0, z, \"" + block + "\");\n"
+                + "        z = z + 1;\n"
+                + "    }\n"
+                + "    x = x + 1;\n"
+                + "}\n"
+                + "z = 0;\n"
+                + "While (z < " + size + ") {\n"
+                + "    y = 1;\n"
+                + "    While (y < 5) {\n"
+                + "        placeBlock(0, y, z, \"" + block + "\");\n"
+                + "        y = y + 1;\n"
+                + "    }\n"
+                + "    z = z + 1;\n"
+                + "}\n";
+    }
+
+    private void report() {
+        ScriptMetrics.Snapshot end = ScriptMetrics.get().snapshot();
+        double seconds = TICKS / 20.0;
+        double wallSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        Runtime runtime = Runtime.getRuntime();
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "MCSL soak: %d players, %d ticks (%.1fs simulated, %.1fs wall)",
+                PLAYERS, TICKS, seconds, wallSeconds));
+        lines.add(String.format(Locale.ROOT, "Scripts: %d started, %d finished, %d refused, %d aborted, %d still queued",
+                started, finished, refused, end.aborted() - startMetrics.aborted(), ScriptScheduler.get().size()));
+        lines.add(String.format(Locale.ROOT, "Throughput: %.2f scripts/s, %.0f blocks/s, %.0f instructions/s",
+                finished / seconds, (end.blocksPlaced() - startMetrics.blocksPlaced()) / seconds,
+                (end.instructions() - startMetrics.instructions()) / seconds));
+        lines.add("Tick time: p50 " + millis(tickTimes.percentile(50)) + ", p90 " + millis(tickTimes.percentile(90))
+                + ", p99 " + millis(tickTimes.percentile(99)) + ", max " + millis(tickTimes.max())
+                + ", " + slowTicks + " ticks over " + millis(TICK_BUDGET_NANOS));
+        lines.add("Script latency: p50 " + millis(scriptLatency.percentile(50)) + ", p90 " + millis(scriptLatency.percentile(90))
+                + ", p99 " + millis(scriptLatency.percentile(99)) + ", max " + millis(scriptLatency.max())
+                + ", peak queue " + peakQueue);
+        lines.add(String.format(Locale.ROOT, "Heap: %dMB peak sampled, %dMB at end; GC: %d collections, %dms",
+                peakHeap >> 20, (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+                gcCount() - startGcCount, gcMillis() - startGcMillis));
+
+        for (String line : lines) {
+            LOGGER.info(line);
+        }
+        Path file = FMLPaths.GAMEDIR.get().resolve("mcscript").resolve("soak-report.txt");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, String.join("\n", lines) + "\n", StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write the soak report to {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,100 @@
+package net.chris.mcscript.item.custom;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// One activation on the interpreter's call stack.
+// The main script runs in a CALL frame with no function; each call pushes a frame whose
+// parameters live in slots and whose Let declarations live in locals. Loops push their own
+// frames so a script can be suspended in the middle of one and resumed on a later tick.
+public class CallFrame {
+    public static final int CALL = 0;
+    public static final int WHILE = 1;
+    public static final int FOR = 2;
+    public static final int FOR_EACH = 3;
+
+    private static final int INITIAL_SLOTS = 4;
+
+    int kind;
+    ScriptFunction function;
+    String[] lines;
+    int pc;
+    Object[] slots = new Object[INITIAL_SLOTS];
+    Map<String, Object> locals;
+    // Frame whose variables are visible here: itself for calls, the enclosing call for loops
+    CallFrame scope;
+    // Caller variable that receives the return value, or null when it is discarded
+    String returnTarget;
+    boolean declareTarget;
+    // Whether a branch of the current If/Elif/Else chain has already run
+    boolean branchTaken;
+
+    // Loop state: the While condition, or the For variable with its position and bounds
+    String loopCondition;
+    String loopVariable;
+    int loopIndex;
+    int loopEnd;
+    ScriptIntArray loopArray;
+    // Set for a parallel For, whose iterations are handed to worker threads
+    boolean parallel;
+    // Execution count and compiled code of a For or While loop, not saved in checkpoints
+    LoopProfile profile;
+
+    void enter(ScriptFunction function, String[] lines, String returnTarget, boolean declareTarget) {
+        this.kind = CALL;
+        this.scope = this;
+        this.returnTarget = returnTarget;
+        this.declareTarget = declareTarget;
+        rebind(function, lines);
+    }
+
+    void enterLoop(int kind, CallFrame scope, String[] lines) {
+        this.kind = kind;
+        this.scope = scope;
+        this.function = scope.function;
+        this.lines = lines;
+        this.pc = 0;
+        this.branchTaken = false;
+        this.parallel = false;
+        this.profile = null;
+    }
+
+    // Reuses this frame for another call, as done for tail calls
+    void rebind(ScriptFunction function, String[] lines) {
+        this.function = function;
+        this.lines = lines;
+        this.pc = 0;
+        this.branchTaken = false;
+
+        int needed = function == null ? 0 : function.getParamCount();
+        if (slots.length < needed) {
+            slots = new Object[needed];
+        } else {
+            Arrays.fill(slots, null);
+        }
+        if (locals != null) {
+            locals.clear();
+        }
+    }
+
+    Map<String, Object> locals() {
+        if (locals == null) {
+            locals = new HashMap<>();
+        }
+        return locals;
+    }
+
+    void clear() {
+        rebind(null, null);
+        kind = CALL;
+        scope = null;
+        returnTarget = null;
+        declareTarget = false;
+        loopCondition = null;
+        loopVariable = null;
+        loopArray = null;
+        parallel = false;
+        profile = null;
+    }
+}
@@ -1,18 +1,28 @@
 package net.chris.mcscript.item.custom;
 
+import net.chris.mcscript.runtime.BlockWriteBuffer;
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.sounds.SoundEvents;
 import net.minecraft.sounds.SoundSource;
 import net.minecraft.world.InteractionResult;
 import net.minecraft.world.entity.EquipmentSlot;
+import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.context.UseOnContext;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 public class ChiselItem extends Item {
     private static final Map<Block, Block> CHISEL_MAP =
@@ -22,6 +32,17 @@ public class ChiselItem extends Item {
                     Blocks.OAK_WOOD, Blocks.DIAMOND_BLOCK
             );
 
+    // Largest region a single chisel use may cover
+    public static final int MAX_REGION_VOLUME = 64 * 64 * 64;
+    // Region mode wears the chisel by one point per this many converted blocks
+    private static final int BLOCKS_PER_DURABILITY = 32;
+
+    // First corner picked by each player in region mode, per dimension, server side only
+    private static final Map<CornerKey, BlockPos> FIRST_CORNERS = new HashMap<>();
+
+    private record CornerKey(UUID player, ResourceKey<Level> dimension) {
+    }
+
     public ChiselItem(Properties pProperties) {
         super(pProperties);
     }
@@ -29,6 +50,15 @@ public class ChiselItem extends Item {
     @Override
     public InteractionResult useOn(UseOnContext pContext) {
         Level level = pContext.getLevel();
+
+        // Sneak-clicking picks the corners of a region instead of chiseling one block
+        if(pContext.isSecondaryUseActive() && pContext.getPlayer() != null) {
+            if(!level.isClientSide()) {
+                selectCorner(pContext);
+            }
+            return InteractionResult.SUCCESS;
+        }
+
         Block clickedBlock = level.getBlockState(pContext.getClickedPos()).getBlock();
 
         if(CHISEL_MAP.containsKey(clickedBlock)) {
@@ -45,4 +75,127 @@ public class ChiselItem extends Item {
         return InteractionResult.SUCCESS;
 
     }
+
+    private void selectCorner(UseOnContext pContext) {
+        Player player = pContext.getPlayer();
+        BlockPos clicked = pContext.getClickedPos();
+        CornerKey key = new CornerKey(player.getUUID(), pContext.getLevel().dimension());
+        BlockPos first = FIRST_CORNERS.remove(key);
+        if(first == null) {
+            FIRST_CORNERS.put(key, clicked);
+            player.sendSystemMessage(Component.literal("First corner set, sneak-click the opposite corner"));
+            return;
+        }
+
+        if(!player.mayBuild()) {
+            player.sendSystemMessage(Component.literal("You don't have permission to build here"));
+            return;
+        }
+
+        Level level = pContext.getLevel();
+        BlockWriteBuffer writes = new BlockWriteBuffer();
+        int count = chiselRegion(level, first, clicked, writes);
+        if(count < 0) {
+            player.sendSystemMessage(Component.literal("Region is too large, the limit is " + MAX_REGION_VOLUME + " blocks"));
+            return;
+        }
+        if(count == 0) {
+            player.sendSystemMessage(Component.literal("Nothing to chisel in that region"));
+            return;
+        }
+
+        // The flush skips chunks whose neighbours are still loading; those writes are dropped
+        // along with the buffer's chunk tickets rather than left for a flush that never comes
+        int placed = writes.flush(level, Integer.MAX_VALUE);
+        writes.clear();
+        if(placed == 0) {
+            player.sendSystemMessage(Component.literal("That region is still loading, try again in a moment"));
+            return;
+        }
+
+        int damage = (placed + BLOCKS_PER_DURABILITY - 1) / BLOCKS_PER_DURABILITY;
+        pContext.getItemInHand().hurtAndBreak(damage, ((ServerLevel) level), ((ServerPlayer) player),
+                item -> player.onEquippedItemBroken(item, EquipmentSlot.MAINHAND) );
+
+        BlockPos center = new BlockPos((first.getX() + clicked.getX()) / 2, (first.getY() + clicked.getY()) / 2,
+                (first.getZ() + clicked.getZ()) / 2);
+        level.playSound(null, center, SoundEvents.GRINDSTONE_USE, SoundSource.BLOCKS);
+        player.sendSystemMessage(Component.literal("Chiseled " + placed + " blocks"
+                + (placed < count ? ", " + (count - placed) + " in chunks that were still loading were skipped" : "")));
+    }
+
+    // Forgets the corners a player picked, called when they log out
+    public static void forgetCorners(UUID player) {
+        FIRST_CORNERS.keySet().removeIf(key -> key.player().equals(player));
+    }
+
+    // Queues the chiseled form of every mappable block between the two corners into writes.
+    // The region is scanned one chunk section at a time, and sections whose palette has no
+    // mappable block are skipped without looking at their blocks. Writes already queued in
+    // the buffer take the place of the world's blocks, so scripts can chisel what they built.
+    // Chunks that aren't loaded are never loaded here, only the writes queued in them are chiseled.
+    // Returns the number of blocks queued, or -1 if the region is larger than MAX_REGION_VOLUME.
+    public static int chiselRegion(Level level, BlockPos from, BlockPos to, BlockWriteBuffer writes) {
+        int minX = Math.min(from.getX(), to.getX());
+        int minY = Math.max(Math.min(from.getY(), to.getY()), level.getMinBuildHeight());
+        int minZ = Math.min(from.getZ(), to.getZ());
+        int maxX = Math.max(from.getX(), to.getX());
+        int maxY = Math.min(Math.max(from.getY(), to.getY()), level.getMaxBuildHeight() - 1);
+        int maxZ = Math.max(from.getZ(), to.getZ());
+        if(maxY < minY) {
+            return 0;
+        }
+        if((long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1) > MAX_REGION_VOLUME) {
+            return -1;
+        }
+
+        int count = 0;
+        for(int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for(int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                LevelChunk chunk = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+                boolean queuedHere = writes.hasWritesInChunk(chunkX, chunkZ);
+                if(chunk == null && !queuedHere) {
+                    continue;
+                }
+                for(int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+                    LevelChunkSection section = chunk != null ? chunk.getSection(level.getSectionIndex(sectionY << 4)) : null;
+                    boolean mappable = section != null && !section.hasOnlyAir() && section.maybeHas(ChiselItem::isChiselable);
+                    if(!mappable && !queuedHere) {
+                        continue;
+                    }
+                    count += chiselSection(mappable ? section : null, chunkX << 4, sectionY << 4, chunkZ << 4,
+                            minX, minY, minZ, maxX, maxY, maxZ, writes);
+                }
+            }
+        }
+        return count;
+    }
+
+    // A null section has nothing mappable, so only queued writes are looked at
+    private static int chiselSection(LevelChunkSection section, int baseX, int baseY, int baseZ,
+                                     int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                                     BlockWriteBuffer writes) {
+        int count = 0;
+        for(int y = Math.max(minY, baseY); y <= Math.min(maxY, baseY + 15); y++) {
+            for(int z = Math.max(minZ, baseZ); z <= Math.min(maxZ, baseZ + 15); z++) {
+                for(int x = Math.max(minX, baseX); x <= Math.min(maxX, baseX + 15); x++) {
+                    BlockState state = writes.getPending(x, y, z);
+                    if(state == null) {
+                        if(section == null) continue;
+                        state = section.getBlockState(x & 15, y & 15, z & 15);
+                    }
+                    Block chiseled = CHISEL_MAP.get(state.getBlock());
+                    if(chiseled != null) {
+                        writes.add(new BlockPos(x, y, z), chiseled.defaultBlockState());
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean isChiselable(BlockState state) {
+        return CHISEL_MAP.containsKey(state.getBlock());
+    }
 }
@@ -0,0 +1,9 @@
+package net.chris.mcscript.item.custom;
+
+// A loop turned into JVM bytecode by LoopCompiler.
+// Runs whole iterations until the loop ends or the instruction budget is used up.
+public interface CompiledLoop {
+    // State holds the loop's position and its variables in the layout described in LoopCompiler.
+    // Returns how many instructions ran, counted the same way the interpreter counts them.
+    long run(MCScriptInterpreter interpreter, int[] state, long budget);
+}
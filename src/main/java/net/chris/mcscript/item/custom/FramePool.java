@@ -0,0 +1,22 @@
+package net.chris.mcscript.item.custom;
+
+import java.util.ArrayDeque;
+
+// Recycles call frames so deep or hot call paths don't allocate a frame per call
+public class FramePool {
+    private static final int MAX_POOLED = 64;
+
+    private final ArrayDeque<CallFrame> free = new ArrayDeque<>();
+
+    public CallFrame acquire() {
+        CallFrame frame = free.poll();
+        return frame != null ? frame : new CallFrame();
+    }
+
+    public void release(CallFrame frame) {
+        frame.clear();
+        if (free.size() < MAX_POOLED) {
+            free.push(frame);
+        }
+    }
+}
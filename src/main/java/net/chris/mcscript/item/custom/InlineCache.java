@@ -0,0 +1,173 @@
+package net.chris.mcscript.item.custom;
+
+import net.chris.mcscript.runtime.RuntimeSettings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+// Quickened forms of the While conditions, If conditions and arithmetic a script evaluates.
+// The interpreter works from source text, so every evaluation of "x < 10" splits and trims it and tries each
+// kind of operand in turn. The first time a piece of text is evaluated it is parsed into a Site instead,
+// whose operands are integer literals, string literals or plain variable names, and the site then keeps
+// the operand types it has seen: once they were integers it runs as an int comparison or int arithmetic,
+// once they were strings an If == runs as String.equals. Each run checks the types again first, and when
+// that guard fails the interpreter evaluates the text the old way, with the same results and messages.
+// A site whose guard keeps failing is rewritten back to its generic form for good. Text with any other
+// kind of operand, such as element reads, world queries or function calls, is always evaluated the old way.
+// Sites are kept per interpreter, like loop profiles, and are not saved in checkpoints.
+class InlineCache {
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    // Guard failures after which a site goes back to its generic form
+    static final int MAX_DEOPTS = 16;
+
+    // Operand kinds
+    static final int LITERAL = 0;
+    static final int STRING = 1;
+    static final int VARIABLE = 2;
+
+    // Forms a site is rewritten to as it runs
+    static final int UNSEEN = 0;
+    static final int INTS = 1;
+    static final int STRINGS = 2;
+    // For ==, Object.equals on the operands; for anything else, the interpreter's own code
+    static final int GENERIC = 3;
+
+    // A literal's value, or the name of the variable to read
+    record Operand(int kind, Object value, String name) {
+    }
+
+    // op is one of < > = for comparisons, + - * / for arithmetic, or % for x % d == r.
+    // For % the operands are x, d and r; otherwise left and right with third unused.
+    static final class Site {
+        final String text;
+        final char op;
+        final Operand left;
+        final Operand right;
+        final Operand third;
+        int form = UNSEEN;
+        int deopts;
+
+        Site(String text, char op, Operand left, Operand right, Operand third) {
+            this.text = text;
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.third = third;
+        }
+
+        // Called when a guard fails
+        void deoptimize() {
+            if (++deopts >= MAX_DEOPTS) {
+                form = GENERIC;
+            }
+        }
+    }
+
+    // Stands for text that can't be quickened, so it isn't parsed again
+    private static final Site NONE = new Site(null, (char) 0, null, null, null);
+
+    private final Map<String, Site> whileSites = new HashMap<>();
+    private final Map<String, Site> arithmeticSites = new HashMap<>();
+    private final Map<String, Site> conditionSites = new HashMap<>();
+
+    // Follows evaluateWhileCondition, returns null if the condition can't be quickened
+    Site whileSite(String condition) {
+        return site(whileSites, condition, this::parseWhile);
+    }
+
+    // Follows evaluateArithmeticExpression
+    Site arithmeticSite(String expression) {
+        return site(arithmeticSites, expression, this::parseArithmetic);
+    }
+
+    // Follows evaluateCondition for an If or Elif line
+    Site conditionSite(String line) {
+        return site(conditionSites, line, this::parseCondition);
+    }
+
+    private Site site(Map<String, Site> sites, String text, Function<String, Site> parser) {
+        Site site = sites.get(text);
+        if (site == null) {
+            // Past RuntimeSettings.inlineCacheSites, any other text is evaluated the old way
+            if (sites.size() >= RuntimeSettings.get().inlineCacheSites()) return null;
+            site = parser.apply(text);
+            sites.put(text, site != null ? site : NONE);
+        }
+        return site == NONE ? null : site;
+    }
+
+    private Site parseWhile(String condition) {
+        for (String op : new String[]{"<", ">", "=="}) {
+            if (condition.contains(op)) {
+                String[] parts = condition.split(op);
+                if (parts.length < 2) return null;
+                Operand left = intOperand(parts[0].trim());
+                Operand right = intOperand(parts[1].trim());
+                if (left == null || right == null) return null;
+                return new Site(condition, op.charAt(0), left, right, null);
+            }
+        }
+        return null;
+    }
+
+    private Site parseArithmetic(String expression) {
+        for (String op : new String[]{"+", "-", "*", "/"}) {
+            if (expression.contains(op)) {
+                String[] parts = expression.split(Pattern.quote(op));
+                if (parts.length < 2) return null;
+                Operand left = intOperand(parts[0].trim());
+                Operand right = intOperand(parts[1].trim());
+                if (left == null || right == null) return null;
+                return new Site(expression, op.charAt(0), left, right, null);
+            }
+        }
+        return null;
+    }
+
+    private Site parseCondition(String line) {
+        int open = line.indexOf("(");
+        int close = line.lastIndexOf(")");
+        if (open == -1 || close == -1 || close < open) return null;
+        String condition = line.substring(open + 1, close).trim();
+
+        if (condition.contains("%")) {
+            String[] parts = condition.split("%");
+            if (parts.length < 2) return null;
+            String[] right = parts[1].split("==");
+            if (right.length != 2) return null;
+            String name = parts[0].trim();
+            Operand divisor = intOperand(right[0].trim());
+            Operand expected = intOperand(right[1].trim());
+            if (!IDENTIFIER.matcher(name).matches() || divisor == null || expected == null) return null;
+            return new Site(condition, '%', new Operand(VARIABLE, null, name), divisor, expected);
+        }
+        if (condition.contains("==")) {
+            String[] parts = condition.split("==");
+            if (parts.length < 2) return null;
+            Operand left = valueOperand(parts[0].trim());
+            Operand right = valueOperand(parts[1].trim());
+            if (left == null || right == null) return null;
+            return new Site(condition, '=', left, right, null);
+        }
+        return null;
+    }
+
+    // An integer literal or a variable name, as getValueForArithmetic and parseNumberParam read them
+    private static Operand intOperand(String text) {
+        Integer literal = ScriptValidator.parseLiteral(text);
+        if (literal != null) return new Operand(LITERAL, literal, null);
+        if (IDENTIFIER.matcher(text).matches()) return new Operand(VARIABLE, null, text);
+        return null;
+    }
+
+    // A string literal, integer literal or variable name, as getValueFromExpression reads them
+    private static Operand valueOperand(String text) {
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+            return new Operand(STRING, text.substring(1, text.length() - 1), null);
+        }
+        return intOperand(text);
+    }
+}
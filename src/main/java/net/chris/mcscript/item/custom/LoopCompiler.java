@@ -0,0 +1,615 @@
+package net.chris.mcscript.item.custom;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.world.level.block.Block;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Second execution tier: turns a hot loop into a hidden class the JVM can JIT like any other code.
+// Only loops built from integer arithmetic, conditions, print and placeBlock are compiled; anything else
+// stays in the interpreter. The code is specialised to the variables being integers when it was compiled,
+// so the interpreter checks that before each run and interprets the iteration instead if it no longer holds.
+//
+// The state array passed to CompiledLoop.run is laid out as:
+//   [0] For: the next loop index; While: set to 1 once the condition fails
+//   [1] For: the last loop index
+//   [2..] the loop's variables, in the order of Result.variables
+public class LoopCompiler implements Opcodes {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    // First array slot holding a variable
+    static final int FIRST_VARIABLE = 2;
+
+    private static final String CLASS_NAME = "net/chris/mcscript/item/custom/CompiledLoop$Tier2";
+    private static final String INTERPRETER = Type.getInternalName(MCScriptInterpreter.class);
+    private static final String BLOCK = Type.getInternalName(Block.class);
+    private static final String DIVISION_BY_ZERO = "Error: Division by zero";
+
+    // JVM locals of the generated run method
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int STATE_LOCAL = 2;
+    private static final int BUDGET_LOCAL = 3;
+    private static final int USED_LOCAL = 5;
+    private static final int INDEX_LOCAL = 7;
+    private static final int END_LOCAL = 8;
+    private static final int MATCHED_LOCAL = 9;
+    private static final int FIRST_VARIABLE_LOCAL = 10;
+
+    // Compiled code with the variables its state array carries; assigned marks those the loop writes
+    public record Result(CompiledLoop code, String[] variables, boolean[] assigned) {
+    }
+
+    // Operands are integer literals, the For index, or a variable held in a JVM local
+    private record Operand(int kind, int value) {
+        static final int LITERAL = 0;
+        static final int INDEX = 1;
+        static final int VARIABLE = 2;
+    }
+
+    // A single operand when op is 0, otherwise left op right
+    private record Expr(char op, Operand left, Operand right) {
+    }
+
+    // value % divisor == expected when op is '%', otherwise left op right with op one of <, > or =
+    private record Condition(char op, Operand left, Operand right, Operand expected) {
+    }
+
+    // One of: a message, a printed value, a block placement or an assignment
+    private record Statement(String message, Expr value, Operand[] position, int block, int target) {
+    }
+
+    // An If, Elif or Else line of a For loop together with the statement it guards
+    private record Clause(String keyword, Condition condition, Statement statement) {
+    }
+
+    private final MCScriptInterpreter interpreter;
+    private final String loopVariable;
+    private final List<String> variables = new ArrayList<>();
+    private final List<Boolean> assigned = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+
+    private LoopCompiler(MCScriptInterpreter interpreter, String loopVariable) {
+        this.interpreter = interpreter;
+        this.loopVariable = loopVariable;
+    }
+
+    // Compiles a For (x upto n) loop, whose body is every If chain in lines.
+    // Returns null if the loop uses anything the compiler doesn't support.
+    static Result compileFor(MCScriptInterpreter interpreter, String loopVariable, String[] lines) {
+        LoopCompiler compiler = new LoopCompiler(interpreter, loopVariable);
+        List<Clause> clauses = compiler.parseIfChains(lines);
+        if (clauses == null) return null;
+        return compiler.define(false, clauses, null, null);
+    }
+
+    // Compiles a While loop with the given condition and body, or returns null
+    static Result compileWhile(MCScriptInterpreter interpreter, String condition, String[] body) {
+        LoopCompiler compiler = new LoopCompiler(interpreter, null);
+        Condition parsedCondition = compiler.parseWhileCondition(condition);
+        if (parsedCondition == null) return null;
+
+        List<Statement> statements = new ArrayList<>();
+        for (String raw : body) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("//")) continue;
+            Statement statement = compiler.parseStatement(line);
+            if (statement == null) return null;
+            statements.add(statement);
+        }
+        return compiler.define(true, null, statements, parsedCondition);
+    }
+
+    // Follows evaluateIfStatements: every If, Elif and Else line, each guarding the next print or placeBlock
+    private List<Clause> parseIfChains(String[] lines) {
+        List<Clause> clauses = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            String keyword = line.startsWith("If") ? "If" : line.startsWith("Elif") ? "Elif" : line.startsWith("Else") ? "Else" : null;
+            if (keyword == null) continue;
+
+            Condition condition = null;
+            if (!keyword.equals("Else")) {
+                condition = parseIfCondition(line);
+                if (condition == null) return null;
+            }
+
+            // The guarded statement is only skipped over when its branch runs, so anything
+            // that would be read differently depending on the branch isn't supported
+            Statement statement = null;
+            int next = i + 1;
+            while (next < lines.length && (lines[next].trim().isEmpty() || lines[next].trim().startsWith("//"))) next++;
+            if (next < lines.length) {
+                String guarded = lines[next].trim();
+                if (!guarded.startsWith("print") && !guarded.startsWith("placeBlock")) return null;
+                statement = parseStatement(guarded);
+                if (statement == null) return null;
+                i = next;
+            }
+            clauses.add(new Clause(keyword, condition, statement));
+        }
+        return clauses;
+    }
+
+    // Follows evaluateCondition for x % d == r and a == b
+    private Condition parseIfCondition(String line) {
+        int open = line.indexOf('(');
+        int close = line.lastIndexOf(')');
+        if (open == -1 || close == -1 || close < open) return null;
+        String condition = line.substring(open + 1, close).trim();
+
+        if (condition.contains("%")) {
+            String[] parts = condition.split("%");
+            String[] right = parts.length > 1 ? parts[1].split("==") : new String[0];
+            if (right.length != 2) return null;
+            Operand value = operand(parts[0].trim());
+            Operand divisor = operand(right[0].trim());
+            Operand expected = operand(right[1].trim());
+            if (value == null || value.kind() == Operand.LITERAL || divisor == null || expected == null) return null;
+            return new Condition('%', value, divisor, expected);
+        }
+        if (condition.contains("==")) {
+            String[] parts = condition.split("==");
+            if (parts.length < 2) return null;
+            return comparison('=', parts[0], parts[1]);
+        }
+        return null;
+    }
+
+    // Follows evaluateWhileCondition
+    private Condition parseWhileCondition(String condition) {
+        for (String op : new String[]{"<", ">", "=="}) {
+            if (condition.contains(op)) {
+                String[] parts = condition.split(op);
+                if (parts.length < 2) return null;
+                return comparison(op.charAt(0), parts[0], parts[1]);
+            }
+        }
+        return null;
+    }
+
+    private Condition comparison(char op, String left, String right) {
+        Operand leftOperand = operand(left.trim());
+        Operand rightOperand = operand(right.trim());
+        if (leftOperand == null || rightOperand == null) return null;
+        return new Condition(op, leftOperand, rightOperand, null);
+    }
+
+    // Follows executeStatement for the statements the compiler supports
+    private Statement parseStatement(String line) {
+        int paren = line.indexOf('(');
+        if (paren > 0 && interpreter.isFunctionName(line.substring(0, paren).trim())) return null;
+
+        if (line.startsWith("print")) {
+            return parsePrint(line);
+        }
+        if (line.startsWith("placeBlock")) {
+            return parsePlaceBlock(line);
+        }
+        for (String keyword : new String[]{"Let", "Return", "parallel", "For", "While", "wait", "yield", "If", "Elif", "Else",
+                "placeAll", "chiselRegion", "placeWall", "copy(", "paste(", "placeStructure(", "saveClipboard(", "loadClipboard(", "push", "addCoord", "spawn"}) {
+            if (line.startsWith(keyword)) return null;
+        }
+        if (line.contains("=")) {
+            return parseAssignment(line);
+        }
+        return null;
+    }
+
+    // Follows executePrint: arithmetic, a variable, or a string literal
+    private Statement parsePrint(String line) {
+        int start = line.indexOf("print(");
+        int end = line.lastIndexOf(')');
+        if (start == -1 || end < start + 6) return null;
+        String content = line.substring(start + 6, end).trim();
+
+        if (hasOperator(content)) {
+            Expr value = arithmetic(content);
+            return value == null ? null : new Statement(null, value, null, -1, -1);
+        }
+        if (IDENTIFIER.matcher(content).matches()) {
+            Operand value = operand(content);
+            return value == null ? null : new Statement(null, new Expr((char) 0, value, null), null, -1, -1);
+        }
+        if (content.length() >= 2 && content.startsWith("\"") && content.endsWith("\"")) {
+            return new Statement(content.substring(1, content.length() - 1), null, null, -1, -1);
+        }
+        return null;
+    }
+
+    // Follows handlePlaceBlock
+    private Statement parsePlaceBlock(String line) {
+        int start = line.indexOf("placeBlock(");
+        int end = line.lastIndexOf(')');
+        if (start == -1 || end < start + 11) return null;
+        String[] params = line.substring(start + 11, end).trim().split(",", -1);
+        if (params.length != 4) return null;
+
+        Operand[] position = new Operand[3];
+        for (int i = 0; i < 3; i++) {
+            position[i] = operand(params[i].trim());
+            if (position[i] == null) return null;
+        }
+        String blockType = params[3].trim();
+        if (blockType.length() >= 2 && blockType.startsWith("\"") && blockType.endsWith("\"")) {
+            blockType = blockType.substring(1, blockType.length() - 1);
+        }
+        Block block = interpreter.getBlockType(blockType);
+        if (block == null) return null;
+
+        constants.add(block);
+        return new Statement(null, null, position, constants.size() - 1, -1);
+    }
+
+    // Follows handleAssignment for name = arithmetic, name = variable and name = literal
+    private Statement parseAssignment(String line) {
+        String[] parts = line.split("=");
+        if (parts.length != 2) return null;
+        String target = parts[0].trim();
+        String expression = parts[1].trim();
+        if (expression.endsWith(";")) {
+            expression = expression.substring(0, expression.length() - 1).trim();
+        }
+        if (!IDENTIFIER.matcher(target).matches() || !interpreter.isIntVariable(target)) return null;
+
+        Expr value;
+        if (ScriptValidator.parseLiteral(expression) == null && hasOperator(expression)) {
+            value = arithmetic(expression);
+        } else {
+            Operand operand = operand(expression);
+            value = operand == null ? null : new Expr((char) 0, operand, null);
+        }
+        if (value == null) return null;
+
+        int slot = variable(target);
+        assigned.set(slot, true);
+        return new Statement(null, value, null, -1, slot);
+    }
+
+    // Follows evaluateArithmeticExpression, which applies the first operator it finds to the first two operands
+    private Expr arithmetic(String expression) {
+        char op = expression.contains("+") ? '+' : expression.contains("-") ? '-' : expression.contains("*") ? '*' : '/';
+        String[] parts = expression.split(Pattern.quote(String.valueOf(op)));
+        if (parts.length < 2) return null;
+        Operand left = operand(parts[0].trim());
+        Operand right = operand(parts[1].trim());
+        if (left == null || right == null) return null;
+        return new Expr(op, left, right);
+    }
+
+    // An integer literal, the For index or an integer variable; null for anything else
+    private Operand operand(String text) {
+        Integer literal = ScriptValidator.parseLiteral(text);
+        if (literal != null) {
+            return new Operand(Operand.LITERAL, literal);
+        }
+        if (!IDENTIFIER.matcher(text).matches()) return null;
+        if (text.equals(loopVariable)) {
+            return new Operand(Operand.INDEX, 0);
+        }
+        if (!interpreter.isIntVariable(text)) return null;
+        return new Operand(Operand.VARIABLE, variable(text));
+    }
+
+    private int variable(String name) {
+        int slot = variables.indexOf(name);
+        if (slot == -1) {
+            variables.add(name);
+            assigned.add(false);
+            slot = variables.size() - 1;
+        }
+        return slot;
+    }
+
+    private static boolean hasOperator(String text) {
+        return text.contains("+") || text.contains("-") || text.contains("*") || text.contains("/");
+    }
+
+    // Generates the class and loads it next to the interpreter so it can call its package-private methods
+    private Result define(boolean isWhile, List<Clause> clauses, List<Statement> statements, Condition whileCondition) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        writer.visit(V17, ACC_FINAL | ACC_SUPER, CLASS_NAME, null, "java/lang/Object",
+                new String[]{Type.getInternalName(CompiledLoop.class)});
+        writer.visitField(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;", null, null).visitEnd();
+
+        MethodVisitor init = writer.visitMethod(0, "<init>", "([Ljava/lang/Object;)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitFieldInsn(PUTFIELD, CLASS_NAME, "constants", "[Ljava/lang/Object;");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor run = writer.visitMethod(ACC_PUBLIC, "run", "(L" + INTERPRETER + ";[IJ)J", null, null);
+        run.visitCode();
+        emitPrologue(run, isWhile);
+        if (isWhile) {
+            emitWhile(run, statements, whileCondition);
+        } else {
+            emitFor(run, clauses);
+        }
+        run.visitMaxs(0, 0);
+        run.visitEnd();
+        writer.visitEnd();
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+            CompiledLoop code = (CompiledLoop) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class)).invoke(constants.toArray());
+
+            boolean[] writes = new boolean[assigned.size()];
+            for (int i = 0; i < writes.length; i++) writes[i] = assigned.get(i);
+            return new Result(code, variables.toArray(new String[0]), writes);
+        } catch (Throwable e) {
+            LOGGER.warn("Could not compile MCSL loop: {}", e.toString());
+            return null;
+        }
+    }
+
+    // Copies the state array into locals: index and end, then variables, then the blocks placed
+    private void emitPrologue(MethodVisitor mv, boolean isWhile) {
+        mv.visitInsn(LCONST_0);
+        mv.visitVarInsn(LSTORE, USED_LOCAL);
+        if (isWhile) {
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, INDEX_LOCAL);
+        } else {
+            loadState(mv, 0);
+            mv.visitVarInsn(ISTORE, INDEX_LOCAL);
+            loadState(mv, 1);
+            mv.visitVarInsn(ISTORE, END_LOCAL);
+        }
+        for (int i = 0; i < variables.size(); i++) {
+            loadState(mv, FIRST_VARIABLE + i);
+            mv.visitVarInsn(ISTORE, FIRST_VARIABLE_LOCAL + i);
+        }
+        for (int i = 0; i < constants.size(); i++) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, CLASS_NAME, "constants", "[Ljava/lang/Object;");
+            pushInt(mv, i);
+            mv.visitInsn(AALOAD);
+            mv.visitTypeInsn(CHECKCAST, BLOCK);
+            mv.visitVarInsn(ASTORE, blockLocal(i));
+        }
+    }
+
+    // Writes the index or exit flag and the assigned variables back, and returns the instructions used
+    private void emitEpilogue(MethodVisitor mv) {
+        storeState(mv, 0, INDEX_LOCAL);
+        for (int i = 0; i < variables.size(); i++) {
+            if (assigned.get(i)) storeState(mv, FIRST_VARIABLE + i, FIRST_VARIABLE_LOCAL + i);
+        }
+        mv.visitVarInsn(LLOAD, USED_LOCAL);
+        mv.visitInsn(LRETURN);
+    }
+
+    // One instruction per iteration like stepForLoop, then the If chains as evaluateIfStatements runs them
+    private void emitFor(MethodVisitor mv, List<Clause> clauses) {
+        Label loop = new Label();
+        Label exit = new Label();
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, INDEX_LOCAL);
+        mv.visitVarInsn(ILOAD, END_LOCAL);
+        mv.visitJumpInsn(IF_ICMPGT, exit);
+        emitBudgetCheck(mv, exit);
+        countInstruction(mv);
+
+        Label bodyEnd = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, MATCHED_LOCAL);
+        for (Clause clause : clauses) {
+            Label next = new Label();
+            if (clause.keyword().equals("If")) {
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, MATCHED_LOCAL);
+            } else {
+                mv.visitVarInsn(ILOAD, MATCHED_LOCAL);
+                mv.visitJumpInsn(IFNE, next);
+            }
+            countInstruction(mv);
+            if (clause.condition() != null) {
+                emitCondition(mv, clause.condition(), next);
+            }
+            mv.visitInsn(ICONST_1);
+            mv.visitVarInsn(ISTORE, MATCHED_LOCAL);
+            if (clause.statement() != null) {
+                countInstruction(mv);
+                emitStatement(mv, clause.statement());
+            }
+            // A taken If ends the scan of the loop's lines
+            if (clause.keyword().equals("If")) {
+                mv.visitJumpInsn(GOTO, bodyEnd);
+            }
+            mv.visitLabel(next);
+        }
+        mv.visitLabel(bodyEnd);
+
+        mv.visitIincInsn(INDEX_LOCAL, 1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(exit);
+        emitEpilogue(mv);
+    }
+
+    // The body's statements, then the condition check that ends each round of a While loop
+    private void emitWhile(MethodVisitor mv, List<Statement> statements, Condition condition) {
+        Label loop = new Label();
+        Label done = new Label();
+        Label exit = new Label();
+        mv.visitLabel(loop);
+        for (Statement statement : statements) {
+            countInstruction(mv);
+            emitStatement(mv, statement);
+        }
+        countInstruction(mv);
+        emitCondition(mv, condition, done);
+        emitBudgetCheck(mv, exit);
+        mv.visitJumpInsn(GOTO, loop);
+
+        mv.visitLabel(done);
+        mv.visitInsn(ICONST_1);
+        mv.visitVarInsn(ISTORE, INDEX_LOCAL);
+        mv.visitLabel(exit);
+        emitEpilogue(mv);
+    }
+
+    // Jumps to whenFalse unless the condition holds
+    private void emitCondition(MethodVisitor mv, Condition condition, Label whenFalse) {
+        switch (condition.op()) {
+            case '%' -> {
+                Label divide = new Label();
+                if (!isNonZeroLiteral(condition.right())) {
+                    loadOperand(mv, condition.right());
+                    mv.visitJumpInsn(IFNE, divide);
+                    emitMessage(mv, DIVISION_BY_ZERO);
+                    mv.visitJumpInsn(GOTO, whenFalse);
+                }
+                mv.visitLabel(divide);
+                loadOperand(mv, condition.left());
+                loadOperand(mv, condition.right());
+                mv.visitInsn(IREM);
+                loadOperand(mv, condition.expected());
+                mv.visitJumpInsn(IF_ICMPNE, whenFalse);
+            }
+            case '<' -> compare(mv, condition, IF_ICMPGE, whenFalse);
+            case '>' -> compare(mv, condition, IF_ICMPLE, whenFalse);
+            default -> compare(mv, condition, IF_ICMPNE, whenFalse);
+        }
+    }
+
+    private void compare(MethodVisitor mv, Condition condition, int jumpWhenFalse, Label whenFalse) {
+        loadOperand(mv, condition.left());
+        loadOperand(mv, condition.right());
+        mv.visitJumpInsn(jumpWhenFalse, whenFalse);
+    }
+
+    private void emitStatement(MethodVisitor mv, Statement statement) {
+        if (statement.message() != null) {
+            emitMessage(mv, statement.message());
+        } else if (statement.position() != null) {
+            // World writes go straight to the interpreter, which queues them like an interpreted placeBlock
+            mv.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            for (Operand coordinate : statement.position()) {
+                loadOperand(mv, coordinate);
+            }
+            mv.visitVarInsn(ALOAD, blockLocal(statement.block()));
+            mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "jitPlaceBlock", "(IIIL" + BLOCK + ";)V", false);
+        } else if (statement.target() >= 0) {
+            emitExpr(mv, statement.value());
+            mv.visitVarInsn(ISTORE, FIRST_VARIABLE_LOCAL + statement.target());
+        } else {
+            mv.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            emitExpr(mv, statement.value());
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf", "(I)Ljava/lang/String;", false);
+            mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "jitMessage", "(Ljava/lang/String;)V", false);
+        }
+    }
+
+    private void emitExpr(MethodVisitor mv, Expr expr) {
+        loadOperand(mv, expr.left());
+        if (expr.op() == 0) return;
+        loadOperand(mv, expr.right());
+        switch (expr.op()) {
+            case '+' -> mv.visitInsn(IADD);
+            case '-' -> mv.visitInsn(ISUB);
+            case '*' -> mv.visitInsn(IMUL);
+            default -> {
+                if (isNonZeroLiteral(expr.right())) {
+                    mv.visitInsn(IDIV);
+                    return;
+                }
+                // Dividing by zero reports the error and gives 0, as the interpreter does
+                Label divide = new Label();
+                Label done = new Label();
+                mv.visitInsn(DUP);
+                mv.visitJumpInsn(IFNE, divide);
+                mv.visitInsn(POP2);
+                emitMessage(mv, DIVISION_BY_ZERO);
+                mv.visitInsn(ICONST_0);
+                mv.visitJumpInsn(GOTO, done);
+                mv.visitLabel(divide);
+                mv.visitInsn(IDIV);
+                mv.visitLabel(done);
+            }
+        }
+    }
+
+    private void loadOperand(MethodVisitor mv, Operand operand) {
+        switch (operand.kind()) {
+            case Operand.LITERAL -> pushInt(mv, operand.value());
+            case Operand.INDEX -> mv.visitVarInsn(ILOAD, INDEX_LOCAL);
+            default -> mv.visitVarInsn(ILOAD, FIRST_VARIABLE_LOCAL + operand.value());
+        }
+    }
+
+    private void emitMessage(MethodVisitor mv, String message) {
+        mv.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        mv.visitLdcInsn(message);
+        mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "jitMessage", "(Ljava/lang/String;)V", false);
+    }
+
+    // Leaves the loop once the instructions used reach the budget
+    private static void emitBudgetCheck(MethodVisitor mv, Label exit) {
+        mv.visitVarInsn(LLOAD, USED_LOCAL);
+        mv.visitVarInsn(LLOAD, BUDGET_LOCAL);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFGE, exit);
+    }
+
+    private static void countInstruction(MethodVisitor mv) {
+        mv.visitVarInsn(LLOAD, USED_LOCAL);
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LADD);
+        mv.visitVarInsn(LSTORE, USED_LOCAL);
+    }
+
+    private static void loadState(MethodVisitor mv, int index) {
+        mv.visitVarInsn(ALOAD, STATE_LOCAL);
+        pushInt(mv, index);
+        mv.visitInsn(IALOAD);
+    }
+
+    private static void storeState(MethodVisitor mv, int index, int local) {
+        mv.visitVarInsn(ALOAD, STATE_LOCAL);
+        pushInt(mv, index);
+        mv.visitVarInsn(ILOAD, local);
+        mv.visitInsn(IASTORE);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private static boolean isNonZeroLiteral(Operand operand) {
+        return operand.kind() == Operand.LITERAL && operand.value() != 0;
+    }
+
+    private int blockLocal(int constant) {
+        return FIRST_VARIABLE_LOCAL + variables.size() + constant;
+    }
+}
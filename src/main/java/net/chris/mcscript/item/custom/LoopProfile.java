@@ -0,0 +1,33 @@
+package net.chris.mcscript.item.custom;
+
+// How often one loop of a script has run, and its compiled code once it has run often enough.
+// Profiles are kept per interpreter and are not saved in checkpoints.
+public class LoopProfile {
+    // Iterations a loop runs in the interpreter before it is compiled, unless the config sets another
+    public static final int COMPILE_THRESHOLD = 1000;
+    // Guard failures after which the compiled code is dropped for good
+    public static final int MAX_DEOPTS = 16;
+
+    // A loop is identified by the lines it was written in, compared by identity, and the line of its For or While
+    public record Key(String[] lines, int line) {
+    }
+
+    int iterations;
+    int deopts;
+    // Set once the loop turned out to need something the compiler doesn't support
+    boolean uncompilable;
+    LoopCompiler.Result compiled;
+
+    // Counts an interpreted iteration and says whether the loop should now be compiled
+    boolean isHot(int threshold) {
+        return compiled == null && !uncompilable && ++iterations >= threshold;
+    }
+
+    // Called when a guard fails; once the loop has fallen back too often its code is dropped
+    void deoptimize() {
+        if (++deopts >= MAX_DEOPTS) {
+            compiled = null;
+            uncompilable = true;
+        }
+    }
+}
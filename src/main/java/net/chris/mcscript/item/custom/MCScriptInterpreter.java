@@ -1,33 +1,126 @@
 package net.chris.mcscript.item.custom;
 
+import net.chris.mcscript.runtime.BlockReadCache;
+import net.chris.mcscript.runtime.BlockWriteBuffer;
+import net.chris.mcscript.runtime.Clipboard;
+import net.chris.mcscript.runtime.ExecutionEngine;
+import net.chris.mcscript.runtime.ExecutionState;
+import net.chris.mcscript.runtime.RuntimeSettings;
+import net.chris.mcscript.runtime.ScriptHandler;
+import net.chris.mcscript.runtime.ScriptOutput;
+import net.chris.mcscript.runtime.ScriptMetrics;
+import net.chris.mcscript.runtime.ScriptTemplates;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
-import net.minecraft.network.chat.Component;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.Mirror;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.sounds.SoundEvents;
+import net.minecraft.sounds.SoundSource;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MCScriptInterpreter{
-    private Map<String, Object> variables;
+    // Deepest the call stack may grow before the script is stopped
+    private static final int MAX_CALL_DEPTH = 256;
+    // Most diagnostics shown when a script is rejected, the rest are only counted
+    private static final int MAX_REPORTED_DIAGNOSTICS = 20;
+    private static final Pattern CALL_PATTERN = Pattern.compile("^([A-Za-z_][A-Za-z0-9_]*)\\s*\\((.*)\\)\\s*;?$");
+    private static final Pattern INDEX_PATTERN = Pattern.compile("^([A-Za-z_][A-Za-z0-9_]*)\\[(.+)\\]$");
+    private static final Pattern LEN_PATTERN = Pattern.compile("^len\\(\\s*([A-Za-z_][A-Za-z0-9_]*)\\s*\\)$");
+    private static final Pattern FUNC_PATTERN = Pattern.compile("^Func\\s+([A-Za-z_][A-Za-z0-9_]*)\\s*\\(([^)]*)\\)\\s*\\{?$");
+    private static final Pattern ON_PATTERN = Pattern.compile("^On\\s+([A-Za-z]+)\\s*(?:\\((.*)\\))?\\s*\\{?$");
+    private static final Pattern WORLD_QUERY_PATTERN = Pattern.compile("^(getBlock|isAir|heightAt)\\s*\\((.*)\\)$");
+    private static final Pattern FILTER_PATTERN = Pattern.compile("^([A-Za-z_]+)\\s*=\\s*\"?([^\"]*)\"?$");
+
+    // Package-private state is saved and restored by ScriptCheckpoint
+    Map<String, Object> variables;
+    Map<String, ScriptFunction> functions;
+    final ArrayDeque<CallFrame> callStack = new ArrayDeque<>();
+    final FramePool framePool = new FramePool();
+    boolean aborted;
+    // Ticks to sleep before resuming, set by wait() and yield
+    int waitTicks;
+    String source;
+    String[] mainLines;
+    // True when the main frame runs an On block body instead of the script's top level
+    boolean customMain;
+    // On blocks found while loading, registered by the caller
+    private final List<ScriptHandler> handlers = new ArrayList<>();
+    // Problems found when the script was loaded; a script with any is not run
+    private List<ScriptDiagnostic> diagnostics = List.of();
+    // Integer literals of the source, resolved once when it is loaded
+    private Map<String, Integer> literals = Map.of();
+    // Where the script was started from; positions are relative to this, not to where the player is now
+    BlockPos origin;
+    Direction facing;
+    UUID ownerId;
+    // Block placements waiting to be written to the world
+    final BlockWriteBuffer writeBuffer = new BlockWriteBuffer();
+    // Blocks captured by copy(), pasted by paste()
+    Clipboard clipboard;
+    // Worker threads running the current parallel For, not saved in checkpoints
+    private ParallelForJob parallelJob;
+    // Set on a worker interpreter of a parallel For; its messages are collected here instead of sent
+    private List<String> workerOutput;
+    // World reads for getBlock, isAir, heightAt and copy, created on first use
+    private BlockReadCache readCache;
+    // How often each loop has run, for compiling the hot ones
+    private final Map<LoopProfile.Key, LoopProfile> loopProfiles = new HashMap<>();
     private Map<String, Block> blockTypes;
+    private final Map<Block, String> blockNames = new HashMap<>();
     private Map<String, net.minecraft.world.entity.EntityType<?>> mobTypes;
     private Player player;
+    // Everything the script prints, delivered to the player by ScriptChat
+    private final ScriptOutput output;
     private Level level;
-    private boolean debug = true; // Set to true to see detailed debug messages
-
+    // Detailed debug messages, from the traceLevel config entry
+    private boolean debug;
+    // Set for an estimate: writes are only queued, and nothing is spawned, saved, printed or counted in the metrics
+    private boolean dryRun;
+    // Mobs spawned, or that a dry run would have spawned
+    int spawns;
+    // Told about everything the script does when engines are being compared, null normally
+    private ScriptTrace trace;
+    // Iterations before a loop is compiled, 0 for never
+    private int jitThreshold;
+    // Quickened conditions and arithmetic, null when quickening is off
+    private InlineCache inlineCache;
+    private final ScriptMetrics metrics = ScriptMetrics.get();
+    long instructionCount;
+    // Heap this execution holds, measured again once instructionCount reaches nextMemoryCheck
+    private final ScriptMemory memory = new ScriptMemory();
+    private long nextMemoryCheck;
+    // String literals by their quoted text, so a Let in a loop doesn't make a new string every time
+    private final Map<String, String> strings = new HashMap<>();
+
+    // The player may be null for a script restored while its owner is offline
     public MCScriptInterpreter(Player player, Level level) {
         this.variables = new HashMap<>();
+        this.functions = new HashMap<>();
         this.blockTypes = new HashMap<>();
         this.mobTypes = new HashMap<>();
         this.player = player;
+        this.output = new ScriptOutput(player);
         this.level = level;
+        this.ownerId = player != null ? player.getUUID() : null;
+        this.origin = player != null ? player.blockPosition() : BlockPos.ZERO;
+        this.facing = player != null ? player.getDirection() : Direction.NORTH;
+        configure(RuntimeSettings.get());
 
         // Initialize block types
         initializeBlockTypes();
@@ -47,6 +140,9 @@ public class MCScriptInterpreter{
         blockTypes.put("glass", Blocks.GLASS);
         blockTypes.put("obsidian", Blocks.OBSIDIAN);
         blockTypes.put("air", Blocks.AIR);
+        for (Map.Entry<String, Block> entry : blockTypes.entrySet()) {
+            blockNames.put(entry.getValue(), entry.getKey());
+        }
 
         if (debug) {
             sendMessage("Initialized " + blockTypes.size() + " block types");
@@ -67,37 +163,685 @@ public class MCScriptInterpreter{
         mobTypes.put("enderman", net.minecraft.world.entity.EntityType.ENDERMAN);
     }
 
+    // Runs a whole script at once; wait() and yield don't pause when nothing is scheduling the script
     public void interpret(String code) {
-        String[] lines = code.split("\n");
+        load(code);
+        while (resume(Long.MAX_VALUE) == ExecutionState.WAITING) {
+            skipWait();
+        }
+        flushWrites(Integer.MAX_VALUE);
+    }
+
+    // Carries on straight away after a wait() or yield, once any parallel For has finished
+    public void skipWait() {
+        waitTicks = 0;
+        if (parallelJob != null) {
+            parallelJob.await();
+        }
+    }
+
+    // Turns this into a dry run for ScriptEstimator, before the script is loaded
+    void startDryRun() {
+        dryRun = true;
+        debug = false;
+    }
+
+    // Makes this a dry run that reports every write, spawn and message to trace, in order.
+    // ScriptFuzzTest uses it to compare execution engines.
+    public void recordTo(ScriptTrace trace) {
+        startDryRun();
+        this.trace = trace;
+        writeBuffer.setListener(trace);
+    }
+
+    // Iterations a loop runs before it is compiled, 0 to keep every loop in the interpreter.
+    // Loops are only compiled while debug messages are off.
+    public void setJitThreshold(int threshold) {
+        jitThreshold = threshold;
+    }
+
+    // Turns quickened conditions and arithmetic on or off, on by default
+    public void setQuickening(boolean quicken) {
+        inlineCache = quicken ? new InlineCache() : null;
+    }
+
+    // Takes the engine and trace level from the config, also for a script that is already running.
+    // Dry runs stay quiet, and quickened sites already seen are kept if quickening stays on.
+    public void configure(RuntimeSettings settings) {
+        memory.setLimit(settings.memoryLimit());
+        if (!dryRun) {
+            debug = settings.debugMessages();
+        }
+        boolean quicken = settings.engine() != ExecutionEngine.INTERPRETER;
+        if (quicken != (inlineCache != null)) {
+            setQuickening(quicken);
+        }
+        setJitThreshold(settings.engine() == ExecutionEngine.COMPILED ? settings.compileThreshold() : 0);
+    }
+
+    // Prepares a script to be run by resume()
+    public void load(String code) {
+        String[] sourceLines = code.split("\n");
+        String[] lines = extractDefinitions(sourceLines.clone());
+        source = code;
+        mainLines = lines;
+
+        if (!validate(sourceLines).isEmpty()) {
+            reportDiagnostics();
+            handlers.clear();
+            aborted = true;
+            return;
+        }
 
         if (debug) sendMessage("Starting script execution with " + lines.length + " lines");
 
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i].trim();
+        CallFrame main = framePool.acquire();
+        main.enter(null, lines, null, false);
+        callStack.push(main);
+    }
+
+    // Prepares one On block to run, with the script's functions available and the event's details as variables.
+    // The functions are the ones parsed when the handler was registered, so the source isn't parsed per event.
+    public void loadHandler(String code, Map<String, ScriptFunction> scriptFunctions, String[] body,
+                            BlockPos origin, Map<String, Object> eventVariables) {
+        functions.putAll(scriptFunctions);
+        source = code;
+        mainLines = body;
+        customMain = true;
+        this.origin = origin;
+        variables.putAll(eventVariables);
+
+        CallFrame main = framePool.acquire();
+        main.enter(null, body, null, false);
+        callStack.push(main);
+    }
+
+    // Parses a script only for its On blocks, without preparing it to run
+    public List<ScriptHandler> readHandlers(String code) {
+        String[] sourceLines = code.split("\n");
+        extractDefinitions(sourceLines.clone());
+        if (!validate(sourceLines).isEmpty()) {
+            handlers.clear();
+        }
+        return getHandlers();
+    }
+
+    // Checks the whole source once its functions are known, and keeps its literals for the run
+    List<ScriptDiagnostic> validate(String[] sourceLines) {
+        ScriptValidator validator = new ScriptValidator(functions);
+        diagnostics = validator.validate(sourceLines);
+        literals = validator.getLiterals();
+        return diagnostics;
+    }
+
+    private void reportDiagnostics() {
+        int shown = Math.min(diagnostics.size(), MAX_REPORTED_DIAGNOSTICS);
+        for (int i = 0; i < shown; i++) {
+            sendMessage("Error: " + diagnostics.get(i));
+        }
+        if (diagnostics.size() > shown) {
+            sendMessage("... and " + (diagnostics.size() - shown) + " more");
+        }
+        sendMessage("Script not run, " + diagnostics.size() + (diagnostics.size() == 1 ? " error" : " errors") + " found");
+    }
+
+    // Runs up to instructionBudget statements, stopping early at a wait() or yield
+    public ExecutionState resume(long instructionBudget) {
+        long startCount = instructionCount;
+        long limit = instructionBudget >= Long.MAX_VALUE - instructionCount ? Long.MAX_VALUE : instructionCount + instructionBudget;
+        waitTicks = 0;
+        // Chunks may have unloaded since the last slice
+        if (readCache != null) {
+            readCache.clear();
+        }
+        measureMemory();
+
+        ExecutionState state = run(limit);
+        if (!dryRun) {
+            metrics.recordInstructions(instructionCount - startCount);
+        }
+        return state;
+    }
+
+    private void measureMemory() {
+        memory.measure(variables, callStack,
+                writeBuffer.estimateBytes() + (clipboard != null ? clipboard.estimateBytes() : 0));
+        nextMemoryCheck = instructionCount + ScriptMemory.MEASURE_INTERVAL;
+    }
+
+    public ScriptMemory getMemory() {
+        return memory;
+    }
+
+    public int getWaitTicks() {
+        return waitTicks;
+    }
+
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    // Swaps in the owner's current player entity, or null while they are offline
+    public void attachPlayer(Player player) {
+        this.player = player;
+        output.setRecipient(player);
+    }
+
+    public ScriptOutput getOutput() {
+        return output;
+    }
+
+    public UUID getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(UUID ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    // A handler whose owner is offline runs without a player, so there is nothing to check
+    // permissions against; those runs may not build at all. Runs with no owner are unrestricted.
+    private boolean mayBuild() {
+        if (player == null) {
+            return ownerId == null;
+        }
+        return player.mayBuild();
+    }
+
+    public BlockPos getOrigin() {
+        return origin;
+    }
+
+    public List<ScriptDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    public List<ScriptHandler> getHandlers() {
+        return handlers;
+    }
+
+    public Map<String, ScriptFunction> getFunctions() {
+        return functions;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    // Writes up to maxWrites queued blocks to the world, returning how many were placed
+    public int flushWrites(int maxWrites) {
+        if (!(level instanceof ServerLevel)) {
+            writeBuffer.clear();
+            return 0;
+        }
+        return writeBuffer.flush(level, maxWrites);
+    }
+
+    public BlockWriteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    // Blocks queued over the whole run, including ones already in the world
+    public long getBlocksWritten() {
+        return writeBuffer.getQueuedTotal();
+    }
+
+    public int getSpawnCount() {
+        return spawns;
+    }
+
+    public int getPendingWrites() {
+        return writeBuffer.size();
+    }
+
+    // Runs statements from the top frame until the script ends, suspends or uses up its budget
+    private ExecutionState run(long instructionLimit) {
+        while (!callStack.isEmpty()) {
+            if (waitTicks > 0) return ExecutionState.WAITING;
+            if (instructionCount >= instructionLimit) return ExecutionState.RUNNING;
+            if (instructionCount >= nextMemoryCheck) measureMemory();
+            if (memory.isExceeded()) {
+                abort("Error: Script stopped, it used more than " + memory.getLimit() / 1024 + " KB of memory");
+                break;
+            }
+
+            CallFrame frame = callStack.peek();
+            if (frame.kind == CallFrame.FOR || frame.kind == CallFrame.FOR_EACH) {
+                if (!frame.parallel) {
+                    if (!runCompiled(frame, instructionLimit)) stepForLoop(frame);
+                } else if (!stepParallelLoop(frame)) {
+                    // Check on the workers again next tick
+                    waitTicks = 1;
+                    return ExecutionState.WAITING;
+                }
+                continue;
+            }
+
+            // Whole iterations of a hot While loop run as compiled code
+            if (frame.pc == 0 && frame.kind == CallFrame.WHILE && runCompiled(frame, instructionLimit)) {
+                continue;
+            }
+
+            if (frame.pc >= frame.lines.length) {
+                if (frame.kind == CallFrame.WHILE) {
+                    // End of the loop body, go round again while the condition holds
+                    instructionCount++;
+                    if (evaluateWhileCondition(frame.loopCondition)) {
+                        frame.pc = 0;
+                        frame.branchTaken = false;
+                    } else {
+                        framePool.release(callStack.pop());
+                    }
+                } else {
+                    // Falling off the end of a function returns nothing
+                    returnFromFrame(null);
+                }
+                continue;
+            }
+
+            String line = frame.lines[frame.pc].trim();
+            frame.pc++;
             if (line.isEmpty() || line.startsWith("//")) continue; // Skip empty lines and comments
 
             if (debug) sendMessage("Processing line: " + line);
+            instructionCount++;
 
             try {
-                if (line.startsWith("Let")) {
-                    handleVariableDeclaration(line);
-                } else if (line.startsWith("For")) {
-                    handleForLoop(line, lines);
-                } else if (line.startsWith("While")) {
-                    i = handleWhileLoop(lines, i);
-                } else if (line.startsWith("placeBlock")) {
-                    handlePlaceBlock(line);
-                } else if (line.startsWith("placeWall")) {
-                    handlePlaceWall(line);
-                } else if (line.startsWith("print")) {
-                    handlePrint(line);
-                } else if (line.startsWith("spawn")) {
-                    handleSpawn(line);
-                }
+                executeStatement(frame, line);
             } catch (Exception e) {
                 sendMessage("Error executing line: " + line + " - " + e.getMessage());
             }
         }
+        return aborted ? ExecutionState.ABORTED : ExecutionState.FINISHED;
+    }
+
+    private void executeStatement(CallFrame frame, String line) {
+        if (line.startsWith("Let")) {
+            handleVariableDeclaration(line);
+        } else if (line.startsWith("Return")) {
+            handleReturn(frame, line);
+        } else if (isFunctionCall(line)) {
+            callFunction(line, null, false);
+        } else if (line.startsWith("parallel For")) {
+            int header = frame.pc - 1;
+            frame.pc = skipIfChain(frame.lines, frame.pc);
+            handleForLoop(line.substring("parallel ".length()), frame);
+            CallFrame loop = callStack.peek();
+            if (loop != frame && isParallelizable(loop)) {
+                loop.parallel = true;
+            } else {
+                attachProfile(frame, header);
+            }
+        } else if (line.startsWith("For")) {
+            int header = frame.pc - 1;
+            // The loop runs the If chain below it, so the chain is skipped here
+            frame.pc = skipIfChain(frame.lines, frame.pc);
+            handleForLoop(line, frame);
+            attachProfile(frame, header);
+        } else if (line.startsWith("While")) {
+            frame.pc = handleWhileLoop(frame, frame.pc - 1) + 1;
+        } else if (line.startsWith("wait(")) {
+            handleWait(line);
+        } else if (line.equals("yield") || line.startsWith("yield;") || line.startsWith("yield(")) {
+            waitTicks = 1;
+        } else if (line.startsWith("If")) {
+            frame.branchTaken = evaluateCondition(line);
+            if (!frame.branchTaken) frame.pc = skipStatement(frame.lines, frame.pc);
+        } else if (line.startsWith("Elif")) {
+            if (frame.branchTaken) {
+                frame.pc = skipStatement(frame.lines, frame.pc);
+            } else {
+                frame.branchTaken = evaluateCondition(line);
+                if (!frame.branchTaken) frame.pc = skipStatement(frame.lines, frame.pc);
+            }
+        } else if (line.startsWith("Else")) {
+            if (frame.branchTaken) frame.pc = skipStatement(frame.lines, frame.pc);
+            frame.branchTaken = true;
+        } else if (line.startsWith("placeBlock")) {
+            handlePlaceBlock(line);
+        } else if (line.startsWith("placeAll")) {
+            handlePlaceAll(line);
+        } else if (line.startsWith("chiselRegion")) {
+            handleChiselRegion(line);
+        } else if (line.startsWith("copy(")) {
+            handleCopy(line);
+        } else if (line.startsWith("paste(")) {
+            handlePaste(line);
+        } else if (line.startsWith("placeStructure(")) {
+            handlePlaceStructure(line);
+        } else if (line.startsWith("saveClipboard(") || line.startsWith("loadClipboard(")) {
+            handleClipboardFile(line);
+        } else if (line.startsWith("push")) {
+            handlePush(line);
+        } else if (line.startsWith("addCoord")) {
+            handleAddCoord(line);
+        } else if (line.startsWith("placeWall")) {
+            handlePlaceWall(line);
+        } else if (line.startsWith("print")) {
+            handlePrint(line);
+        } else if (line.startsWith("spawn")) {
+            handleSpawn(line);
+        } else if (line.contains("=")) {
+            handleAssignment(line);
+        }
+    }
+
+    // Pulls Func and On blocks out of the script, blanking their lines so the top level skips them
+    String[] extractDefinitions(String[] lines) {
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            boolean isHandler = line.startsWith("On ");
+            if (!line.startsWith("Func") && !isHandler) continue;
+
+            Matcher matcher = (isHandler ? ON_PATTERN : FUNC_PATTERN).matcher(line);
+            if (!matcher.matches()) {
+                sendMessage("Error: Invalid " + (isHandler ? "event handler: " : "function definition: ") + line);
+                lines[i] = "";
+                continue;
+            }
+
+            int start = i;
+            int current = i + 1;
+            if (!line.endsWith("{")) {
+                if (current < lines.length && lines[current].trim().equals("{")) {
+                    current++;
+                } else {
+                    sendMessage("Error: Expected '{' after " + (isHandler ? "On " : "function ") + matcher.group(1));
+                    lines[i] = "";
+                    continue;
+                }
+            }
+
+            // Collect all lines until the matching closing brace
+            List<String> body = new ArrayList<>();
+            int braceCount = 1;
+            while (current < lines.length) {
+                String bodyLine = lines[current].trim();
+                if (bodyLine.contains("{")) braceCount++;
+                if (bodyLine.contains("}")) braceCount--;
+                if (braceCount == 0) break;
+                body.add(bodyLine);
+                current++;
+            }
+
+            if (isHandler) {
+                defineHandler(matcher.group(1), matcher.group(2), body.toArray(new String[0]));
+            } else {
+                String paramList = matcher.group(2).trim();
+                String[] params = paramList.isEmpty() ? new String[0] : paramList.split("\\s*,\\s*");
+                functions.put(matcher.group(1), new ScriptFunction(matcher.group(1), params, body.toArray(new String[0])));
+                if (debug) sendMessage("Defined function: " + matcher.group(1) + " with " + params.length + " parameters");
+            }
+
+            for (int j = start; j <= current && j < lines.length; j++) {
+                lines[j] = "";
+            }
+            i = current;
+        }
+        return lines;
+    }
+
+    // Parses the filters of On event(name="value", ...) and records the handler
+    private void defineHandler(String event, String filterList, String[] body) {
+        Map<String, String> filters = new HashMap<>();
+        if (filterList != null && !filterList.isBlank()) {
+            for (String filter : filterList.split(",")) {
+                Matcher matcher = FILTER_PATTERN.matcher(filter.trim());
+                if (!matcher.matches()) {
+                    sendMessage("Error: Invalid filter in On " + event + ": " + filter.trim());
+                    return;
+                }
+                filters.put(matcher.group(1), matcher.group(2).trim());
+            }
+        }
+
+        try {
+            handlers.add(ScriptHandler.create(event, filters, body));
+            if (debug) sendMessage("Defined handler: On " + event + " " + filters);
+        } catch (IllegalArgumentException e) {
+            sendMessage("Error: " + e.getMessage());
+        }
+    }
+
+    private boolean isFunctionCall(String expression) {
+        Matcher matcher = CALL_PATTERN.matcher(expression);
+        return matcher.matches() && functions.containsKey(matcher.group(1));
+    }
+
+    // Pushes a frame for name(args); the return value is stored in returnTarget once the call finishes
+    private void callFunction(String expression, String returnTarget, boolean declareTarget) {
+        Matcher matcher = CALL_PATTERN.matcher(expression);
+        if (!matcher.matches()) {
+            sendMessage("Error: Invalid function call: " + expression);
+            return;
+        }
+
+        ScriptFunction function = functions.get(matcher.group(1));
+        Object[] args = evaluateArguments(function, matcher.group(2));
+        if (args == null) return;
+
+        if (callStack.size() >= MAX_CALL_DEPTH) {
+            abort("Error: Maximum call depth of " + MAX_CALL_DEPTH + " exceeded in " + function.getName());
+            return;
+        }
+
+        CallFrame frame = framePool.acquire();
+        frame.enter(function, function.getBody(), returnTarget, declareTarget);
+        System.arraycopy(args, 0, frame.slots, 0, args.length);
+        callStack.push(frame);
+    }
+
+    private Object[] evaluateArguments(ScriptFunction function, String argList) {
+        String trimmed = argList.trim();
+        String[] argExprs = trimmed.isEmpty() ? new String[0] : splitArguments(trimmed);
+        if (argExprs.length != function.getParamCount()) {
+            sendMessage("Error: " + function.getName() + " expects " + function.getParamCount()
+                    + " arguments but got " + argExprs.length);
+            return null;
+        }
+
+        Object[] args = new Object[argExprs.length];
+        for (int i = 0; i < argExprs.length; i++) {
+            args[i] = evaluateValue(argExprs[i].trim());
+            if (args[i] == null) return null;
+        }
+        return args;
+    }
+
+    private void handleReturn(CallFrame frame, String line) {
+        String expression = line.substring("Return".length()).trim();
+        if (expression.endsWith(";")) {
+            expression = expression.substring(0, expression.length() - 1).trim();
+        }
+
+        // Leave any loops the Return sits in
+        while (frame.kind != CallFrame.CALL) {
+            framePool.release(callStack.pop());
+            frame = callStack.peek();
+        }
+
+        if (frame.function == null) {
+            // Return from the main script simply ends it
+            returnFromFrame(null);
+            return;
+        }
+
+        // Tail call: reuse this frame instead of growing the stack
+        if (isFunctionCall(expression)) {
+            Matcher matcher = CALL_PATTERN.matcher(expression);
+            matcher.matches();
+            ScriptFunction target = functions.get(matcher.group(1));
+            Object[] args = evaluateArguments(target, matcher.group(2));
+            if (args == null) {
+                returnFromFrame(null);
+                return;
+            }
+            frame.rebind(target, target.getBody());
+            System.arraycopy(args, 0, frame.slots, 0, args.length);
+            return;
+        }
+
+        returnFromFrame(expression.isEmpty() ? null : evaluateValue(expression));
+    }
+
+    // Pops the top frame and hands its return value to the caller
+    private void returnFromFrame(Object value) {
+        CallFrame frame = callStack.pop();
+        String target = frame.returnTarget;
+        boolean declare = frame.declareTarget;
+        String name = frame.function != null ? frame.function.getName() : null;
+        framePool.release(frame);
+
+        if (target == null) return;
+        if (value == null) {
+            sendMessage("Error: Function " + name + " did not return a value");
+            return;
+        }
+
+        if (declare) {
+            declareVariable(target, value);
+        } else {
+            setVariable(target, value);
+        }
+        if (debug) sendMessage("Returned " + value + " from " + name + " into " + target);
+    }
+
+    // Stops the script and unwinds every frame
+    public void abort(String reason) {
+        sendMessage(reason);
+        aborted = true;
+        while (!callStack.isEmpty()) {
+            framePool.release(callStack.pop());
+        }
+    }
+
+    // Skips the statement following an If/Elif/Else line
+    private int skipStatement(String[] lines, int pc) {
+        while (pc < lines.length) {
+            String line = lines[pc].trim();
+            pc++;
+            if (!line.isEmpty() && !line.startsWith("//")) break;
+        }
+        return pc;
+    }
+
+    // Skips a whole If/Elif/Else chain, used after a For loop has evaluated it
+    private int skipIfChain(String[] lines, int pc) {
+        while (pc < lines.length) {
+            String line = lines[pc].trim();
+            if (line.isEmpty() || line.startsWith("//")) {
+                pc++;
+            } else if (line.startsWith("If") || line.startsWith("Elif") || line.startsWith("Else")) {
+                pc = skipStatement(lines, pc + 1);
+            } else {
+                break;
+            }
+        }
+        return pc;
+    }
+
+    // Evaluates a string literal, integer, arithmetic expression or variable
+    private Object evaluateValue(String expression) {
+        if (expression.startsWith("\"") && expression.endsWith("\"")) {
+            return expression.substring(1, expression.length() - 1);
+        }
+        Integer literal = resolveLiteral(expression);
+        if (literal != null) {
+            return literal;
+        }
+        Object query = evaluateWorldQuery(expression);
+        if (query != null) {
+            return query;
+        }
+        Integer element = evaluateAccessor(expression);
+        if (element != null) {
+            return element;
+        }
+        if (expression.contains("+") || expression.contains("-") ||
+                expression.contains("*") || expression.contains("/")) {
+            return evaluateArithmeticExpression(expression);
+        }
+        if (hasVariable(expression)) {
+            return getVariable(expression);
+        }
+        sendMessage("Error: Could not evaluate expression: " + expression);
+        return null;
+    }
+
+    private boolean isIntegerLiteral(String text) {
+        return resolveLiteral(text) != null;
+    }
+
+    // Returns the value of an integer literal, or null if the text is anything else.
+    // Literals in the source were parsed when it was loaded; text built at run time is parsed here.
+    private Integer resolveLiteral(String text) {
+        Integer value = literals.get(text);
+        return value != null ? value : ScriptValidator.parseLiteral(text);
+    }
+
+    private CallFrame currentScope() {
+        CallFrame frame = callStack.peek();
+        return frame != null ? frame.scope : null;
+    }
+
+    // Variables resolve to the current function's parameters, then its locals, then globals
+    private boolean hasVariable(String name) {
+        CallFrame frame = currentScope();
+        if (frame != null && frame.function != null) {
+            if (frame.function.slotOf(name) >= 0) return true;
+            if (frame.locals != null && frame.locals.containsKey(name)) return true;
+        }
+        return variables.containsKey(name);
+    }
+
+    private Object getVariable(String name) {
+        CallFrame frame = currentScope();
+        if (frame != null && frame.function != null) {
+            int slot = frame.function.slotOf(name);
+            if (slot >= 0) return frame.slots[slot];
+            if (frame.locals != null && frame.locals.containsKey(name)) return frame.locals.get(name);
+        }
+        return variables.get(name);
+    }
+
+    // Assignment updates whichever variable is currently visible
+    private void setVariable(String name, Object value) {
+        CallFrame frame = currentScope();
+        if (frame != null && frame.function != null) {
+            int slot = frame.function.slotOf(name);
+            if (slot >= 0) {
+                frame.slots[slot] = value;
+                return;
+            }
+            if (frame.locals != null && frame.locals.containsKey(name)) {
+                frame.locals.put(name, value);
+                return;
+            }
+        }
+        variables.put(name, value);
+    }
+
+    // Let declares into the current function's scope, or the globals from the main script
+    private void declareVariable(String name, Object value) {
+        CallFrame frame = currentScope();
+        if (frame != null && frame.function != null) {
+            int slot = frame.function.slotOf(name);
+            if (slot >= 0) {
+                frame.slots[slot] = value;
+            } else {
+                frame.locals().put(name, value);
+            }
+            return;
+        }
+        variables.put(name, value);
     }
 
     private void handleVariableDeclaration(String line) {
@@ -116,49 +860,72 @@ public class MCScriptInterpreter{
                 valueStr = valueStr.substring(0, valueStr.length() - 1).trim();
             }
 
-            // Handle string values
-            if (valueStr.startsWith("\"") && valueStr.endsWith("\"")) {
-                String value = valueStr.substring(1, valueStr.length() - 1);
-                variables.put(varName, value);
-                if (debug) sendMessage("Defined string variable: " + varName + " = \"" + value + "\"");
+            // Handle function calls, the value arrives when the call returns
+            if (isFunctionCall(valueStr)) {
+                callFunction(valueStr, varName, true);
+            }
+            // Handle arrays, lists and coordinate lists
+            else if (valueStr.startsWith("array(") || valueStr.startsWith("list(") || valueStr.startsWith("coords(")) {
+                Object collection = createCollection(valueStr);
+                declareVariable(varName, collection);
+                if (debug) sendMessage("Defined collection variable: " + varName + " = " + collection);
+            }
+            // Handle world queries
+            else if (WORLD_QUERY_PATTERN.matcher(valueStr).matches()) {
+                Object value = evaluateWorldQuery(valueStr);
+                declareVariable(varName, value);
+                if (debug) sendMessage("Defined variable from world: " + varName + " = " + value);
             }
-            // Handle block types
-            else if (valueStr.startsWith("block(") && valueStr.endsWith(")")) {
-                String blockName = valueStr.substring(6, valueStr.length() - 1).trim();
-                // Remove quotes if present
-                if (blockName.startsWith("\"") && blockName.endsWith("\"")) {
-                    blockName = blockName.substring(1, blockName.length() - 1);
+            else {
+                Integer element = evaluateAccessor(valueStr);
+                // Handle element reads and len()
+                if (element != null) {
+                    declareVariable(varName, element);
+                    if (debug) sendMessage("Defined integer variable: " + varName + " = " + element);
                 }
-
-                if (!blockTypes.containsKey(blockName)) {
-                    sendMessage("Error: Unknown block type: " + blockName);
-                    return;
+                // Handle string values
+                else if (valueStr.startsWith("\"") && valueStr.endsWith("\"")) {
+                    String value = strings.computeIfAbsent(valueStr, text -> text.substring(1, text.length() - 1));
+                    declareVariable(varName, value);
+                    if (debug) sendMessage("Defined string variable: " + varName + " = \"" + value + "\"");
                 }
+                // Handle block types
+                else if (valueStr.startsWith("block(") && valueStr.endsWith(")")) {
+                    String blockName = valueStr.substring(6, valueStr.length() - 1).trim();
+                    // Remove quotes if present
+                    if (blockName.startsWith("\"") && blockName.endsWith("\"")) {
+                        blockName = blockName.substring(1, blockName.length() - 1);
+                    }
 
-                // Store the block reference
-                variables.put(varName, blockName);
-                if (debug) sendMessage("Defined block variable: " + varName + " = block(\"" + blockName + "\")");
-            }
-            // Handle arithmetic operations (new)
-            else if (valueStr.contains("+") || valueStr.contains("-") ||
-                    valueStr.contains("*") || valueStr.contains("/")) {
+                    if (!blockTypes.containsKey(blockName)) {
+                        sendMessage("Error: Unknown block type: " + blockName);
+                        return;
+                    }
 
-                // Evaluate the arithmetic expression
-                int result = evaluateArithmeticExpression(valueStr);
-                variables.put(varName, result);
-                if (debug) sendMessage("Defined variable with arithmetic: " + varName + " = " + result);
-            }
-            // Handle integer values
-            else {
-                try {
-                    int value = Integer.parseInt(valueStr);
-                    variables.put(varName, value);
-                    if (debug) sendMessage("Defined integer variable: " + varName + " = " + value);
-                } catch (NumberFormatException e) {
+                    // Store the block reference
+                    declareVariable(varName, blockName);
+                    if (debug) sendMessage("Defined block variable: " + varName + " = block(\"" + blockName + "\")");
+                }
+                // Handle arithmetic operations (new)
+                else if (valueStr.contains("+") || valueStr.contains("-") ||
+                        valueStr.contains("*") || valueStr.contains("/")) {
+
+                    // Evaluate the arithmetic expression
+                    int result = evaluateArithmeticExpression(valueStr);
+                    declareVariable(varName, result);
+                    if (debug) sendMessage("Defined variable with arithmetic: " + varName + " = " + result);
+                }
+                // Handle integer values
+                else {
+                    Integer value = resolveLiteral(valueStr);
+                    if (value != null) {
+                        declareVariable(varName, value);
+                        if (debug) sendMessage("Defined integer variable: " + varName + " = " + value);
+                    }
                     // It's not an integer or a string, could be another variable
-                    if (variables.containsKey(valueStr)) {
-                        variables.put(varName, variables.get(valueStr));
-                        if (debug) sendMessage("Copied variable: " + varName + " = " + variables.get(valueStr));
+                    else if (hasVariable(valueStr)) {
+                        declareVariable(varName, getVariable(valueStr));
+                        if (debug) sendMessage("Copied variable: " + varName + " = " + getVariable(valueStr));
                     } else {
                         sendMessage("Error: Invalid value: " + valueStr);
                     }
@@ -171,6 +938,10 @@ public class MCScriptInterpreter{
 
     // New method to evaluate arithmetic expressions
     private int evaluateArithmeticExpression(String expression) {
+        Integer quick = quickArithmetic(expression);
+        if (quick != null) {
+            return quick;
+        }
         try {
             // Simple expression evaluator supporting basic operations
             // First, split the expression by operators
@@ -227,23 +998,27 @@ public class MCScriptInterpreter{
 
     // Helper method to get numeric value for an operand
     private int getValueForArithmetic(String operand) {
-        try {
-            // If it's a number literal
-            return Integer.parseInt(operand);
-        } catch (NumberFormatException e) {
-            // If it's a variable
-            if (variables.containsKey(operand)) {
-                Object value = variables.get(operand);
-                if (value instanceof Integer) {
-                    return (Integer) value;
-                } else {
-                    sendMessage("Error: Variable '" + operand + "' is not an integer");
-                    return 0;
-                }
+        // If it's a number literal
+        Integer literal = resolveLiteral(operand);
+        if (literal != null) {
+            return literal;
+        }
+        Integer element = evaluateAccessor(operand);
+        if (element != null) {
+            return element;
+        }
+        // If it's a variable
+        if (hasVariable(operand)) {
+            Object value = getVariable(operand);
+            if (value instanceof Integer) {
+                return (Integer) value;
             } else {
-                sendMessage("Error: Undefined variable in arithmetic: " + operand);
+                sendMessage("Error: Variable '" + operand + "' is not an integer");
                 return 0;
             }
+        } else {
+            sendMessage("Error: Undefined variable in arithmetic: " + operand);
+            return 0;
         }
     }
 
@@ -265,6 +1040,18 @@ public class MCScriptInterpreter{
 
             String printContent = line.substring(startIndex + 6, endIndex).trim();
 
+            // Handle world queries, element reads and len()
+            Object query = evaluateWorldQuery(printContent);
+            if (query != null) {
+                sendMessage(String.valueOf(query));
+                return;
+            }
+            Integer element = evaluateAccessor(printContent);
+            if (element != null) {
+                sendMessage(String.valueOf(element));
+                return;
+            }
+
             // Check if it's an arithmetic operation
             if (printContent.contains("+") || printContent.contains("-") ||
                     printContent.contains("*") || printContent.contains("/")) {
@@ -275,8 +1062,8 @@ public class MCScriptInterpreter{
             }
 
             // Handle variable printing
-            if (variables.containsKey(printContent)) {
-                Object value = variables.get(printContent);
+            if (hasVariable(printContent)) {
+                Object value = getVariable(printContent);
                 if (value instanceof String) {
                     // If it's a string variable, print it directly
                     sendMessage((String) value);
@@ -301,7 +1088,8 @@ public class MCScriptInterpreter{
         }
     }
 
-    private void handleForLoop(String forLine, String[] lines) {
+    // Pushes a FOR frame that runs the If chain below the loop once per iteration
+    private void handleForLoop(String forLine, CallFrame frame) {
         try {
             if (debug) {
                 sendMessage("For loop variables: " + variables.toString());
@@ -317,6 +1105,11 @@ public class MCScriptInterpreter{
             }
 
             String loopContent = forLine.substring(openParen + 1, closeParen).trim();
+            if (loopContent.contains(" in ")) {
+                handleForEachLoop(loopContent, frame);
+                return;
+            }
+
             String[] loopParts = loopContent.split("upto");
 
             if (loopParts.length != 2) {
@@ -328,12 +1121,12 @@ public class MCScriptInterpreter{
             String endVarName = loopParts[1].trim();
 
             // Verify both variables exist
-            if (!variables.containsKey(varName)) {
+            if (!hasVariable(varName)) {
                 sendMessage("Error: Loop variable not defined: " + varName);
                 return;
             }
 
-            if (!variables.containsKey(endVarName)) {
+            if (!hasVariable(endVarName)) {
                 sendMessage("Error: End variable not defined: " + endVarName);
                 return;
             }
@@ -342,21 +1135,229 @@ public class MCScriptInterpreter{
             int start = getIntValue(varName);
             int end = getIntValue(endVarName);
 
-            if (debug) sendMessage("Starting loop from " + start + " to " + end);
+            if (debug) sendMessage("Starting loop from " + start + " to " + end);
+
+            CallFrame loop = pushLoop(CallFrame.FOR, frame, frame.lines);
+            if (loop != null) {
+                loop.loopVariable = varName;
+                loop.loopIndex = start;
+                loop.loopEnd = end;
+            }
+        } catch (Exception e) {
+            sendMessage("Error in For loop: " + e.getMessage());
+        }
+    }
+
+    // Runs one iteration of a For loop frame
+    private void stepForLoop(CallFrame loop) {
+        int end = loop.kind == CallFrame.FOR ? loop.loopEnd : loop.loopArray.size() - 1;
+        if (loop.loopIndex > end) {
+            framePool.release(callStack.pop());
+            return;
+        }
+
+        int i = loop.loopIndex++;
+        instructionCount++;
+        try {
+            if (loop.kind == CallFrame.FOR) {
+                setVariable(loop.loopVariable, i);
+                if (debug && i % 10 == 0) sendMessage("Loop iteration: " + i);
+            } else {
+                declareVariable(loop.loopVariable, loop.loopArray.get(i));
+            }
+            evaluateIfStatements(loop.lines);
+        } catch (Exception e) {
+            sendMessage("Error in For loop: " + e.getMessage());
+        }
+    }
+
+    // A parallel For only leaves the server thread when its body can't touch the world and
+    // the loop is long enough to be worth it; otherwise it runs like a normal For
+    private boolean isParallelizable(CallFrame loop) {
+        int iterations = (loop.kind == CallFrame.FOR ? loop.loopEnd : loop.loopArray.size() - 1) - loop.loopIndex + 1;
+        if (iterations < ParallelForJob.MIN_ITERATIONS || workerOutput != null) {
+            return false;
+        }
+        if (!(level instanceof ServerLevel) || !mayBuild()) {
+            return false;
+        }
+        for (String line : loop.lines) {
+            if (line.contains("getBlock(") || line.contains("isAir(") || line.contains("heightAt(")) {
+                if (debug) sendMessage("Loop reads the world, running it on the server thread");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Starts the workers for a parallel For, or merges their results once all of them are done.
+    // Returns false while the workers are still running.
+    private boolean stepParallelLoop(CallFrame loop) {
+        if (parallelJob == null) {
+            parallelJob = ParallelForJob.start(this, loop, visibleVariables());
+            if (debug) sendMessage("Running loop on " + parallelJob.getSliceCount() + " worker slices");
+        }
+        if (!parallelJob.isDone()) {
+            return false;
+        }
+
+        // Slices are merged in order, so blocks and messages come out as a normal For would produce them
+        for (MCScriptInterpreter worker : parallelJob.getWorkers()) {
+            writeBuffer.addAll(worker.writeBuffer);
+            instructionCount += worker.instructionCount;
+            for (String message : worker.workerOutput) {
+                sendMessage(message);
+            }
+        }
+        parallelJob = null;
+
+        // Leave the loop variable as a normal For would
+        int last = loop.kind == CallFrame.FOR ? loop.loopEnd : loop.loopArray.size() - 1;
+        if (last >= loop.loopIndex) {
+            if (loop.kind == CallFrame.FOR) {
+                setVariable(loop.loopVariable, last);
+            } else {
+                declareVariable(loop.loopVariable, loop.loopArray.get(last));
+            }
+        }
+        framePool.release(callStack.pop());
+        return true;
+    }
+
+    // A worker for a parallel For: same script position and block names, its own copy of the variables
+    MCScriptInterpreter forkWorker(Map<String, Object> snapshot) {
+        MCScriptInterpreter worker = new MCScriptInterpreter(null, null);
+        worker.debug = debug;
+        worker.dryRun = dryRun;
+        worker.origin = origin;
+        worker.facing = facing;
+        worker.variables = new HashMap<>(snapshot);
+        worker.literals = literals;
+        if (inlineCache == null) worker.inlineCache = null;
+        worker.workerOutput = new ArrayList<>();
+        return worker;
+    }
+
+    // Runs one iteration of a parallel For on a worker
+    void runWorkerIteration(String loopVariable, Object value, String[] lines) {
+        instructionCount++;
+        try {
+            variables.put(loopVariable, value);
+            evaluateIfStatements(lines);
+        } catch (Exception e) {
+            sendMessage("Error in For loop: " + e.getMessage());
+        }
+    }
+
+    // Every variable the current frame can see, its own shadowing the globals
+    private Map<String, Object> visibleVariables() {
+        Map<String, Object> visible = new HashMap<>(variables);
+        CallFrame frame = currentScope();
+        if (frame != null && frame.function != null) {
+            if (frame.locals != null) {
+                visible.putAll(frame.locals);
+            }
+            for (int i = 0; i < frame.function.getParamCount(); i++) {
+                visible.put(frame.function.getParam(i), frame.slots[i]);
+            }
+        }
+        return visible;
+    }
+
+    // Gives the loop just pushed above enclosing the profile of the loop written at line
+    private void attachProfile(CallFrame enclosing, int line) {
+        CallFrame loop = callStack.peek();
+        if (loop != enclosing && (loop.kind == CallFrame.FOR || loop.kind == CallFrame.WHILE)) {
+            loop.profile = loopProfiles.computeIfAbsent(new LoopProfile.Key(enclosing.lines, line), key -> new LoopProfile());
+        }
+    }
+
+    // Runs a loop as compiled code, compiling it first once it has become hot.
+    // Returns false when the interpreter should run the next iteration itself.
+    // Compiled code doesn't produce debug output, so nothing is compiled while debug is on.
+    private boolean runCompiled(CallFrame loop, long instructionLimit) {
+        LoopProfile profile = loop.profile;
+        // A finished For is popped by stepForLoop
+        if (profile == null || debug || jitThreshold <= 0 || (loop.kind == CallFrame.FOR && loop.loopIndex > loop.loopEnd)) {
+            return false;
+        }
+        if (profile.isHot(jitThreshold)) {
+            profile.compiled = loop.kind == CallFrame.WHILE
+                    ? LoopCompiler.compileWhile(this, loop.loopCondition, loop.lines)
+                    : LoopCompiler.compileFor(this, loop.loopVariable, loop.lines);
+            profile.uncompilable = profile.compiled == null;
+        }
+        LoopCompiler.Result compiled = profile.compiled;
+        if (compiled == null) {
+            return false;
+        }
+
+        // Guard: the code assumes every variable it uses still holds an integer
+        String[] names = compiled.variables();
+        int[] state = new int[LoopCompiler.FIRST_VARIABLE + names.length];
+        for (int i = 0; i < names.length; i++) {
+            Object value = hasVariable(names[i]) ? getVariable(names[i]) : null;
+            if (!(value instanceof Integer number)) {
+                profile.deoptimize();
+                return false;
+            }
+            state[LoopCompiler.FIRST_VARIABLE + i] = number;
+        }
+        if (loop.kind == CallFrame.FOR) {
+            state[0] = loop.loopIndex;
+            state[1] = loop.loopEnd;
+        }
+
+        instructionCount += compiled.code().run(this, state, instructionLimit - instructionCount);
+
+        for (int i = 0; i < names.length; i++) {
+            if (compiled.assigned()[i]) setVariable(names[i], state[LoopCompiler.FIRST_VARIABLE + i]);
+        }
+        if (loop.kind == CallFrame.FOR) {
+            if (state[0] != loop.loopIndex) setVariable(loop.loopVariable, state[0] - 1);
+            loop.loopIndex = state[0];
+        } else if (state[0] == 1) {
+            framePool.release(callStack.pop());
+        }
+        return true;
+    }
+
+    // Used by LoopCompiler to check what a loop refers to
+    boolean isIntVariable(String name) {
+        return hasVariable(name) && getVariable(name) instanceof Integer;
+    }
+
+    boolean isFunctionName(String name) {
+        return functions.containsKey(name);
+    }
+
+    Block getBlockType(String name) {
+        return blockTypes.get(name);
+    }
+
+    // Called by compiled loops
+    void jitMessage(String message) {
+        sendMessage(message);
+    }
+
+    void jitPlaceBlock(int x, int y, int z, Block block) {
+        placeBlockAtPosition(new BlockPos(origin.getX() + x, origin.getY() + y, origin.getZ() + z), block);
+    }
 
-            // Execute the loop
-            for (int i = start; i <= end; i++) {
-                variables.put(varName, i);
-                if (debug && i % 10 == 0) sendMessage("Loop iteration: " + i);
-                evaluateIfStatements(lines);
-            }
-        } catch (Exception e) {
-            sendMessage("Error in For loop: " + e.getMessage());
+    // Pushes a loop frame sharing the enclosing frame's variables, or returns null if the stack is full
+    private CallFrame pushLoop(int kind, CallFrame enclosing, String[] lines) {
+        if (callStack.size() >= MAX_CALL_DEPTH) {
+            abort("Error: Maximum call depth of " + MAX_CALL_DEPTH + " exceeded");
+            return null;
         }
+        CallFrame loop = framePool.acquire();
+        loop.enterLoop(kind, enclosing.scope, lines);
+        callStack.push(loop);
+        return loop;
     }
 
     private int getIntValue(String varName) {
-        Object value = variables.get(varName);
+        Object value = getVariable(varName);
         if (value instanceof Integer) {
             return (Integer) value;
         } else {
@@ -388,6 +1389,7 @@ public class MCScriptInterpreter{
             }
 
             boolean shouldExecute = false;
+            instructionCount++;
 
             // Evaluate condition
             if (line.startsWith("If") || line.startsWith("Elif")) {
@@ -413,6 +1415,7 @@ public class MCScriptInterpreter{
                         continue;
                     }
 
+                    instructionCount++;
                     if (nextLine.startsWith("print")) {
                         executePrint(nextLine);
                         break;
@@ -441,9 +1444,14 @@ public class MCScriptInterpreter{
                 return true;
             }
 
+            Boolean quick = quickCondition(line);
+            if (quick != null) {
+                return quick;
+            }
+
             // Extract the condition from inside the parentheses
             int startIndex = line.indexOf("(");
-            int endIndex = line.indexOf(")");
+            int endIndex = line.lastIndexOf(")");
 
             if (startIndex == -1 || endIndex == -1) {
                 sendMessage("Error: Missing parentheses in condition");
@@ -459,7 +1467,7 @@ public class MCScriptInterpreter{
                 String[] parts = condition.split("%");
                 String varName = parts[0].trim();
 
-                if (!variables.containsKey(varName)) {
+                if (!hasVariable(varName)) {
                     sendMessage("Error: Variable not defined in condition: " + varName);
                     return false;
                 }
@@ -471,8 +1479,12 @@ public class MCScriptInterpreter{
                     return false;
                 }
 
-                int divisor = Integer.parseInt(rightParts[0].trim());
-                int expectedRemainder = Integer.parseInt(rightParts[1].trim());
+                int divisor = parseNumberParam(rightParts[0].trim());
+                int expectedRemainder = parseNumberParam(rightParts[1].trim());
+                if (divisor == 0) {
+                    sendMessage("Error: Division by zero");
+                    return false;
+                }
 
                 int value = getIntValue(varName);
                 boolean result = (value % divisor == expectedRemainder);
@@ -511,20 +1523,117 @@ public class MCScriptInterpreter{
         }
     }
 
+    // Quickened forms of the three methods above, see InlineCache. Each returns null when the
+    // text can't be quickened or a guard failed, and the caller then evaluates it the old way.
+
+    private Boolean quickWhileCondition(String condition) {
+        InlineCache.Site site = inlineCache != null ? inlineCache.whileSite(condition) : null;
+        if (site == null || site.form == InlineCache.GENERIC) return null;
+        if (!(quickValue(site.left) instanceof Integer left) || !(quickValue(site.right) instanceof Integer right)) {
+            site.deoptimize();
+            return null;
+        }
+        site.form = InlineCache.INTS;
+        return switch (site.op) {
+            case '<' -> left < right;
+            case '>' -> left > right;
+            default -> left.intValue() == right.intValue();
+        };
+    }
+
+    private Integer quickArithmetic(String expression) {
+        InlineCache.Site site = inlineCache != null ? inlineCache.arithmeticSite(expression) : null;
+        if (site == null || site.form == InlineCache.GENERIC) return null;
+        if (!(quickValue(site.left) instanceof Integer left) || !(quickValue(site.right) instanceof Integer right)) {
+            site.deoptimize();
+            return null;
+        }
+        site.form = InlineCache.INTS;
+        return switch (site.op) {
+            case '+' -> left + right;
+            case '-' -> left - right;
+            case '*' -> left * right;
+            // Division by zero is reported by the generic code
+            default -> right != 0 ? left / right : null;
+        };
+    }
+
+    // Also sends the same debug messages as evaluateCondition, once the result is known
+    private Boolean quickCondition(String line) {
+        InlineCache.Site site = inlineCache != null ? inlineCache.conditionSite(line) : null;
+        if (site == null) return null;
+
+        if (site.op == '%') {
+            if (site.form == InlineCache.GENERIC) return null;
+            if (!(quickValue(site.left) instanceof Integer value) || !(quickValue(site.right) instanceof Integer divisor)
+                    || !(quickValue(site.third) instanceof Integer expected)) {
+                site.deoptimize();
+                return null;
+            }
+            if (divisor == 0) return null;
+            site.form = InlineCache.INTS;
+            boolean result = value % divisor == expected.intValue();
+            if (debug) {
+                sendMessage("Evaluating condition: " + site.text);
+                sendMessage("Condition result: " + value + " % " + divisor + " == " + expected + " is " + result);
+            }
+            return result;
+        }
+
+        // Unset variables are reported by the generic code
+        Object left = quickValue(site.left);
+        Object right = quickValue(site.right);
+        if (left == null || right == null) return null;
+        boolean result;
+        if (site.form == InlineCache.UNSEEN) {
+            site.form = left instanceof Integer && right instanceof Integer ? InlineCache.INTS
+                    : left instanceof String && right instanceof String ? InlineCache.STRINGS : InlineCache.GENERIC;
+        }
+        if (site.form == InlineCache.INTS && left instanceof Integer l && right instanceof Integer r) {
+            result = l.intValue() == r.intValue();
+        } else if (site.form == InlineCache.STRINGS && left instanceof String l && right instanceof String r) {
+            result = l.equals(r);
+        } else {
+            if (site.form != InlineCache.GENERIC) site.deoptimize();
+            result = left.equals(right);
+        }
+        if (debug) {
+            sendMessage("Evaluating condition: " + site.text);
+            sendMessage("Condition result: " + left + " == " + right + " is " + result);
+        }
+        return result;
+    }
+
+    // A quickened operand's literal value, or the variable's value, null if it isn't set
+    private Object quickValue(InlineCache.Operand operand) {
+        return operand.kind() == InlineCache.VARIABLE ? getVariable(operand.name()) : operand.value();
+    }
+
     private Object getValueFromExpression(String expr) {
         // If it's a string literal
         if (expr.startsWith("\"") && expr.endsWith("\"")) {
             return expr.substring(1, expr.length() - 1);
         }
 
+        Object query = evaluateWorldQuery(expr);
+        if (query != null) {
+            return query;
+        }
+
+        Integer element = evaluateAccessor(expr);
+        if (element != null) {
+            return element;
+        }
+
         // If it's a number literal
-        try {
-            return Integer.parseInt(expr);
-        } catch (NumberFormatException e) {
-            // If it's a variable
-            if (variables.containsKey(expr)) {
-                return variables.get(expr);
-            }
+        Integer literal = resolveLiteral(expr);
+        if (literal != null) {
+            return literal;
+        }
+
+        // If it's a variable
+        if (hasVariable(expr)) {
+            return getVariable(expr);
         }
 
         sendMessage("Error: Could not evaluate expression: " + expr);
@@ -543,7 +1652,7 @@ public class MCScriptInterpreter{
             }
 
             String content = line.substring(startIndex + 11, endIndex).trim();
-            String[] params = content.split(",");
+            String[] params = splitArguments(content);
 
             if (params.length != 4) {
                 sendMessage("Error: placeBlock requires 4 parameters: x, y, z, blockType");
@@ -567,14 +1676,11 @@ public class MCScriptInterpreter{
                 return;
             }
 
-            // Get player position
-            BlockPos playerPos = player.blockPosition();
-
-            // Calculate actual position relative to player
+            // Calculate actual position relative to where the script started
             BlockPos pos = new BlockPos(
-                    playerPos.getX() + x,
-                    playerPos.getY() + y,
-                    playerPos.getZ() + z
+                    origin.getX() + x,
+                    origin.getY() + y,
+                    origin.getZ() + z
             );
 
             // Place the block
@@ -597,7 +1703,7 @@ public class MCScriptInterpreter{
             }
 
             String content = line.substring(startIndex + 10, endIndex).trim();
-            String[] params = content.split(",");
+            String[] params = splitArguments(content);
 
             if (params.length != 4) {
                 sendMessage("Error: placeWall requires 4 parameters: blockType, direction, width, height");
@@ -627,18 +1733,22 @@ public class MCScriptInterpreter{
     }
 
     private int parseNumberParam(String param) {
-        try {
-            return Integer.parseInt(param);
-        } catch (NumberFormatException e) {
-            // It might be a variable
-            if (variables.containsKey(param)) {
-                Object value = variables.get(param);
-                if (value instanceof Integer) {
-                    return (Integer) value;
-                }
+        Integer literal = resolveLiteral(param);
+        if (literal != null) {
+            return literal;
+        }
+        Integer element = evaluateAccessor(param);
+        if (element != null) {
+            return element;
+        }
+        // It might be a variable
+        if (hasVariable(param)) {
+            Object value = getVariable(param);
+            if (value instanceof Integer) {
+                return (Integer) value;
             }
-            throw new RuntimeException("Invalid number parameter: " + param);
         }
+        throw new RuntimeException("Invalid number parameter: " + param);
     }
 
     // Method to place a wall of blocks from player position
@@ -657,8 +1767,7 @@ public class MCScriptInterpreter{
                 return;
             }
 
-            // Get player position
-            BlockPos playerPos = player.blockPosition();
+            BlockPos playerPos = origin;
             sendMessage("Player position: " + playerPos.getX() + ", " + playerPos.getY() + ", " + playerPos.getZ());
 
             // Determine wall orientation
@@ -667,7 +1776,7 @@ public class MCScriptInterpreter{
 
             if (dir == Direction.UP || dir == Direction.DOWN) {
                 // If direction is up/down, use player's facing direction for horizontal axis
-                horizontal = player.getDirection();
+                horizontal = facing;
                 secondary = dir;
             } else {
                 // For horizontal walls, the secondary direction is up
@@ -708,32 +1817,19 @@ public class MCScriptInterpreter{
 
     private void placeBlockAtPosition(BlockPos pos, Block block) {
         try {
-            sendMessage("Attempting to place " + block.getName().getString() + " at " +
+            if (debug) sendMessage("Attempting to place " + block.getName().getString() + " at " +
                     pos.getX() + ", " + pos.getY() + ", " + pos.getZ());
 
-            if (level instanceof ServerLevel) {
+            if (level instanceof ServerLevel || workerOutput != null) {
                 // Check player permissions
-                if (!player.mayBuild()) {
+                if (!mayBuild()) {
                     sendMessage("You don't have permission to build here");
                     return;
                 }
 
-                // Try first method
-                boolean success = level.setBlock(pos, block.defaultBlockState(), 3);
-
-                // If first method fails, try alternative methods
-                if (!success) {
-                    // Try setting to air first, then the block
-                    level.setBlock(pos, Blocks.AIR.defaultBlockState(), 3);
-                    success = level.setBlock(pos, block.defaultBlockState(), 3);
-
-                    // If still failing, one more attempt with different flags
-                    if (!success) {
-                        success = level.setBlockAndUpdate(pos, block.defaultBlockState());
-                    }
-                }
-
-                sendMessage("Block placement " + (success ? "successful" : "failed"));
+                // The write reaches the world when the buffer is flushed
+                writeBuffer.add(pos, block.defaultBlockState());
+                if (debug) sendMessage("Block placement queued");
             } else {
                 sendMessage("Error: Cannot place blocks on client side");
             }
@@ -743,8 +1839,16 @@ public class MCScriptInterpreter{
     }
 
     private void sendMessage(String message) {
-        if (player != null && level != null && !level.isClientSide) {
-            player.sendSystemMessage(Component.literal(message));
+        if (trace != null) {
+            trace.printed(message);
+        }
+        if (dryRun) return;
+        if (workerOutput != null) {
+            workerOutput.add(message);
+            return;
+        }
+        if (level != null && !level.isClientSide) {
+            output.add(message);
         }
     }
 
@@ -761,7 +1865,7 @@ public class MCScriptInterpreter{
             }
 
             String content = line.substring(startIndex + 6, endIndex).trim();
-            String[] params = content.split(",");
+            String[] params = splitArguments(content);
 
             if (params.length != 4) {
                 sendMessage("Error: spawn requires 4 parameters: mobType, x, y, z");
@@ -803,10 +1907,17 @@ public class MCScriptInterpreter{
                 return;
             }
 
-            BlockPos playerPos = player.blockPosition();
+            BlockPos playerPos = origin;
             double spawnX = playerPos.getX() + x;
             double spawnY = playerPos.getY() + y;
             double spawnZ = playerPos.getZ() + z;
+            if (trace != null) {
+                trace.mobSpawned(mobType, spawnX, spawnY, spawnZ);
+            }
+            spawns++;
+            if (dryRun) {
+                return;
+            }
 
             net.minecraft.world.entity.Entity entity = entityType.create(serverLevel);
 
@@ -815,8 +1926,9 @@ public class MCScriptInterpreter{
                 return;
             }
 
-            entity.moveTo(spawnX, spawnY, spawnZ, player.getYRot(), 0.0F);
+            entity.moveTo(spawnX, spawnY, spawnZ, player != null ? player.getYRot() : facing.toYRot(), 0.0F);
             serverLevel.addFreshEntity(entity);
+            metrics.entitySpawned();
 
             sendMessage("Spawned " + mobType + " at (" + spawnX + ", " + spawnY + ", " + spawnZ + ")");
         } catch (Exception e) {
@@ -824,12 +1936,13 @@ public class MCScriptInterpreter{
         }
     }
 
-    // Add this new method for While loops
-    private int handleWhileLoop(String[] lines, int startLine) {
+    // Pushes a WHILE frame for the loop body and returns the line of its closing brace
+    private int handleWhileLoop(CallFrame frame, int startLine) {
+        String[] lines = frame.lines;
         try {
             String whileLine = lines[startLine];
             int openParen = whileLine.indexOf("(");
-            int closeParen = whileLine.indexOf(")");
+            int closeParen = whileLine.lastIndexOf(")");
             int openBrace = whileLine.indexOf("{");
 
             if (openParen == -1 || closeParen == -1) {
@@ -855,7 +1968,7 @@ public class MCScriptInterpreter{
                 }
             }
 
-            // Collect all lines until matching closing brace
+            // Collect all lines until matching closing brace, nested blocks stay intact
             while (currentLine < lines.length) {
                 String line = lines[currentLine].trim();
 
@@ -864,9 +1977,7 @@ public class MCScriptInterpreter{
 
                 if (braceCount == 0) break;
 
-                if (!line.equals("{") && !line.equals("}")) {
-                    loopBody.add(line);
-                }
+                loopBody.add(line);
                 currentLine++;
             }
 
@@ -875,16 +1986,13 @@ public class MCScriptInterpreter{
                 sendMessage("Loop body size: " + loopBody.size());
             }
 
-            // Execute the loop
-            while (evaluateWhileCondition(condition)) {
-                for (String line : loopBody) {
-                    if (line.startsWith("print")) {
-                        executePrint(line);
-                    } else if (line.contains("=")) {
-                        handleAssignment(line);
-                    } else if (line.startsWith("spawn")) {
-                        handleSpawn(line);
-                    }
+            // The body runs in its own frame so it can be suspended part way through
+            instructionCount++;
+            if (evaluateWhileCondition(condition)) {
+                CallFrame loop = pushLoop(CallFrame.WHILE, frame, loopBody.toArray(new String[0]));
+                if (loop != null) {
+                    loop.loopCondition = condition;
+                    attachProfile(frame, startLine);
                 }
             }
 
@@ -895,6 +2003,466 @@ public class MCScriptInterpreter{
         }
     }
 
+    // Handler for wait(ticks), suspends the script for that many server ticks
+    private void handleWait(String line) {
+        try {
+            String[] params = extractParams(line, "wait(");
+            if (params == null || params.length != 1) {
+                sendMessage("Error: wait requires 1 parameter: ticks");
+                return;
+            }
+            waitTicks = Math.max(1, parseNumberParam(params[0].trim()));
+        } catch (Exception e) {
+            sendMessage("Error in wait: " + e.getMessage());
+        }
+    }
+
+    // Builds the value for array(n), list(a, b, ...) or coords()
+    private Object createCollection(String expression) {
+        int open = expression.indexOf("(");
+        String args = expression.substring(open + 1, expression.lastIndexOf(")")).trim();
+
+        if (expression.startsWith("array(")) {
+            int size = parseNumberParam(args);
+            memory.charge(ScriptIntArray.bytesFor(size));
+            return ScriptIntArray.fixed(size);
+        }
+        if (expression.startsWith("coords(")) {
+            ScriptCoordList coords = new ScriptCoordList();
+            memory.charge(coords.estimateBytes());
+            return coords;
+        }
+
+        String[] parts = args.isEmpty() ? new String[0] : splitArguments(args);
+        int[] initial = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            initial[i] = parseNumberParam(parts[i].trim());
+        }
+        ScriptIntArray list = ScriptIntArray.growable(initial);
+        memory.charge(list.estimateBytes());
+        return list;
+    }
+
+    // Evaluates a[i] and len(a); returns null if the expression is neither
+    private Integer evaluateAccessor(String expression) {
+        Object query = evaluateWorldQuery(expression);
+        if (query instanceof Integer value) {
+            return value;
+        }
+
+        Matcher len = LEN_PATTERN.matcher(expression);
+        if (len.matches()) {
+            Object value = getVariable(len.group(1));
+            if (value instanceof ScriptIntArray array) return array.size();
+            if (value instanceof ScriptCoordList coords) return coords.size();
+            if (value instanceof String string) return string.length();
+            throw new RuntimeException("len() needs an array, list or coords: " + len.group(1));
+        }
+
+        Matcher index = INDEX_PATTERN.matcher(expression);
+        if (index.matches()) {
+            return getArray(index.group(1)).get(evaluateIndex(index.group(2)));
+        }
+        return null;
+    }
+
+    // Evaluates getBlock(x, y, z), isAir(x, y, z) and heightAt(x, z), with positions relative to the origin.
+    // Reads see this script's own queued placements. Returns null if the expression is none of these.
+    private Object evaluateWorldQuery(String expression) {
+        Matcher query = WORLD_QUERY_PATTERN.matcher(expression);
+        if (!query.matches()) {
+            return null;
+        }
+
+        String name = query.group(1);
+        String[] args = splitArguments(query.group(2).trim());
+        int expected = name.equals("heightAt") ? 2 : 3;
+        if (args.length != expected) {
+            throw new RuntimeException(name + " expects " + expected + " arguments but got " + args.length);
+        }
+        BlockReadCache reader = getReadCache();
+
+        int x = origin.getX() + evaluateIndex(args[0]);
+        if (name.equals("heightAt")) {
+            int z = origin.getZ() + evaluateIndex(args[1]);
+            return reader.getHeight(x, z) - origin.getY();
+        }
+
+        int y = origin.getY() + evaluateIndex(args[1]);
+        int z = origin.getZ() + evaluateIndex(args[2]);
+        BlockState state = reader.getBlockState(x, y, z);
+        if (name.equals("isAir")) {
+            return state.isAir() ? 1 : 0;
+        }
+        String blockName = blockNames.get(state.getBlock());
+        return blockName != null ? blockName : BuiltInRegistries.BLOCK.getKey(state.getBlock()).getPath();
+    }
+
+    private BlockReadCache getReadCache() {
+        if (level == null) {
+            throw new RuntimeException("No world to read blocks from");
+        }
+        if (readCache == null) {
+            readCache = new BlockReadCache(level, writeBuffer);
+        }
+        return readCache;
+    }
+
+    private void assignElement(String target, String expression) {
+        Matcher index = INDEX_PATTERN.matcher(target);
+        index.matches();
+        ScriptIntArray array = getArray(index.group(1));
+        Object value = evaluateValue(expression);
+        if (!(value instanceof Integer)) {
+            sendMessage("Error: Array elements must be integers: " + expression);
+            return;
+        }
+        array.set(evaluateIndex(index.group(2)), (Integer) value);
+    }
+
+    private int evaluateIndex(String expression) {
+        Object value = evaluateValue(expression.trim());
+        if (!(value instanceof Integer)) {
+            throw new RuntimeException("Expected an integer: " + expression);
+        }
+        return (Integer) value;
+    }
+
+    private ScriptIntArray getArray(String name) {
+        Object value = getVariable(name);
+        if (!(value instanceof ScriptIntArray)) {
+            throw new RuntimeException("Variable '" + name + "' is not an array");
+        }
+        return (ScriptIntArray) value;
+    }
+
+    // Handler for push(list, value)
+    private void handlePush(String line) {
+        try {
+            String[] params = extractParams(line, "push(");
+            if (params == null || params.length != 2) {
+                sendMessage("Error: push requires 2 parameters: list, value");
+                return;
+            }
+            ScriptIntArray list = getArray(params[0].trim());
+            int value = parseNumberParam(params[1].trim());
+            memory.charge(list.growthBytes());
+            list.add(value);
+        } catch (Exception e) {
+            sendMessage("Error in push: " + e.getMessage());
+        }
+    }
+
+    // Handler for addCoord(coords, x, y, z)
+    private void handleAddCoord(String line) {
+        try {
+            String[] params = extractParams(line, "addCoord(");
+            if (params == null || params.length != 4) {
+                sendMessage("Error: addCoord requires 4 parameters: coords, x, y, z");
+                return;
+            }
+            Object value = getVariable(params[0].trim());
+            if (!(value instanceof ScriptCoordList coords)) {
+                sendMessage("Error: Variable '" + params[0].trim() + "' is not a coordinate list");
+                return;
+            }
+            int x = parseNumberParam(params[1].trim());
+            int y = parseNumberParam(params[2].trim());
+            int z = parseNumberParam(params[3].trim());
+            memory.charge(coords.growthBytes());
+            coords.add(x, y, z);
+        } catch (Exception e) {
+            sendMessage("Error in addCoord: " + e.getMessage());
+        }
+    }
+
+    // Handler for placeAll(coords, blockType), places every coordinate in one pass
+    private void handlePlaceAll(String line) {
+        try {
+            String[] params = extractParams(line, "placeAll(");
+            if (params == null || params.length != 2) {
+                sendMessage("Error: placeAll requires 2 parameters: coords, blockType");
+                return;
+            }
+
+            Object value = getVariable(params[0].trim());
+            if (!(value instanceof ScriptCoordList coords)) {
+                sendMessage("Error: Variable '" + params[0].trim() + "' is not a coordinate list");
+                return;
+            }
+
+            String blockType = params[1].trim();
+            if (blockType.startsWith("\"") && blockType.endsWith("\"")) {
+                blockType = blockType.substring(1, blockType.length() - 1);
+            }
+            if (!blockTypes.containsKey(blockType)) {
+                sendMessage("Error: Unknown block type: " + blockType);
+                return;
+            }
+
+            int queued = placeBlocksAtOffsets(coords, blockTypes.get(blockType));
+            sendMessage("Queued " + queued + " " + blockType + " blocks for placement");
+        } catch (Exception e) {
+            sendMessage("Error in placeAll: " + e.getMessage());
+        }
+    }
+
+    // Handler for chiselRegion(x1, y1, z1, x2, y2, z2), corners relative to the origin
+    private void handleChiselRegion(String line) {
+        try {
+            String[] params = extractParams(line, "chiselRegion(");
+            if (params == null || params.length != 6) {
+                sendMessage("Error: chiselRegion requires 6 parameters: x1, y1, z1, x2, y2, z2");
+                return;
+            }
+            if (!(level instanceof ServerLevel)) {
+                sendMessage("Error: Cannot place blocks on client side");
+                return;
+            }
+            if (!mayBuild()) {
+                sendMessage("You don't have permission to build here");
+                return;
+            }
+
+            BlockPos from = origin.offset(evaluateIndex(params[0]), evaluateIndex(params[1]), evaluateIndex(params[2]));
+            BlockPos to = origin.offset(evaluateIndex(params[3]), evaluateIndex(params[4]), evaluateIndex(params[5]));
+            int queued = ChiselItem.chiselRegion(level, from, to, writeBuffer);
+            if (queued < 0) {
+                sendMessage("Error: chiselRegion covers more than " + ChiselItem.MAX_REGION_VOLUME + " blocks");
+                return;
+            }
+            if (queued > 0) {
+                BlockPos center = new BlockPos((from.getX() + to.getX()) / 2, (from.getY() + to.getY()) / 2,
+                        (from.getZ() + to.getZ()) / 2);
+                level.playSound(null, center, SoundEvents.GRINDSTONE_USE, SoundSource.BLOCKS);
+            }
+            sendMessage("Queued " + queued + " chiseled blocks for placement");
+        } catch (Exception e) {
+            sendMessage("Error in chiselRegion: " + e.getMessage());
+        }
+    }
+
+    // Handler for copy(x1, y1, z1, x2, y2, z2), corners relative to the origin
+    private void handleCopy(String line) {
+        try {
+            String[] params = extractParams(line, "copy(");
+            if (params == null || params.length != 6) {
+                sendMessage("Error: copy requires 6 parameters: x1, y1, z1, x2, y2, z2");
+                return;
+            }
+
+            BlockPos from = origin.offset(evaluateIndex(params[0]), evaluateIndex(params[1]), evaluateIndex(params[2]));
+            BlockPos to = origin.offset(evaluateIndex(params[3]), evaluateIndex(params[4]), evaluateIndex(params[5]));
+            clipboard = Clipboard.capture(getReadCache(), from, to);
+            sendMessage("Copied " + clipboard.describe());
+        } catch (Exception e) {
+            sendMessage("Error in copy: " + e.getMessage());
+        }
+    }
+
+    // Handler for paste(x, y, z) with an optional rotation in degrees and mirror axis "x" or "z"
+    private void handlePaste(String line) {
+        try {
+            String[] params = extractParams(line, "paste(");
+            if (params == null || params.length < 3 || params.length > 5) {
+                sendMessage("Error: paste requires 3 to 5 parameters: x, y, z, rotation, mirror");
+                return;
+            }
+            if (clipboard == null) {
+                sendMessage("Error: Nothing has been copied");
+                return;
+            }
+            if (!(level instanceof ServerLevel)) {
+                sendMessage("Error: Cannot place blocks on client side");
+                return;
+            }
+            if (!mayBuild()) {
+                sendMessage("You don't have permission to build here");
+                return;
+            }
+
+            Rotation rotation = params.length > 3 ? rotationOf(params[3]) : Rotation.NONE;
+            if (rotation == null) {
+                sendMessage("Error: Rotation must be a multiple of 90 degrees: " + params[3]);
+                return;
+            }
+
+            Mirror mirror = Mirror.NONE;
+            if (params.length > 4) {
+                Object axis = evaluateValue(params[4]);
+                if ("x".equals(axis)) {
+                    mirror = Mirror.FRONT_BACK;
+                } else if ("z".equals(axis)) {
+                    mirror = Mirror.LEFT_RIGHT;
+                } else if (!"none".equals(axis)) {
+                    sendMessage("Error: Mirror must be \"x\", \"z\" or \"none\": " + params[4]);
+                    return;
+                }
+            }
+
+            BlockPos target = origin.offset(evaluateIndex(params[0]), evaluateIndex(params[1]), evaluateIndex(params[2]));
+            int queued = clipboard.paste(writeBuffer, target, rotation, mirror);
+            sendMessage("Queued " + queued + " pasted blocks for placement");
+        } catch (Exception e) {
+            sendMessage("Error in paste: " + e.getMessage());
+        }
+    }
+
+    // A rotation in degrees, clockwise seen from above, or null if it isn't a multiple of 90
+    private Rotation rotationOf(String param) {
+        return switch (Math.floorMod(evaluateIndex(param), 360)) {
+            case 0 -> Rotation.NONE;
+            case 90 -> Rotation.CLOCKWISE_90;
+            case 180 -> Rotation.CLOCKWISE_180;
+            case 270 -> Rotation.COUNTERCLOCKWISE_90;
+            default -> null;
+        };
+    }
+
+    // Handler for placeStructure(name, x, y, z) with an optional rotation in degrees. Places a structure
+    // template, such as one saved by /mcsl export, with its minimum corner at x, y, z.
+    private void handlePlaceStructure(String line) {
+        try {
+            String[] params = extractParams(line, "placeStructure(");
+            if (params == null || params.length < 4 || params.length > 5) {
+                sendMessage("Error: placeStructure requires 4 or 5 parameters: name, x, y, z, rotation");
+                return;
+            }
+            Object name = evaluateValue(params[0]);
+            ResourceLocation id = name instanceof String ? ScriptTemplates.id((String) name) : null;
+            if (id == null) {
+                sendMessage("Error: Not a structure name: " + params[0]);
+                return;
+            }
+            if (!(level instanceof ServerLevel serverLevel)) {
+                sendMessage("Error: Cannot place blocks on client side");
+                return;
+            }
+            if (!mayBuild()) {
+                sendMessage("You don't have permission to build here");
+                return;
+            }
+
+            Rotation rotation = params.length > 4 ? rotationOf(params[4]) : Rotation.NONE;
+            if (rotation == null) {
+                sendMessage("Error: Rotation must be a multiple of 90 degrees: " + params[4]);
+                return;
+            }
+            ScriptTemplates.Parsed template = ScriptTemplates.find(serverLevel, id);
+            if (template == null) {
+                sendMessage("Error: No structure named " + id);
+                return;
+            }
+
+            BlockPos target = origin.offset(evaluateIndex(params[1]), evaluateIndex(params[2]), evaluateIndex(params[3]));
+            int queued = ScriptTemplates.place(template, writeBuffer, target, rotation);
+            sendMessage("Queued " + queued + " blocks of " + id + " for placement");
+        } catch (Exception e) {
+            sendMessage("Error in placeStructure: " + e.getMessage());
+        }
+    }
+
+    // Handler for saveClipboard("name") and loadClipboard("name")
+    private void handleClipboardFile(String line) {
+        boolean save = line.startsWith("saveClipboard(");
+        try {
+            String[] params = extractParams(line, save ? "saveClipboard(" : "loadClipboard(");
+            Object name = params != null && params.length == 1 ? evaluateValue(params[0]) : null;
+            if (!(name instanceof String) || !Clipboard.isValidName((String) name)) {
+                sendMessage("Error: Clipboard names may only use letters, digits, - and _");
+                return;
+            }
+
+            if (save) {
+                if (clipboard == null) {
+                    sendMessage("Error: Nothing has been copied");
+                    return;
+                }
+                if (!dryRun) {
+                    clipboard.saveAsync((String) name);
+                }
+                sendMessage("Saving clipboard " + name);
+            } else {
+                clipboard = Clipboard.load((String) name);
+                sendMessage("Loaded clipboard " + name + ": " + clipboard.describe());
+            }
+        } catch (Exception e) {
+            sendMessage("Error in " + (save ? "saveClipboard: " : "loadClipboard: ") + e.getMessage());
+        }
+    }
+
+    // Bulk version of placeBlockAtPosition without the per-block chat messages, returns how many were queued
+    private int placeBlocksAtOffsets(ScriptCoordList coords, Block block) {
+        if (!(level instanceof ServerLevel)) {
+            sendMessage("Error: Cannot place blocks on client side");
+            return 0;
+        }
+        if (!mayBuild()) {
+            sendMessage("You don't have permission to build here");
+            return 0;
+        }
+
+        BlockState state = block.defaultBlockState();
+        for (int i = 0; i < coords.size(); i++) {
+            long offset = coords.get(i);
+            writeBuffer.add(origin.offset(BlockPos.getX(offset), BlockPos.getY(offset), BlockPos.getZ(offset)), state);
+        }
+        return coords.size();
+    }
+
+    // Splits an argument list on the commas that aren't inside brackets or quotes
+    private String[] splitArguments(String argList) {
+        if (argList.isEmpty()) {
+            return new String[0];
+        }
+
+        List<String> args = new ArrayList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < argList.length(); i++) {
+            char c = argList.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '(' || c == '[')) {
+                depth++;
+            } else if (!quoted && (c == ')' || c == ']')) {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                args.add(argList.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        args.add(argList.substring(start).trim());
+        return args.toArray(new String[0]);
+    }
+
+    // Returns the comma separated parameters of name(...), or null if the brackets are missing
+    private String[] extractParams(String line, String prefix) {
+        int startIndex = line.indexOf(prefix);
+        int endIndex = line.lastIndexOf(")");
+        if (startIndex == -1 || endIndex == -1) {
+            return null;
+        }
+        return splitArguments(line.substring(startIndex + prefix.length(), endIndex).trim());
+    }
+
+    // For (v in a) runs the loop's If chain once per element
+    private void handleForEachLoop(String loopContent, CallFrame frame) {
+        String[] parts = loopContent.split(" in ");
+        String varName = parts[0].trim();
+        ScriptIntArray array = getArray(parts[1].trim());
+
+        if (debug) sendMessage("Starting loop over " + array.size() + " elements");
+
+        CallFrame loop = pushLoop(CallFrame.FOR_EACH, frame, frame.lines);
+        if (loop != null) {
+            loop.loopVariable = varName;
+            loop.loopIndex = 0;
+            loop.loopArray = array;
+        }
+    }
+
     private void handleAssignment(String line) {
         try {
             String[] parts = line.split("=");
@@ -911,22 +2479,38 @@ public class MCScriptInterpreter{
                 expression = expression.substring(0, expression.length() - 1).trim();
             }
 
-            // Handle arithmetic expressions
-            if (expression.contains("+")) {
-                String[] operands = expression.split("\\+");
-                int left = getValueForArithmetic(operands[0].trim());
-                int right = getValueForArithmetic(operands[1].trim());
-                variables.put(varName, left + right);
-                if (debug) sendMessage("Assigned " + varName + " = " + (left + right));
-            } else {
-                // Simple assignment
-                if (variables.containsKey(expression)) {
-                    variables.put(varName, variables.get(expression));
+            // Handle element writes, a[i] = value
+            if (INDEX_PATTERN.matcher(varName).matches()) {
+                assignElement(varName, expression);
+            }
+            // Handle function calls, the value arrives when the call returns
+            else if (isFunctionCall(expression)) {
+                callFunction(expression, varName, false);
+            }
+            // Handle world queries
+            else if (WORLD_QUERY_PATTERN.matcher(expression).matches()) {
+                setVariable(varName, evaluateWorldQuery(expression));
+            }
+            else {
+                Integer element = evaluateAccessor(expression);
+                // Handle element reads and len()
+                if (element != null) {
+                    setVariable(varName, element);
+                }
+                // Handle arithmetic expressions
+                else if (!isIntegerLiteral(expression) && (expression.contains("+") || expression.contains("-") ||
+                        expression.contains("*") || expression.contains("/"))) {
+                    int result = evaluateArithmeticExpression(expression);
+                    setVariable(varName, result);
+                    if (debug) sendMessage("Assigned " + varName + " = " + result);
                 } else {
-                    try {
-                        int value = Integer.parseInt(expression);
-                        variables.put(varName, value);
-                    } catch (NumberFormatException e) {
+                    // Simple assignment
+                    Integer value = resolveLiteral(expression);
+                    if (hasVariable(expression)) {
+                        setVariable(varName, getVariable(expression));
+                    } else if (value != null) {
+                        setVariable(varName, value);
+                    } else {
                         sendMessage("Error: Invalid value: " + expression);
                     }
                 }
@@ -937,6 +2521,10 @@ public class MCScriptInterpreter{
     }
 
     private boolean evaluateWhileCondition(String condition) {
+        Boolean quick = quickWhileCondition(condition);
+        if (quick != null) {
+            return quick;
+        }
         try {
             if (condition.contains("<")) {
                 String[] parts = condition.split("<");
@@ -0,0 +1,79 @@
+package net.chris.mcscript.item.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+// Runs the iterations of a parallel For on worker threads.
+// The range is cut into slices and each slice runs in its own worker interpreter with a copy
+// of the script's variables, queuing its blocks into its own chunk-grouped buffer. The script
+// merges the slices in order on the server thread once every one of them has finished.
+class ParallelForJob {
+    // Loops shorter than this aren't worth handing to other threads
+    static final int MIN_ITERATIONS = 256;
+    private static final int MIN_SLICE = 64;
+    private static final int SLICES_PER_THREAD = 4;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("MCSL-Worker-" + thread.getPoolIndex());
+                return thread;
+            },
+            null, true);
+
+    private final List<MCScriptInterpreter> workers = new ArrayList<>();
+    private CompletableFuture<Void> done;
+
+    private ParallelForJob() {
+    }
+
+    static ParallelForJob start(MCScriptInterpreter script, CallFrame loop, Map<String, Object> variables) {
+        int first = loop.loopIndex;
+        int last = loop.kind == CallFrame.FOR ? loop.loopEnd : loop.loopArray.size() - 1;
+        int iterations = last - first + 1;
+        int sliceSize = Math.max(MIN_SLICE, iterations / (POOL.getParallelism() * SLICES_PER_THREAD) + 1);
+
+        // The script is suspended until the job is merged, so workers can share its collections
+        String variable = loop.loopVariable;
+        String[] lines = loop.lines;
+        ScriptIntArray array = loop.kind == CallFrame.FOR_EACH ? loop.loopArray : null;
+
+        ParallelForJob job = new ParallelForJob();
+        List<CompletableFuture<Void>> slices = new ArrayList<>();
+        for (int from = first; from <= last; from += sliceSize) {
+            MCScriptInterpreter worker = script.forkWorker(variables);
+            job.workers.add(worker);
+            int start = from;
+            int end = Math.min(last, from + sliceSize - 1);
+            slices.add(CompletableFuture.runAsync(() -> {
+                for (int i = start; i <= end; i++) {
+                    worker.runWorkerIteration(variable, array != null ? array.get(i) : i, lines);
+                }
+            }, POOL));
+        }
+        job.done = CompletableFuture.allOf(slices.toArray(new CompletableFuture[0]));
+        return job;
+    }
+
+    boolean isDone() {
+        return done.isDone();
+    }
+
+    // Blocks until every slice has finished, for scripts that run outside the scheduler
+    void await() {
+        done.join();
+    }
+
+    int getSliceCount() {
+        return workers.size();
+    }
+
+    List<MCScriptInterpreter> getWorkers() {
+        return workers;
+    }
+}
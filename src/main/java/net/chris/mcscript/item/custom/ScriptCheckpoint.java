@@ -0,0 +1,374 @@
+package net.chris.mcscript.item.custom;
+
+import net.chris.mcscript.runtime.Clipboard;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.Level;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Saves a suspended interpreter to a compact binary form and rebuilds it later.
+// The script source is stored once and functions are re-extracted from it on load,
+// so frames only record which lines they run, where they are and their variables.
+public class ScriptCheckpoint {
+    private static final int VERSION = 3;
+
+    // Where a frame's lines come from
+    private static final int LINES_MAIN = 0;
+    private static final int LINES_FUNCTION = 1;
+    private static final int LINES_PARENT = 2;
+    private static final int LINES_INLINE = 3;
+
+    // Value tags
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_INT = 1;
+    private static final int VALUE_STRING = 2;
+    private static final int VALUE_ARRAY = 3;
+    private static final int VALUE_COORDS = 4;
+    private static final int VALUE_REF = 5;
+
+    public static void write(MCScriptInterpreter interpreter, DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        UUID ownerId = interpreter.ownerId != null ? interpreter.ownerId : new UUID(0, 0);
+        out.writeLong(ownerId.getMostSignificantBits());
+        out.writeLong(ownerId.getLeastSignificantBits());
+        out.writeLong(interpreter.origin.asLong());
+        out.writeByte(interpreter.facing.get3DDataValue());
+        out.writeUTF(interpreter.getLevel().dimension().location().toString());
+        writeLongString(out, interpreter.source);
+        // On block runs start from the handler body rather than the script's top level
+        out.writeBoolean(interpreter.customMain);
+        if (interpreter.customMain) {
+            writeLines(out, interpreter.mainLines);
+        }
+        out.writeLong(interpreter.instructionCount);
+        out.writeInt(interpreter.waitTicks);
+
+        // Collections can be shared between variables, so each is written once and referenced after that
+        Map<Object, Integer> written = new IdentityHashMap<>();
+        writeVariables(out, interpreter.variables, written);
+
+        out.writeInt(interpreter.callStack.size());
+        String[] below = null;
+        Iterator<CallFrame> frames = interpreter.callStack.descendingIterator();
+        while (frames.hasNext()) {
+            CallFrame frame = frames.next();
+            writeFrame(out, interpreter, frame, below, written);
+            below = frame.lines;
+        }
+
+        interpreter.writeBuffer.write(out);
+        out.writeBoolean(interpreter.clipboard != null);
+        if (interpreter.clipboard != null) {
+            interpreter.clipboard.write(out);
+        }
+    }
+
+    // Reads the dimension the checkpoint belongs to without restoring anything else
+    public static String readDimension(DataInput in) throws IOException {
+        readVersion(in);
+        in.readLong();
+        in.readLong();
+        in.readLong();
+        in.readByte();
+        return in.readUTF();
+    }
+
+    public static MCScriptInterpreter read(DataInput in, Level level, Player player) throws IOException {
+        int version = readVersion(in);
+        UUID ownerId = new UUID(in.readLong(), in.readLong());
+        BlockPos origin = BlockPos.of(in.readLong());
+        Direction facing = Direction.from3DDataValue(in.readByte());
+        in.readUTF();
+
+        MCScriptInterpreter interpreter = new MCScriptInterpreter(player, level);
+        interpreter.ownerId = ownerId.getMostSignificantBits() == 0 && ownerId.getLeastSignificantBits() == 0 ? null : ownerId;
+        interpreter.origin = origin;
+        interpreter.facing = facing;
+        interpreter.source = readLongString(in);
+        String[] sourceLines = interpreter.source.split("\n");
+        interpreter.mainLines = interpreter.extractDefinitions(sourceLines.clone());
+        interpreter.validate(sourceLines);
+        if (version >= 2 && in.readBoolean()) {
+            interpreter.mainLines = readLines(in);
+            interpreter.customMain = true;
+        }
+        interpreter.instructionCount = in.readLong();
+        interpreter.waitTicks = in.readInt();
+
+        List<Object> seen = new ArrayList<>();
+        readVariables(in, interpreter.variables, seen);
+
+        int frameCount = in.readInt();
+        CallFrame scope = null;
+        String[] below = null;
+        for (int i = 0; i < frameCount; i++) {
+            CallFrame frame = readFrame(in, interpreter, scope, below, seen);
+            if (frame.kind == CallFrame.CALL) {
+                scope = frame;
+            }
+            below = frame.lines;
+            interpreter.callStack.push(frame);
+        }
+
+        interpreter.writeBuffer.read(in);
+        if (version >= 3 && in.readBoolean()) {
+            interpreter.clipboard = Clipboard.read(in);
+        }
+        return interpreter;
+    }
+
+    private static int readVersion(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported script checkpoint version " + version);
+        }
+        return version;
+    }
+
+    private static void writeFrame(DataOutput out, MCScriptInterpreter interpreter, CallFrame frame,
+                                   String[] below, Map<Object, Integer> written) throws IOException {
+        out.writeByte(frame.kind);
+        out.writeUTF(frame.function != null ? frame.function.getName() : "");
+
+        if (frame.lines == interpreter.mainLines) {
+            out.writeByte(LINES_MAIN);
+        } else if (frame.function != null && frame.lines == frame.function.getBody()) {
+            out.writeByte(LINES_FUNCTION);
+        } else if (frame.lines == below) {
+            out.writeByte(LINES_PARENT);
+        } else {
+            out.writeByte(LINES_INLINE);
+            writeLines(out, frame.lines);
+        }
+
+        out.writeInt(frame.pc);
+        out.writeBoolean(frame.branchTaken);
+
+        if (frame.kind == CallFrame.CALL) {
+            int slotCount = frame.function != null ? frame.function.getParamCount() : 0;
+            out.writeInt(slotCount);
+            for (int i = 0; i < slotCount; i++) {
+                writeValue(out, frame.slots[i], written);
+            }
+            writeVariables(out, frame.locals, written);
+            writeNullableString(out, frame.returnTarget);
+            out.writeBoolean(frame.declareTarget);
+        } else {
+            writeNullableString(out, frame.loopCondition);
+            writeNullableString(out, frame.loopVariable);
+            out.writeInt(frame.loopIndex);
+            out.writeInt(frame.loopEnd);
+            writeValue(out, frame.loopArray, written);
+        }
+    }
+
+    private static CallFrame readFrame(DataInput in, MCScriptInterpreter interpreter, CallFrame scope,
+                                       String[] below, List<Object> seen) throws IOException {
+        int kind = in.readByte();
+        String functionName = in.readUTF();
+        ScriptFunction function = null;
+        if (!functionName.isEmpty()) {
+            function = interpreter.functions.get(functionName);
+            if (function == null) {
+                throw new IOException("Unknown function in checkpoint: " + functionName);
+            }
+        }
+
+        String[] lines;
+        int source = in.readByte();
+        switch (source) {
+            case LINES_MAIN -> lines = interpreter.mainLines;
+            case LINES_FUNCTION -> lines = function != null ? function.getBody() : interpreter.mainLines;
+            case LINES_PARENT -> lines = below;
+            case LINES_INLINE -> lines = readLines(in);
+            default -> throw new IOException("Bad line source " + source);
+        }
+        if (lines == null) {
+            throw new IOException("Frame has no lines to run");
+        }
+
+        CallFrame frame = interpreter.framePool.acquire();
+        if (kind == CallFrame.CALL) {
+            frame.enter(function, lines, null, false);
+        } else {
+            if (scope == null) {
+                throw new IOException("Loop frame outside of any call");
+            }
+            frame.enterLoop(kind, scope, lines);
+        }
+        frame.pc = in.readInt();
+        frame.branchTaken = in.readBoolean();
+
+        if (kind == CallFrame.CALL) {
+            int slotCount = in.readInt();
+            if (slotCount != (function != null ? function.getParamCount() : 0)) {
+                throw new IOException("Parameter count changed for " + functionName);
+            }
+            for (int i = 0; i < slotCount; i++) {
+                frame.slots[i] = readValue(in, seen);
+            }
+            readVariables(in, frame.locals(), seen);
+            frame.returnTarget = readNullableString(in);
+            frame.declareTarget = in.readBoolean();
+        } else {
+            frame.loopCondition = readNullableString(in);
+            frame.loopVariable = readNullableString(in);
+            frame.loopIndex = in.readInt();
+            frame.loopEnd = in.readInt();
+            Object array = readValue(in, seen);
+            frame.loopArray = array instanceof ScriptIntArray intArray ? intArray : null;
+        }
+        return frame;
+    }
+
+    private static void writeVariables(DataOutput out, Map<String, Object> variables, Map<Object, Integer> written) throws IOException {
+        if (variables == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(variables.size());
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeValue(out, entry.getValue(), written);
+        }
+    }
+
+    private static void readVariables(DataInput in, Map<String, Object> variables, List<Object> seen) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            variables.put(name, readValue(in, seen));
+        }
+    }
+
+    private static void writeValue(DataOutput out, Object value, Map<Object, Integer> written) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof Integer number) {
+            out.writeByte(VALUE_INT);
+            out.writeInt(number);
+        } else if (value instanceof String string) {
+            out.writeByte(VALUE_STRING);
+            writeLongString(out, string);
+        } else if (written.containsKey(value)) {
+            out.writeByte(VALUE_REF);
+            out.writeInt(written.get(value));
+        } else if (value instanceof ScriptIntArray array) {
+            written.put(value, written.size());
+            out.writeByte(VALUE_ARRAY);
+            out.writeBoolean(array.isGrowable());
+            out.writeInt(array.size());
+            for (int i = 0; i < array.size(); i++) {
+                out.writeInt(array.get(i));
+            }
+        } else if (value instanceof ScriptCoordList coords) {
+            written.put(value, written.size());
+            out.writeByte(VALUE_COORDS);
+            out.writeInt(coords.size());
+            for (int i = 0; i < coords.size(); i++) {
+                out.writeLong(coords.get(i));
+            }
+        } else {
+            throw new IOException("Cannot save value of type " + value.getClass().getSimpleName());
+        }
+    }
+
+    private static Object readValue(DataInput in, List<Object> seen) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_INT:
+                return in.readInt();
+            case VALUE_STRING:
+                return readLongString(in);
+            case VALUE_REF: {
+                int id = in.readInt();
+                if (id < 0 || id >= seen.size()) {
+                    throw new IOException("Bad value reference " + id);
+                }
+                return seen.get(id);
+            }
+            case VALUE_ARRAY: {
+                boolean growable = in.readBoolean();
+                int size = in.readInt();
+                ScriptIntArray array;
+                if (growable) {
+                    int[] values = new int[size];
+                    for (int i = 0; i < size; i++) {
+                        values[i] = in.readInt();
+                    }
+                    array = ScriptIntArray.growable(values);
+                } else {
+                    array = ScriptIntArray.fixed(size);
+                    for (int i = 0; i < size; i++) {
+                        array.set(i, in.readInt());
+                    }
+                }
+                seen.add(array);
+                return array;
+            }
+            case VALUE_COORDS: {
+                int size = in.readInt();
+                ScriptCoordList coords = new ScriptCoordList();
+                for (int i = 0; i < size; i++) {
+                    coords.addPacked(in.readLong());
+                }
+                seen.add(coords);
+                return coords;
+            }
+            default:
+                throw new IOException("Bad value tag " + tag);
+        }
+    }
+
+    private static void writeNullableString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeLines(DataOutput out, String[] lines) throws IOException {
+        out.writeInt(lines.length);
+        for (String line : lines) {
+            writeLongString(out, line);
+        }
+    }
+
+    private static String[] readLines(DataInput in) throws IOException {
+        String[] lines = new String[in.readInt()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = readLongString(in);
+        }
+        return lines;
+    }
+
+    // writeUTF is limited to 64KB, which a whole script can go over
+    private static void writeLongString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLongString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
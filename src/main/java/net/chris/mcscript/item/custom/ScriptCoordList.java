@@ -0,0 +1,51 @@
+package net.chris.mcscript.item.custom;
+
+import net.minecraft.core.BlockPos;
+
+import java.util.Arrays;
+
+// Growable list of block coordinates, each packed into a long the same way BlockPos.asLong does
+public class ScriptCoordList {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] data = new long[DEFAULT_CAPACITY];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    // Rough heap taken by the list, see ScriptMemory
+    public long estimateBytes() {
+        return 48 + 8L * data.length;
+    }
+
+    // Extra bytes the next add() allocates, 0 while there is room
+    public long growthBytes() {
+        return size == data.length ? 8L * data.length : 0;
+    }
+
+    public void add(int x, int y, int z) {
+        addPacked(BlockPos.asLong(x, y, z));
+    }
+
+    public void addPacked(long pos) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = pos;
+    }
+
+    // Returns the packed coordinate, unpack with BlockPos.getX/getY/getZ
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new RuntimeException("Index " + index + " out of bounds for length " + size);
+        }
+        return data[index];
+    }
+
+    @Override
+    public String toString() {
+        return "coords(" + size + ")";
+    }
+}
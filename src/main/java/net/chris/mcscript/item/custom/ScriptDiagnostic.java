@@ -0,0 +1,9 @@
+package net.chris.mcscript.item.custom;
+
+// A problem found in a script before it runs, lines and columns counted from 1
+public record ScriptDiagnostic(int line, int column, String message) {
+    @Override
+    public String toString() {
+        return "Line " + line + ":" + column + ": " + message;
+    }
+}
@@ -0,0 +1,7 @@
+package net.chris.mcscript.item.custom;
+
+// What a dry run of a script did. When complete is false the run was stopped early, and the
+// counts are what it had reached by then. A script with errors isn't run at all.
+public record ScriptEstimate(long instructions, int blocks, int chunks, int entities, long nanos,
+                             boolean complete, int errors) {
+}
@@ -0,0 +1,66 @@
+package net.chris.mcscript.item.custom;
+
+import net.chris.mcscript.runtime.ExecutionState;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.Level;
+
+// Works out roughly how much a script will do before it is allowed to run, by running it once as
+// a dry run. Its writes are queued in a buffer that is never flushed, so reads still see them, and
+// wait() doesn't pause. The run stops as soon as it goes over one of the limits or runs out of
+// time, which keeps a runaway script from becoming the lag spike the estimate is meant to prevent.
+public class ScriptEstimator {
+    // Instructions run between checks against the limits, small enough to stop close to the time limit
+    private static final long SLICE_INSTRUCTIONS = 1_000;
+
+    // How far a dry run may go; a limit of 0 means no limit
+    public record Limits(long instructions, int blocks, int chunks, int entities, long nanos) {
+    }
+
+    public static ScriptEstimate estimate(Player player, Level level, String code, Limits limits) {
+        MCScriptInterpreter interpreter = new MCScriptInterpreter(player, level);
+        interpreter.startDryRun();
+        return run(interpreter, code, limits);
+    }
+
+    // Loads and runs code on an interpreter that has been made a dry run, until it ends or goes over a limit
+    static ScriptEstimate run(MCScriptInterpreter interpreter, String code, Limits limits) {
+        long start = System.nanoTime();
+        interpreter.load(code);
+        if (!interpreter.getDiagnostics().isEmpty()) {
+            return new ScriptEstimate(0, 0, 0, 0, System.nanoTime() - start, true, interpreter.getDiagnostics().size());
+        }
+
+        boolean complete = false;
+        while (true) {
+            ExecutionState state = interpreter.resume(SLICE_INSTRUCTIONS);
+            if (state == ExecutionState.FINISHED || state == ExecutionState.ABORTED) {
+                complete = true;
+                break;
+            }
+            if (state == ExecutionState.WAITING) {
+                interpreter.skipWait();
+            }
+            if (isOver(interpreter, limits) || (limits.nanos() > 0 && System.nanoTime() - start > limits.nanos())) {
+                break;
+            }
+        }
+        if (!complete) {
+            // Let a parallel For that was cut off finish before its writes are dropped
+            interpreter.skipWait();
+        }
+
+        return new ScriptEstimate(interpreter.getInstructionCount(), interpreter.writeBuffer.size(),
+                interpreter.writeBuffer.getChunkCount(), interpreter.spawns, System.nanoTime() - start, complete, 0);
+    }
+
+    private static boolean isOver(MCScriptInterpreter interpreter, Limits limits) {
+        return over(interpreter.getInstructionCount(), limits.instructions())
+                || over(interpreter.writeBuffer.size(), limits.blocks())
+                || over(interpreter.writeBuffer.getChunkCount(), limits.chunks())
+                || over(interpreter.spawns, limits.entities());
+    }
+
+    private static boolean over(long value, long limit) {
+        return limit > 0 && value > limit;
+    }
+}
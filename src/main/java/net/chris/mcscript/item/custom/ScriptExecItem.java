@@ -1,5 +1,11 @@
 package net.chris.mcscript.item.custom;
 
+import net.chris.mcscript.runtime.IncrementalBuild;
+import net.chris.mcscript.runtime.RuntimeSettings;
+import net.chris.mcscript.runtime.ScriptAdmission;
+import net.chris.mcscript.runtime.ScriptEventDispatcher;
+import net.chris.mcscript.runtime.ScriptScheduler;
+import net.chris.mcscript.runtime.ScriptTask;
 import net.minecraft.network.chat.Component;
 import net.minecraft.world.InteractionHand;
 import net.minecraft.world.InteractionResultHolder;
@@ -38,10 +44,9 @@ public class ScriptExecItem extends Item {
 
             try {
                 String scriptContent = readFile(scriptFile.getPath());
-                MCScriptInterpreter interpreter = new MCScriptInterpreter(pPlayer, pLevel);
-                interpreter.interpret(scriptContent);
-
-                pPlayer.sendSystemMessage(Component.literal("Script execution completed."));
+                if (startScript(pPlayer, pLevel, scriptFile.getName(), scriptContent) == null) {
+                    return InteractionResultHolder.fail(pPlayer.getItemInHand(pUsedHand));
+                }
             } catch (IOException e) {
                 pPlayer.sendSystemMessage(Component.literal("Error reading script: " + e.getMessage()));
             } catch (Exception e) {
@@ -52,7 +57,57 @@ public class ScriptExecItem extends Item {
         return InteractionResultHolder.success(pPlayer.getItemInHand(pUsedHand));
     }
 
-    private String readFile(String filePath) throws IOException {
+    // Starts a script for the player the way using the item does, returning its task, or null if it was refused.
+    // The soak test drives the runtime through here too.
+    public static ScriptTask startScript(Player player, Level level, String name, String content) {
+        if (ScriptScheduler.get().atScriptLimit(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("Script refused: you already have "
+                    + RuntimeSettings.get().maxScriptsPerPlayer() + " scripts running"));
+            return null;
+        }
+
+        // A dry run first, so a script that would do far too much is stopped before it starts
+        ScriptAdmission.Result admission = ScriptAdmission.admit(player, level, content);
+        if (admission.decision() == ScriptAdmission.Decision.REJECT) {
+            player.sendSystemMessage(Component.literal("Script refused: " + String.join(", ", admission.reasons())));
+            return null;
+        }
+
+        MCScriptInterpreter interpreter = new MCScriptInterpreter(player, level);
+        interpreter.load(content);
+
+        // Running a script again replaces the On blocks it registered last time
+        int handlers = ScriptEventDispatcher.get().register(name, interpreter);
+        if (handlers > 0) {
+            player.sendSystemMessage(Component.literal("Registered " + handlers + " event handlers"));
+        }
+
+        // Running it again from the same spot only writes the blocks that changed since last time
+        ScriptTask task = new ScriptTask(name, interpreter);
+        IncrementalBuild build = IncrementalBuild.start(name, interpreter);
+        if (build.isRebuild()) {
+            player.sendSystemMessage(Component.literal("Rebuilding against the last run from here"));
+        }
+        task.setIncrementalBuild(build);
+        task.setLarge(admission.decision() == ScriptAdmission.Decision.QUEUE);
+        task.setUnlimited(!admission.reasons().isEmpty());
+
+        // The scheduler runs the script over the next ticks and reports when it completes
+        if (!ScriptScheduler.get().submit(task)) {
+            player.sendSystemMessage(Component.literal("Queued behind another large build ("
+                    + ScriptAdmission.describe(admission.estimate()) + ")"));
+        }
+        return task;
+    }
+
+    // The script with this file name in the script directory, the .mcsl being optional
+    public static File findScript(String name) {
+        if (name.contains("/") || name.contains("\\")) return null;
+        File file = new File(SCRIPT_PATH, name.endsWith(".mcsl") ? name : name + ".mcsl");
+        return file.isFile() ? file : null;
+    }
+
+    public static String readFile(String filePath) throws IOException {
         StringBuilder content = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
             String line;
@@ -0,0 +1,34 @@
+package net.chris.mcscript.item.custom;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.chris.mcscript.runtime.ScriptFootprints;
+import net.chris.mcscript.runtime.ScriptTemplates;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.Level;
+
+// Runs a build script as a dry run, the way ScriptEstimator does, and keeps the last state it wrote at each
+// position so /mcsl export can save the build as a structure template instead of building it.
+public class ScriptExporter {
+    public static ScriptTemplates.Export export(Player player, Level level, String code, ScriptEstimator.Limits limits) {
+        MCScriptInterpreter interpreter = new MCScriptInterpreter(player, level);
+        interpreter.startDryRun();
+        interpreter.getWriteBuffer().recordFootprint();
+        ScriptEstimate estimate = ScriptEstimator.run(interpreter, code, limits);
+        if (estimate.errors() > 0) {
+            throw new IllegalArgumentException("the script has " + estimate.errors() + " errors");
+        }
+        if (!estimate.complete()) {
+            throw new IllegalArgumentException("the script went over the limits after " + estimate.instructions()
+                    + " instructions and " + estimate.blocks() + " blocks");
+        }
+
+        Long2IntOpenHashMap footprint = interpreter.getWriteBuffer().takeFootprint();
+        if (footprint == null) {
+            throw new IllegalArgumentException("the script writes more than " + ScriptFootprints.MAX_FOOTPRINT_BLOCKS + " blocks");
+        }
+        if (footprint.isEmpty()) {
+            throw new IllegalArgumentException("the script doesn't place any blocks");
+        }
+        return ScriptTemplates.toTemplate(footprint, interpreter.getOrigin());
+    }
+}
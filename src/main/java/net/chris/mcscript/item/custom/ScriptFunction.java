@@ -0,0 +1,40 @@
+package net.chris.mcscript.item.custom;
+
+// A user-defined MCSL function: Func name(a, b) { ... }
+public class ScriptFunction {
+    private final String name;
+    private final String[] params;
+    private final String[] body;
+
+    public ScriptFunction(String name, String[] params, String[] body) {
+        this.name = name;
+        this.params = params;
+        this.body = body;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getBody() {
+        return body;
+    }
+
+    public int getParamCount() {
+        return params.length;
+    }
+
+    public String getParam(int slot) {
+        return params[slot];
+    }
+
+    // Returns the frame slot holding the given parameter, or -1 if it isn't a parameter
+    public int slotOf(String variable) {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i].equals(variable)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
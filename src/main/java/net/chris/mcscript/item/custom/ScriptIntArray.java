@@ -0,0 +1,95 @@
+package net.chris.mcscript.item.custom;
+
+import java.util.Arrays;
+
+// MCSL int array backed by a primitive int[].
+// Fixed arrays come from array(n), growable ones from list(...) and push().
+public class ScriptIntArray {
+    private static final int DEFAULT_CAPACITY = 16;
+    // Elements toString() shows before summarising the rest
+    private static final int MAX_SHOWN = 1000;
+
+    private int[] data;
+    private int size;
+    private final boolean growable;
+
+    private ScriptIntArray(int[] data, int size, boolean growable) {
+        this.data = data;
+        this.size = size;
+        this.growable = growable;
+    }
+
+    // Rough heap taken by an array with room for capacity elements, see ScriptMemory
+    public static long bytesFor(int capacity) {
+        return 48 + 4L * Math.max(0, capacity);
+    }
+
+    public long estimateBytes() {
+        return bytesFor(data.length);
+    }
+
+    // Extra bytes the next add() allocates, 0 while there is room
+    public long growthBytes() {
+        return growable && size == data.length ? 4L * data.length : 0;
+    }
+
+    public static ScriptIntArray fixed(int size) {
+        if (size < 0) {
+            throw new RuntimeException("Array size cannot be negative: " + size);
+        }
+        return new ScriptIntArray(new int[size], size, false);
+    }
+
+    public static ScriptIntArray growable(int[] initial) {
+        int[] data = Arrays.copyOf(initial, Math.max(DEFAULT_CAPACITY, initial.length));
+        return new ScriptIntArray(data, initial.length, true);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isGrowable() {
+        return growable;
+    }
+
+    public int get(int index) {
+        checkIndex(index);
+        return data[index];
+    }
+
+    public void set(int index, int value) {
+        checkIndex(index);
+        data[index] = value;
+    }
+
+    public void add(int value) {
+        if (!growable) {
+            throw new RuntimeException("Cannot push to a fixed-size array, use list() instead");
+        }
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = value;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new RuntimeException("Index " + index + " out of bounds for length " + size);
+        }
+    }
+
+    // Shows at most MAX_SHOWN elements, so printing a huge list doesn't build a huge string
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 0; i < Math.min(size, MAX_SHOWN); i++) {
+            if (i > 0) out.append(", ");
+            out.append(data[i]);
+        }
+        if (size > MAX_SHOWN) {
+            out.append(", ... ").append(size - MAX_SHOWN).append(" more");
+        }
+        return out.append("]").toString();
+    }
+}
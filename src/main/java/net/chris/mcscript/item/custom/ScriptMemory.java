@@ -0,0 +1,97 @@
+package net.chris.mcscript.item.custom;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Approximate heap one script execution holds on to: its variables and call frames, its clipboard
+// and the block writes it has queued. The interpreter measures it at the start of every slice and
+// every MEASURE_INTERVAL instructions, and charges new arrays and list growth before allocating
+// them, so array(2000000000) is refused instead of attempted. Once the execution is over its limit
+// the interpreter stops it. Sizes are rough figures for a 64-bit JVM with compressed references and
+// Latin-1 strings; they only need to be close enough that one script can't exhaust the heap.
+public class ScriptMemory {
+    // Instructions between measurements within one slice
+    static final int MEASURE_INTERVAL = 1024;
+
+    private static final int OBJECT = 16;
+    private static final int REFERENCE = 4;
+    private static final int MAP_ENTRY = 40;
+    private static final int STRING = 40;
+
+    // Bytes, 0 for no limit
+    private long limit;
+    // Bytes found by the last measurement, plus whatever was charged since
+    private long used;
+    private long peak;
+    private boolean exceeded;
+    // Arrays and lists already counted in this measurement, one list can be held by several variables
+    private final Set<Object> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    void setLimit(long bytes) {
+        limit = bytes;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public long getPeak() {
+        return peak;
+    }
+
+    boolean isExceeded() {
+        return exceeded;
+    }
+
+    // Called before allocating; throws instead if the execution would go over its limit
+    void charge(long bytes) {
+        if (limit > 0 && used + bytes > limit) {
+            exceeded = true;
+            throw new RuntimeException("Script memory limit of " + limit / 1024 + " KB exceeded");
+        }
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    // Replaces the running total with a fresh measurement of what the execution holds
+    void measure(Map<String, Object> variables, Iterable<CallFrame> frames, long other) {
+        counted.clear();
+        long bytes = other + sizeOf(variables);
+        for (CallFrame frame : frames) {
+            bytes += OBJECT * 4 + (long) frame.slots.length * REFERENCE;
+            for (Object slot : frame.slots) {
+                if (slot != null) bytes += sizeOf(slot);
+            }
+            if (frame.locals != null) bytes += sizeOf(frame.locals);
+        }
+        counted.clear();
+
+        used = bytes;
+        peak = Math.max(peak, used);
+        if (limit > 0 && used > limit) {
+            exceeded = true;
+        }
+    }
+
+    private long sizeOf(Map<String, Object> variables) {
+        long bytes = OBJECT;
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            bytes += MAP_ENTRY + STRING + entry.getKey().length() + sizeOf(entry.getValue());
+        }
+        return bytes;
+    }
+
+    private long sizeOf(Object value) {
+        if (value instanceof String string) return STRING + string.length();
+        if (value instanceof ScriptIntArray array) return counted.add(array) ? array.estimateBytes() : 0;
+        if (value instanceof ScriptCoordList coords) return counted.add(coords) ? coords.estimateBytes() : 0;
+        // Integers, and anything else small
+        return OBJECT;
+    }
+}
@@ -0,0 +1,11 @@
+package net.chris.mcscript.item.custom;
+
+import net.chris.mcscript.runtime.BlockWriteBuffer;
+
+// Everything a script does that can be seen from outside: its block writes, the mobs it spawns and
+// the messages it prints, reported in the order they happen
+public interface ScriptTrace extends BlockWriteBuffer.Listener {
+    void mobSpawned(String type, double x, double y, double z);
+
+    void printed(String message);
+}
@@ -0,0 +1,280 @@
+package net.chris.mcscript.item.custom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Checks a script before it runs and resolves its integer literals.
+// Mistakes are collected as diagnostics with their line and column, so a broken script is rejected
+// up front instead of failing statement by statement while it runs. Every integer literal is parsed
+// here once, which lets the interpreter tell literals from variables with a lookup.
+public class ScriptValidator {
+    private static final Pattern CALL_PATTERN = Pattern.compile("^([A-Za-z_][A-Za-z0-9_]*)\\s*\\((.*)\\)\\s*;?$");
+    private static final Pattern CALL_SITE_PATTERN = Pattern.compile("\\b([A-Za-z_][A-Za-z0-9_]*)\\s*\\(");
+    // Statements matched by prefix, in the same way executeStatement dispatches them
+    private static final String[] STATEMENTS = {
+            "Let", "Return", "parallel For", "For", "While", "wait(", "yield", "If", "Elif", "Else",
+            "placeBlock", "placeAll", "chiselRegion", "copy(", "paste(", "placeStructure(", "saveClipboard(",
+            "loadClipboard(", "push", "addCoord", "placeWall", "print", "spawn", "Func", "On "
+    };
+    // Smallest and largest argument counts of the built-in calls
+    private static final Map<String, int[]> BUILTIN_ARITY = Map.ofEntries(
+            Map.entry("placeBlock", new int[]{4, 4}),
+            Map.entry("placeWall", new int[]{4, 4}),
+            Map.entry("spawn", new int[]{4, 4}),
+            Map.entry("wait", new int[]{1, 1}),
+            Map.entry("push", new int[]{2, 2}),
+            Map.entry("addCoord", new int[]{4, 4}),
+            Map.entry("placeAll", new int[]{2, 2}),
+            Map.entry("chiselRegion", new int[]{6, 6}),
+            Map.entry("copy", new int[]{6, 6}),
+            Map.entry("paste", new int[]{3, 5}),
+            Map.entry("placeStructure", new int[]{4, 5}),
+            Map.entry("saveClipboard", new int[]{1, 1}),
+            Map.entry("loadClipboard", new int[]{1, 1}),
+            Map.entry("getBlock", new int[]{3, 3}),
+            Map.entry("isAir", new int[]{3, 3}),
+            Map.entry("heightAt", new int[]{2, 2}),
+            Map.entry("len", new int[]{1, 1})
+    );
+    // Longest literal that can still be an int, sign included
+    private static final int MAX_LITERAL_LENGTH = 11;
+
+    private final Map<String, ScriptFunction> functions;
+    private final List<ScriptDiagnostic> diagnostics = new ArrayList<>();
+    private final Map<String, Integer> literals = new HashMap<>();
+
+    public ScriptValidator(Map<String, ScriptFunction> functions) {
+        this.functions = functions;
+    }
+
+    // Checks every line of the source, including function and handler bodies
+    public List<ScriptDiagnostic> validate(String[] lines) {
+        Deque<int[]> openBraces = new ArrayDeque<>();
+        for (int i = 0; i < lines.length; i++) {
+            String raw = lines[i];
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("//")) continue;
+
+            int lineNumber = i + 1;
+            String masked = scanLine(lineNumber, raw, openBraces);
+            checkStatement(lineNumber, raw.indexOf(line.charAt(0)) + 1, line);
+            if (!line.startsWith("Func")) {
+                checkCalls(lineNumber, masked);
+            }
+        }
+        for (int[] brace : openBraces) {
+            error(brace[0], brace[1], "Unclosed '{'");
+        }
+
+        diagnostics.sort(Comparator.comparingInt(ScriptDiagnostic::line).thenComparingInt(ScriptDiagnostic::column));
+        return diagnostics;
+    }
+
+    // Integer literals of the source by their text, filled in by validate()
+    public Map<String, Integer> getLiterals() {
+        return literals;
+    }
+
+    // Parses an integer literal without throwing, returning null if the text isn't one or doesn't fit in an int
+    public static Integer parseLiteral(String text) {
+        int start = text.startsWith("-") ? 1 : 0;
+        int length = text.length();
+        if (start == length || length > MAX_LITERAL_LENGTH) return null;
+
+        long value = 0;
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return null;
+            value = value * 10 + (c - '0');
+        }
+        if (start == 1) value = -value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return null;
+        return (int) value;
+    }
+
+    // Checks strings, brackets and literals on one line and tracks braces across lines.
+    // Returns the line with the contents of its strings blanked out.
+    private String scanLine(int lineNumber, String raw, Deque<int[]> openBraces) {
+        StringBuilder masked = new StringBuilder(raw);
+        Deque<Integer> brackets = new ArrayDeque<>();
+        int quoteStart = -1;
+
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (quoteStart >= 0) {
+                if (c == '"') {
+                    quoteStart = -1;
+                } else {
+                    masked.setCharAt(i, ' ');
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"' -> quoteStart = i;
+                case '(', '[' -> brackets.push(i);
+                case ')', ']' -> {
+                    char expected = c == ')' ? '(' : '[';
+                    if (brackets.isEmpty()) {
+                        error(lineNumber, i + 1, "Unexpected '" + c + "'");
+                    } else if (raw.charAt(brackets.peek()) != expected) {
+                        error(lineNumber, i + 1, "Expected '" + closing(raw.charAt(brackets.peek())) + "' but found '" + c + "'");
+                        brackets.pop();
+                    } else {
+                        brackets.pop();
+                    }
+                }
+                case '{' -> openBraces.push(new int[]{lineNumber, i + 1});
+                case '}' -> {
+                    if (openBraces.isEmpty()) {
+                        error(lineNumber, i + 1, "Unexpected '}'");
+                    } else {
+                        openBraces.pop();
+                    }
+                }
+                default -> {
+                    if (Character.isLetter(c) || c == '_') {
+                        // Skip the rest of the identifier so digits in names like x1 aren't read as literals
+                        while (i + 1 < raw.length() && isIdentifierPart(raw.charAt(i + 1))) i++;
+                    } else if (c >= '0' && c <= '9') {
+                        i = readLiteral(lineNumber, raw, i) - 1;
+                    }
+                }
+            }
+        }
+
+        if (quoteStart >= 0) {
+            error(lineNumber, quoteStart + 1, "Unterminated string");
+        }
+        for (int open : brackets) {
+            error(lineNumber, open + 1, "Unclosed '" + raw.charAt(open) + "'");
+        }
+        return masked.toString();
+    }
+
+    // Records the literal starting at start, with its minus sign if it has one, and returns where it ends
+    private int readLiteral(int lineNumber, String raw, int start) {
+        int end = start;
+        while (end < raw.length() && Character.isDigit(raw.charAt(end))) end++;
+        String digits = raw.substring(start, end);
+
+        boolean negative = start > 0 && raw.charAt(start - 1) == '-';
+        Integer value = parseLiteral(digits);
+        Integer negated = negative ? parseLiteral("-" + digits) : null;
+        if (value != null) literals.put(digits, value);
+        if (negated != null) literals.put("-" + digits, negated);
+        if (value == null && negated == null) {
+            error(lineNumber, (negative ? start : start + 1), "Integer literal out of range: " + (negative ? "-" : "") + digits);
+        }
+        return end;
+    }
+
+    private void checkStatement(int lineNumber, int column, String line) {
+        if (line.startsWith("{") || line.startsWith("}")) return;
+
+        Matcher call = CALL_PATTERN.matcher(line);
+        boolean isCall = call.matches();
+        if (isCall && functions.containsKey(call.group(1))) return;
+
+        for (String statement : STATEMENTS) {
+            if (line.startsWith(statement)) {
+                checkStatementShape(lineNumber, column, statement, line);
+                return;
+            }
+        }
+
+        if (isCall) {
+            error(lineNumber, column, "Unknown function '" + call.group(1) + "'");
+        } else if (!line.contains("=")) {
+            error(lineNumber, column, "Unrecognized statement: " + line);
+        }
+    }
+
+    private void checkStatementShape(int lineNumber, int column, String statement, String line) {
+        switch (statement) {
+            case "Let" -> {
+                if (!line.contains("=")) error(lineNumber, column, "Expected '=' in Let");
+            }
+            case "For", "parallel For" -> {
+                int open = line.indexOf('(');
+                int close = line.indexOf(')');
+                if (open == -1 || close < open) {
+                    error(lineNumber, column, "Expected (variable upto end) or (variable in list) after For");
+                } else {
+                    String content = line.substring(open + 1, close);
+                    if (!content.contains("upto") && !content.contains(" in ")) {
+                        error(lineNumber, column + open + 1, "Expected 'upto' or 'in' in For");
+                    }
+                }
+            }
+            case "While", "If", "Elif" -> {
+                if (line.indexOf('(') == -1 || line.lastIndexOf(')') < line.indexOf('(')) {
+                    error(lineNumber, column, "Expected a condition in parentheses after " + statement);
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    // Checks the argument count of every call to a script function or built-in on the line
+    private void checkCalls(int lineNumber, String masked) {
+        Matcher site = CALL_SITE_PATTERN.matcher(masked);
+        while (site.find()) {
+            String name = site.group(1);
+            int[] arity;
+            ScriptFunction function = functions.get(name);
+            if (function != null) {
+                arity = new int[]{function.getParamCount(), function.getParamCount()};
+            } else {
+                arity = BUILTIN_ARITY.get(name);
+                if (arity == null) continue;
+            }
+
+            int count = countArguments(masked, site.end());
+            if (count >= 0 && (count < arity[0] || count > arity[1])) {
+                String expected = arity[0] == arity[1] ? String.valueOf(arity[0]) : arity[0] + " to " + arity[1];
+                error(lineNumber, site.start(1) + 1, name + " expects " + expected + " arguments but got " + count);
+            }
+        }
+    }
+
+    // Counts the arguments between the bracket before from and its match, or -1 if it is never closed
+    private static int countArguments(String masked, int from) {
+        int depth = 0;
+        int commas = 0;
+        boolean empty = true;
+        for (int i = from; i < masked.length(); i++) {
+            char c = masked.charAt(i);
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                if (depth == 0) return empty ? 0 : commas + 1;
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                commas++;
+            }
+            if (!Character.isWhitespace(c)) empty = false;
+        }
+        return -1;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static char closing(char open) {
+        return open == '(' ? ')' : ']';
+    }
+
+    private void error(int line, int column, String message) {
+        diagnostics.add(new ScriptDiagnostic(line, column, message));
+    }
+}
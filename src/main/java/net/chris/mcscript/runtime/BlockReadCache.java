@@ -0,0 +1,90 @@
+package net.chris.mcscript.runtime;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+// Block reads for one script, with pending writes from its own buffer layered on top.
+// Chunk sections are looked up once and then read directly, and the last section used is
+// remembered, so reads that stay in one area skip the chunk map entirely.
+// Section references are only trusted for one slice of execution, as chunks can unload between ticks.
+// Reads never load a chunk: a chunk that isn't loaded reads as air, with a height at the bottom of
+// the world, so a script reading far away coordinates can't stall the tick on chunk loading.
+public class BlockReadCache {
+    private final Level level;
+    private final BlockWriteBuffer pending;
+    private final Long2ObjectOpenHashMap<LevelChunkSection> sections = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<LevelChunk> chunks = new Long2ObjectOpenHashMap<>();
+    private long lastSectionKey = Long.MIN_VALUE;
+    private LevelChunkSection lastSection;
+
+    public BlockReadCache(Level level, BlockWriteBuffer pending) {
+        this.level = level;
+        this.pending = pending;
+    }
+
+    public BlockState getBlockState(int x, int y, int z) {
+        BlockState queued = pending.getPending(x, y, z);
+        if (queued != null) {
+            return queued;
+        }
+        if (level.isOutsideBuildHeight(y)) {
+            return Blocks.VOID_AIR.defaultBlockState();
+        }
+
+        long key = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        LevelChunkSection section = lastSection;
+        if (key != lastSectionKey) {
+            section = sections.get(key);
+            if (section == null) {
+                LevelChunk chunk = getChunk(x >> 4, z >> 4);
+                if (chunk == null) {
+                    return Blocks.AIR.defaultBlockState();
+                }
+                section = chunk.getSection(level.getSectionIndex(y));
+                sections.put(key, section);
+            }
+            lastSectionKey = key;
+            lastSection = section;
+        }
+        return section.getBlockState(x & 15, y & 15, z & 15);
+    }
+
+    // Y of the first air block above the highest non-air block in the column, counting pending writes
+    public int getHeight(int x, int z) {
+        LevelChunk chunk = getChunk(x >> 4, z >> 4);
+        int y = chunk != null ? chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x & 15, z & 15) + 1 : level.getMinBuildHeight();
+        y = Math.max(y, pending.getColumnTop(x, z) + 1);
+        while (y > level.getMinBuildHeight() && getBlockState(x, y - 1, z).isAir()) {
+            y--;
+        }
+        return y;
+    }
+
+    // Drops every cached reference, called before each slice of execution
+    public void clear() {
+        sections.clear();
+        chunks.clear();
+        lastSectionKey = Long.MIN_VALUE;
+        lastSection = null;
+    }
+
+    // The chunk if it is loaded, or null
+    private LevelChunk getChunk(int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        LevelChunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+            if (chunk != null) {
+                chunks.put(key, chunk);
+            }
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,413 @@
+package net.chris.mcscript.runtime;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.FallingBlock;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Block writes a script has made but that haven't reached the world yet.
+// Writes are grouped by chunk so a flush touches one chunk at a time, and can be
+// flushed a few at a time so a big build is spread over several ticks.
+// The newest pending state of each position is indexed so the script's own reads can see it.
+//
+// A flush is written as one batch: blocks are set without neighbor or shape updates. Afterwards
+// every written block is reshaped against its neighbors, so fences and stairs still connect, but
+// only the blocks on the edge of the batch notify the world around them. Light checks are left to the light engine, which already queues them and runs them
+// in bulk off the server thread. Clients get the usual block updates, which also make navigating
+// mobs repath, and ScriptClientSync resends chunks that changed too much for those to be worth it.
+//
+// A chunk is never loaded on the server thread for a write. The first write queued for a chunk
+// gets it a ticket, so the chunk loads or generates in the background, and its writes wait in
+// the buffer until it and its neighbors are fully loaded. The ticket goes once they are written.
+public class BlockWriteBuffer {
+    // Skip neighbor and shape updates, updateBatchEdges does those
+    private static final int BATCH_FLAGS = Block.UPDATE_CLIENTS | Block.UPDATE_KNOWN_SHAPE;
+    // FallingBlock waits this long after being placed before it checks for support
+    private static final int FALL_DELAY = 2;
+    // Keeps a chunk with queued writes loaded, along with the chunks around it for the edge updates
+    private static final TicketType<ChunkPos> PRELOAD_TICKET = TicketType.create("mcsl_preload", Comparator.comparingLong(ChunkPos::toLong));
+    private static final int TICKET_RADIUS = 1;
+
+    private final Map<Long, ChunkWrites> chunks = new LinkedHashMap<>();
+    private final Long2ObjectOpenHashMap<BlockState> latest = new Long2ObjectOpenHashMap<>();
+    // Highest pending Y per column, only ever raised until the buffer empties
+    private final Long2IntOpenHashMap columnTops = new Long2IntOpenHashMap();
+    // Positions written by the flush in progress
+    private final LongOpenHashSet batch = new LongOpenHashSet();
+    private int size;
+    // Writes ever queued, including ones already flushed
+    private long queued;
+    // Final state id of every position written while recording, null when not recording
+    private Long2IntOpenHashMap footprint;
+    // While held, flush() leaves everything queued
+    private boolean held;
+    // Chunks that got their first write since the last flush and don't have a ticket yet
+    private final LongArrayList unticketed = new LongArrayList();
+    // Chunks this buffer holds a ticket for, in ticketLevel
+    private final LongOpenHashSet ticketed = new LongOpenHashSet();
+    private ServerLevel ticketLevel;
+    // Told about every write as it is queued, null normally
+    private Listener listener;
+
+    public interface Listener {
+        void blockWritten(BlockPos pos, BlockState state);
+    }
+
+    public BlockWriteBuffer() {
+        columnTops.defaultReturnValue(Integer.MIN_VALUE);
+    }
+
+    public void add(BlockPos pos, BlockState state) {
+        add(pos.asLong(), pos.getX(), pos.getY(), pos.getZ(), state);
+    }
+
+    // Appends every write still queued in other after the writes already queued here
+    public void addAll(BlockWriteBuffer other) {
+        for (ChunkWrites writes : other.chunks.values()) {
+            for (int i = writes.next; i < writes.count; i++) {
+                long pos = writes.positions[i];
+                add(pos, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos), writes.states[i]);
+            }
+        }
+    }
+
+    private void add(long pos, int x, int y, int z, BlockState state) {
+        long chunk = ChunkPos.asLong(x >> 4, z >> 4);
+        ChunkWrites writes = chunks.get(chunk);
+        if (writes == null) {
+            writes = new ChunkWrites();
+            chunks.put(chunk, writes);
+            unticketed.add(chunk);
+        }
+        writes.add(pos, state);
+        latest.put(pos, state);
+        if (listener != null) {
+            listener.blockWritten(BlockPos.of(pos), state);
+        }
+        long column = ChunkPos.asLong(x, z);
+        if (y > columnTops.get(column)) {
+            columnTops.put(column, y);
+        }
+        size++;
+        queued++;
+
+        if (footprint != null) {
+            footprint.put(pos, Block.getId(state));
+            // Too big to be worth remembering, the run just behaves like one without a footprint
+            if (footprint.size() > ScriptFootprints.MAX_FOOTPRINT_BLOCKS) {
+                footprint = null;
+            }
+        }
+    }
+
+    // Starts remembering the last state written to each position
+    public void recordFootprint() {
+        footprint = new Long2IntOpenHashMap();
+    }
+
+    // Stops recording and returns what was written since recordFootprint(), or null if it got too big
+    public Long2IntOpenHashMap takeFootprint() {
+        Long2IntOpenHashMap taken = footprint;
+        footprint = null;
+        return taken;
+    }
+
+    public boolean isRecordingFootprint() {
+        return footprint != null;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Keeps writes out of the world until released, so they can be replaced by a smaller set
+    public void setHeld(boolean held) {
+        this.held = held;
+    }
+
+    // The state a pending write will leave at this position, or null if nothing is queued there
+    public BlockState getPending(int x, int y, int z) {
+        if (latest.isEmpty()) return null;
+        return latest.get(BlockPos.asLong(x, y, z));
+    }
+
+    // Highest Y with a pending write in the column, or Integer.MIN_VALUE if there is none
+    public int getColumnTop(int x, int z) {
+        if (columnTops.isEmpty()) return Integer.MIN_VALUE;
+        return columnTops.get(ChunkPos.asLong(x, z));
+    }
+
+    // Whether any write is still queued for the chunk
+    public boolean hasWritesInChunk(int chunkX, int chunkZ) {
+        return !chunks.isEmpty() && chunks.containsKey(ChunkPos.asLong(chunkX, chunkZ));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getQueuedTotal() {
+        return queued;
+    }
+
+    // Rough heap held by the queued writes and the footprint being recorded, for ScriptMemory
+    public long estimateBytes() {
+        return 40L * size + (footprint != null ? 16L * footprint.size() : 0);
+    }
+
+    // Chunks with writes still queued
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Writes up to maxWrites blocks in the order they were queued, chunk by chunk, skipping
+    // chunks that are still loading. Returns how many blocks were actually changed.
+    public int flush(Level level, int maxWrites) {
+        if (level instanceof ServerLevel serverLevel) {
+            requestTickets(serverLevel);
+        }
+        if (held) return 0;
+        ScriptMetrics metrics = ScriptMetrics.get();
+        int written = 0;
+        int placed = 0;
+
+        Iterator<Map.Entry<Long, ChunkWrites>> it = chunks.entrySet().iterator();
+        while (it.hasNext() && written < maxWrites) {
+            Map.Entry<Long, ChunkWrites> entry = it.next();
+            long chunk = entry.getKey();
+            if (!isLoaded(level, chunk)) continue;
+
+            ChunkWrites writes = entry.getValue();
+            while (writes.next < writes.count && written < maxWrites) {
+                long packed = writes.positions[writes.next];
+                BlockPos pos = BlockPos.of(packed);
+                BlockState state = writes.states[writes.next];
+                writes.states[writes.next] = null;
+                // A later write to the same spot stays visible until it is flushed too
+                if (latest.get(packed) == state) {
+                    latest.remove(packed);
+                }
+                writes.next++;
+                written++;
+
+                if (setBlock(level, pos, state)) {
+                    batch.add(packed);
+                    placed++;
+                    metrics.blockPlaced();
+                }
+            }
+            if (writes.next == writes.count) {
+                it.remove();
+                releaseTicket(chunk);
+            }
+        }
+        size -= written;
+        if (!batch.isEmpty()) {
+            updateBatchEdges(level);
+            batch.clear();
+        }
+        if (size == 0) {
+            latest.clear();
+            columnTops.clear();
+        }
+        return placed;
+    }
+
+    public void clear() {
+        chunks.clear();
+        latest.clear();
+        columnTops.clear();
+        size = 0;
+        unticketed.clear();
+        if (ticketLevel != null) {
+            for (LongIterator it = ticketed.iterator(); it.hasNext(); ) {
+                long chunk = it.nextLong();
+                ChunkPos pos = new ChunkPos(chunk);
+                ticketLevel.getChunkSource().removeRegionTicket(PRELOAD_TICKET, pos, TICKET_RADIUS, pos);
+            }
+        }
+        ticketed.clear();
+    }
+
+    // Starts loading every chunk that got writes since the last flush
+    private void requestTickets(ServerLevel level) {
+        if (unticketed.isEmpty()) return;
+        ticketLevel = level;
+        ServerChunkCache source = level.getChunkSource();
+        for (int i = 0; i < unticketed.size(); i++) {
+            long chunk = unticketed.getLong(i);
+            if (chunks.containsKey(chunk) && ticketed.add(chunk)) {
+                ChunkPos pos = new ChunkPos(chunk);
+                source.addRegionTicket(PRELOAD_TICKET, pos, TICKET_RADIUS, pos);
+            }
+        }
+        unticketed.clear();
+    }
+
+    private void releaseTicket(long chunk) {
+        if (ticketLevel != null && ticketed.remove(chunk)) {
+            ChunkPos pos = new ChunkPos(chunk);
+            ticketLevel.getChunkSource().removeRegionTicket(PRELOAD_TICKET, pos, TICKET_RADIUS, pos);
+        }
+    }
+
+    // Whether the chunk and its neighbors can be written and updated without loading anything
+    private static boolean isLoaded(Level level, long chunk) {
+        if (!(level instanceof ServerLevel serverLevel)) return true;
+        ServerChunkCache source = serverLevel.getChunkSource();
+        int chunkX = ChunkPos.getX(chunk);
+        int chunkZ = ChunkPos.getZ(chunk);
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dz = -1; dz <= 1; dz++) {
+                if (source.getChunkNow(chunkX + dx, chunkZ + dz) == null) return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean setBlock(Level level, BlockPos pos, BlockState state) {
+        boolean success = level.setBlock(pos, state, BATCH_FLAGS);
+
+        // Some blocks refuse to be replaced directly, so clear the spot first
+        if (!success) {
+            level.setBlock(pos, Blocks.AIR.defaultBlockState(), BATCH_FLAGS);
+            success = level.setBlock(pos, state, BATCH_FLAGS);
+        }
+        if (success && level instanceof ServerLevel serverLevel) {
+            ScriptClientSync.get().blockChanged(serverLevel, pos);
+        }
+        return success;
+    }
+
+    // Does the updates the batch skipped. Every written block reshapes against its neighbors
+    // without notifying them, and blocks outside get their usual shape and neighbor updates, but
+    // only across the batch's outside faces. Falling blocks check their support once the whole
+    // batch is in, so sand whose support was removed later in the batch still falls.
+    private void updateBatchEdges(Level level) {
+        BlockPos.MutableBlockPos neighbor = new BlockPos.MutableBlockPos();
+        for (LongIterator it = batch.iterator(); it.hasNext(); ) {
+            BlockPos pos = BlockPos.of(it.nextLong());
+            BlockState state = level.getBlockState(pos);
+
+            for (Direction direction : Direction.values()) {
+                neighbor.setWithOffset(pos, direction);
+                if (batch.contains(neighbor.asLong())) continue;
+
+                BlockPos outside = neighbor.immutable();
+                BlockState outsideState = level.getBlockState(outside);
+                BlockState reshaped = outsideState.updateShape(direction.getOpposite(), state, level, outside, pos);
+                if (reshaped != outsideState) {
+                    Block.updateOrDestroy(outsideState, reshaped, level, outside, Block.UPDATE_ALL);
+                }
+                level.neighborChanged(outside, state.getBlock(), pos);
+            }
+
+            BlockState reshaped = Block.updateFromNeighbourShapes(state, level, pos);
+            if (reshaped != state) {
+                setBlock(level, pos, reshaped);
+                state = reshaped;
+            }
+            if (state.getBlock() instanceof FallingBlock) {
+                level.scheduleTick(pos, state.getBlock(), FALL_DELAY);
+            }
+        }
+    }
+
+    // Binary layout: a palette of block states as NBT, then each chunk's pending
+    // positions with an index into the palette
+    public void write(DataOutput out) throws IOException {
+        Map<BlockState, Integer> palette = new IdentityHashMap<>();
+        List<BlockState> paletteStates = new ArrayList<>();
+        for (ChunkWrites writes : chunks.values()) {
+            for (int i = writes.next; i < writes.count; i++) {
+                if (palette.putIfAbsent(writes.states[i], paletteStates.size()) == null) {
+                    paletteStates.add(writes.states[i]);
+                }
+            }
+        }
+
+        out.writeInt(paletteStates.size());
+        for (BlockState state : paletteStates) {
+            NbtIo.write(NbtUtils.writeBlockState(state), out);
+        }
+
+        out.writeInt(chunks.size());
+        for (ChunkWrites writes : chunks.values()) {
+            out.writeInt(writes.count - writes.next);
+            for (int i = writes.next; i < writes.count; i++) {
+                out.writeLong(writes.positions[i]);
+                out.writeInt(palette.get(writes.states[i]));
+            }
+        }
+    }
+
+    public void read(DataInput in) throws IOException {
+        clear();
+        BlockState[] palette = new BlockState[in.readInt()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = NbtUtils.readBlockState(BuiltInRegistries.BLOCK.asLookup(), NbtIo.read(in));
+        }
+
+        int chunkCount = in.readInt();
+        for (int c = 0; c < chunkCount; c++) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long pos = in.readLong();
+                int index = in.readInt();
+                if (index < 0 || index >= palette.length) {
+                    throw new IOException("Bad block palette index " + index);
+                }
+                add(BlockPos.of(pos), palette[index]);
+            }
+        }
+    }
+
+    // Pending writes for one chunk, next is the first one not yet flushed
+    private static class ChunkWrites {
+        long[] positions = new long[16];
+        BlockState[] states = new BlockState[16];
+        int count;
+        int next;
+
+        void add(long pos, BlockState state) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+            }
+            positions[count] = pos;
+            states[count] = state;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package net.chris.mcscript.runtime;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.Util;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.world.level.block.Mirror;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraftforge.fml.loading.FMLPaths;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// A copied box of blocks, stored the way a chunk section stores its blocks: a palette of the
+// distinct states and one bit-packed palette index per block, so a build made of a handful of
+// materials takes a few bits per block. Clipboards never change once captured.
+public class Clipboard {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    public static final int MAX_VOLUME = 128 * 128 * 128;
+    private static final int FORMAT_VERSION = 1;
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final BlockState[] palette;
+    private final int bits;
+    private final long[] data;
+
+    private Clipboard(int sizeX, int sizeY, int sizeZ, BlockState[] palette, int bits, long[] data) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.palette = palette;
+        this.bits = bits;
+        this.data = data;
+    }
+
+    // Copies every block between the two corners, including queued writes seen by the reader
+    public static Clipboard capture(BlockReadCache reader, BlockPos from, BlockPos to) {
+        int minX = Math.min(from.getX(), to.getX());
+        int minY = Math.min(from.getY(), to.getY());
+        int minZ = Math.min(from.getZ(), to.getZ());
+        int sizeX = Math.abs(from.getX() - to.getX()) + 1;
+        int sizeY = Math.abs(from.getY() - to.getY()) + 1;
+        int sizeZ = Math.abs(from.getZ() - to.getZ()) + 1;
+        if ((long) sizeX * sizeY * sizeZ > MAX_VOLUME) {
+            throw new IllegalArgumentException("Region covers more than " + MAX_VOLUME + " blocks");
+        }
+
+        Map<BlockState, Integer> ids = new IdentityHashMap<>();
+        List<BlockState> palette = new ArrayList<>();
+        int[] indices = new int[sizeX * sizeY * sizeZ];
+        int i = 0;
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++) {
+                    BlockState state = reader.getBlockState(minX + x, minY + y, minZ + z);
+                    Integer id = ids.get(state);
+                    if (id == null) {
+                        id = palette.size();
+                        ids.put(state, id);
+                        palette.add(state);
+                    }
+                    indices[i++] = id;
+                }
+            }
+        }
+
+        int bits = bitsFor(palette.size());
+        return new Clipboard(sizeX, sizeY, sizeZ, palette.toArray(new BlockState[0]), bits, pack(indices, bits));
+    }
+
+    // Queues the clipboard's non-air blocks with its minimum corner at target.
+    // The copy is mirrored first and then rotated around target, as structure blocks do.
+    // Returns how many blocks were queued.
+    public int paste(BlockWriteBuffer writes, BlockPos target, Rotation rotation, Mirror mirror) {
+        // Transform each distinct state once rather than once per block
+        BlockState[] placed = new BlockState[palette.length];
+        for (int p = 0; p < palette.length; p++) {
+            placed[p] = palette[p].mirror(mirror).rotate(rotation);
+        }
+
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        int queued = 0;
+        int i = 0;
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++, i++) {
+                    BlockState state = placed[(int) ((data[i / valuesPerLong] >>> ((i % valuesPerLong) * bits)) & mask)];
+                    if (state.isAir()) continue;
+
+                    int mx = mirror == Mirror.FRONT_BACK ? -x : x;
+                    int mz = mirror == Mirror.LEFT_RIGHT ? -z : z;
+                    int dx;
+                    int dz;
+                    switch (rotation) {
+                        case CLOCKWISE_90 -> { dx = -mz; dz = mx; }
+                        case CLOCKWISE_180 -> { dx = -mx; dz = -mz; }
+                        case COUNTERCLOCKWISE_90 -> { dx = mz; dz = -mx; }
+                        default -> { dx = mx; dz = mz; }
+                    }
+                    writes.add(target.offset(dx, y, dz), state);
+                    queued++;
+                }
+            }
+        }
+        return queued;
+    }
+
+    public int getVolume() {
+        return sizeX * sizeY * sizeZ;
+    }
+
+    // Rough heap held by the clipboard, for ScriptMemory
+    public long estimateBytes() {
+        return 64 + 8L * data.length + 4L * palette.length;
+    }
+
+    public String describe() {
+        return sizeX + "x" + sizeY + "x" + sizeZ + ", " + palette.length + " block states";
+    }
+
+    // Binary layout: size, a palette of block states as NBT, then the packed indices
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(sizeX);
+        out.writeInt(sizeY);
+        out.writeInt(sizeZ);
+        out.writeInt(palette.length);
+        for (BlockState state : palette) {
+            NbtIo.write(NbtUtils.writeBlockState(state), out);
+        }
+        out.writeByte(bits);
+        out.writeInt(data.length);
+        for (long word : data) {
+            out.writeLong(word);
+        }
+    }
+
+    public static Clipboard read(DataInput in) throws IOException {
+        int sizeX = in.readInt();
+        int sizeY = in.readInt();
+        int sizeZ = in.readInt();
+        if (sizeX <= 0 || sizeY <= 0 || sizeZ <= 0 || (long) sizeX * sizeY * sizeZ > MAX_VOLUME) {
+            throw new IOException("Bad clipboard size " + sizeX + "x" + sizeY + "x" + sizeZ);
+        }
+
+        int paletteSize = in.readInt();
+        if (paletteSize <= 0 || paletteSize > sizeX * sizeY * sizeZ) {
+            throw new IOException("Bad clipboard palette size " + paletteSize);
+        }
+        BlockState[] palette = new BlockState[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = NbtUtils.readBlockState(BuiltInRegistries.BLOCK.asLookup(), NbtIo.read(in));
+        }
+
+        int bits = in.readByte();
+        int valuesPerLong = bits > 0 ? 64 / bits : 0;
+        int length = in.readInt();
+        if (bits != bitsFor(paletteSize) || length != (sizeX * sizeY * sizeZ + valuesPerLong - 1) / valuesPerLong) {
+            throw new IOException("Bad clipboard data layout");
+        }
+        long[] data = new long[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = in.readLong();
+        }
+
+        Clipboard clipboard = new Clipboard(sizeX, sizeY, sizeZ, palette, bits, data);
+        clipboard.checkIndices();
+        return clipboard;
+    }
+
+    public static boolean isValidName(String name) {
+        return NAME_PATTERN.matcher(name).matches();
+    }
+
+    // Writes the clipboard to <game dir>/mcscript/clipboards/<name>.mcclip on the IO pool
+    public void saveAsync(String name) {
+        Path file = file(name);
+        Util.ioPool().execute(() -> {
+            try {
+                Files.createDirectories(file.getParent());
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(Files.newOutputStream(file))))) {
+                    out.writeInt(FORMAT_VERSION);
+                    write(out);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not save MCSL clipboard {}: {}", file, e.getMessage());
+            }
+        });
+    }
+
+    public static Clipboard load(String name) throws IOException {
+        Path file = file(name);
+        if (!Files.exists(file)) {
+            throw new IOException("No saved clipboard named " + name);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported clipboard version " + version);
+            }
+            return read(in);
+        }
+    }
+
+    private static Path file(String name) {
+        return FMLPaths.GAMEDIR.get().resolve("mcscript").resolve("clipboards").resolve(name + ".mcclip");
+    }
+
+    private void checkIndices() throws IOException {
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        for (int i = 0; i < getVolume(); i++) {
+            if (((data[i / valuesPerLong] >>> ((i % valuesPerLong) * bits)) & mask) >= palette.length) {
+                throw new IOException("Bad clipboard palette index at " + i);
+            }
+        }
+    }
+
+    // Smallest number of bits that can hold every palette index
+    private static int bitsFor(int paletteSize) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+    }
+
+    // Packs the indices without letting one straddle two longs, like SimpleBitStorage
+    private static long[] pack(int[] indices, int bits) {
+        int valuesPerLong = 64 / bits;
+        long[] data = new long[(indices.length + valuesPerLong - 1) / valuesPerLong];
+        for (int i = 0; i < indices.length; i++) {
+            data[i / valuesPerLong] |= (long) indices[i] << ((i % valuesPerLong) * bits);
+        }
+        return data;
+    }
+}
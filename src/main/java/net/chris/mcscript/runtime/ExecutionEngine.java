@@ -0,0 +1,11 @@
+package net.chris.mcscript.runtime;
+
+// How new and running scripts are executed, set by the defaultEngine config entry
+public enum ExecutionEngine {
+    // Every line evaluated from its source text
+    INTERPRETER,
+    // Conditions and arithmetic quickened to type-specialized forms as they run
+    QUICKENED,
+    // Quickened, and hot loops compiled to bytecode once debug messages are off
+    COMPILED
+}
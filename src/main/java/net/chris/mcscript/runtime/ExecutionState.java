@@ -0,0 +1,11 @@
+package net.chris.mcscript.runtime;
+
+// Where a script stands after being given a slice of instructions
+public enum ExecutionState {
+    // Ran out of budget and wants to continue as soon as possible
+    RUNNING,
+    // Suspended by wait() or yield until a later tick
+    WAITING,
+    FINISHED,
+    ABORTED
+}
@@ -0,0 +1,97 @@
+package net.chris.mcscript.runtime;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.chris.mcscript.item.custom.MCScriptInterpreter;
+import net.minecraft.Util;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.Block;
+
+import java.util.concurrent.CompletableFuture;
+
+// Records the footprint of a script run and, when the same script was run at the same anchor
+// before, turns the run into an incremental rebuild. The rebuild holds every write back while
+// the script runs, compares the finished footprint with the previous one off the server thread,
+// and then queues only the positions that changed, clearing those the new run no longer writes.
+public class IncrementalBuild {
+    private final ScriptFootprints.Key key;
+    // Footprint of the last run here, null on a first run
+    private final Long2IntOpenHashMap previous;
+    private Long2IntOpenHashMap next;
+    private CompletableFuture<ScriptFootprints.Delta> delta;
+    private boolean done;
+
+    private IncrementalBuild(ScriptFootprints.Key key, Long2IntOpenHashMap previous) {
+        this.key = key;
+        this.previous = previous;
+    }
+
+    // Starts recording the interpreter's writes, holding them back if there is a footprint to compare with
+    public static IncrementalBuild start(String script, MCScriptInterpreter interpreter) {
+        ScriptFootprints.Key key = new ScriptFootprints.Key(script, interpreter.getLevel().dimension(),
+                interpreter.getOrigin().asLong());
+        Long2IntOpenHashMap previous = ScriptFootprints.get().find(key);
+        BlockWriteBuffer buffer = interpreter.getWriteBuffer();
+        buffer.recordFootprint();
+        buffer.setHeld(previous != null);
+        return new IncrementalBuild(key, previous);
+    }
+
+    public boolean isRebuild() {
+        return previous != null;
+    }
+
+    // Called by the scheduler once the script has stopped. Returns false while the difference
+    // is still being worked out, true once the writes that are left can be flushed as usual.
+    boolean complete(ScriptTask task, boolean aborted) {
+        if (done) return true;
+        BlockWriteBuffer buffer = task.getInterpreter().getWriteBuffer();
+
+        if (delta == null) {
+            next = buffer.takeFootprint();
+            if (aborted || next == null) {
+                // Without a whole footprint there is nothing to compare, so the run's own writes go out.
+                // A run that stopped before writing anything, like one rejected by the validator, left the last build alone.
+                if (next == null || !next.isEmpty()) {
+                    ScriptFootprints.get().invalidate(key);
+                }
+                buffer.setHeld(false);
+                done = true;
+                return true;
+            }
+            if (previous == null) {
+                ScriptFootprints.get().store(key, next);
+                done = true;
+                return true;
+            }
+            Long2IntOpenHashMap compared = next;
+            delta = CompletableFuture.supplyAsync(() -> ScriptFootprints.diff(previous, compared), Util.backgroundExecutor());
+            return false;
+        }
+        if (!delta.isDone()) return false;
+
+        ScriptFootprints.Delta result;
+        try {
+            result = delta.join();
+        } catch (RuntimeException e) {
+            task.sendMessage("Incremental rebuild failed, placing every block: " + e.getMessage());
+            ScriptFootprints.get().invalidate(key);
+            buffer.setHeld(false);
+            done = true;
+            return true;
+        }
+
+        // The held writes are replaced by the difference, queued in the same buffer so it flushes under the usual budget
+        buffer.clear();
+        long[] positions = result.positions();
+        int[] states = result.states();
+        for (int i = 0; i < positions.length; i++) {
+            buffer.add(BlockPos.of(positions[i]), Block.stateById(states[i]));
+        }
+        buffer.setHeld(false);
+        ScriptFootprints.get().store(key, next);
+        task.sendMessage("Incremental rebuild: " + result.changed() + " blocks changed, " + result.cleared()
+                + " cleared, " + (next.size() - result.changed()) + " unchanged");
+        done = true;
+        return true;
+    }
+}
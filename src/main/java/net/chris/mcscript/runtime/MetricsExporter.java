@@ -0,0 +1,54 @@
+package net.chris.mcscript.runtime;
+
+import com.mojang.logging.LogUtils;
+import net.chris.mcscript.Config;
+import net.minecraft.Util;
+import net.minecraftforge.fml.loading.FMLPaths;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Periodically appends a metrics snapshot to <game dir>/mcscript/metrics.csv or metrics.jsonl.
+// The snapshot is taken on the server thread but the file is written on the IO pool.
+public class MetricsExporter {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final int TICKS_PER_SECOND = 20;
+
+    private static int ticksSinceExport;
+
+    public static void tick() {
+        if (Config.metricsExportInterval <= 0) {
+            ticksSinceExport = 0;
+            return;
+        }
+
+        if (++ticksSinceExport < Config.metricsExportInterval * TICKS_PER_SECOND) {
+            return;
+        }
+        ticksSinceExport = 0;
+
+        ScriptMetrics.Snapshot snapshot = ScriptMetrics.get().snapshot();
+        boolean json = "json".equals(Config.metricsExportFormat);
+        Util.ioPool().execute(() -> write(snapshot, json));
+    }
+
+    private static void write(ScriptMetrics.Snapshot snapshot, boolean json) {
+        Path dir = FMLPaths.GAMEDIR.get().resolve("mcscript");
+        Path file = dir.resolve(json ? "metrics.jsonl" : "metrics.csv");
+        try {
+            Files.createDirectories(dir);
+            StringBuilder out = new StringBuilder();
+            if (!json && !Files.exists(file)) {
+                out.append(ScriptMetrics.Snapshot.CSV_HEADER).append("\n");
+            }
+            out.append(json ? snapshot.toJson() : snapshot.toCsvRow()).append("\n");
+            Files.writeString(file, out, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write MCSL metrics to {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.chris.mcscript.runtime;
+
+import net.chris.mcscript.item.custom.LoopProfile;
+
+// The script runtime's tunables, built by Config.onLoad whenever the config file is loaded or edited.
+// apply() only publishes the new settings; the scheduler picks them up at the start of its next tick
+// on the server thread, hands the engine and trace level to every queued script and trims the caches,
+// and the chat, client sync and inline caches read them as they go. So a change takes effect within
+// a tick, without a restart. Forge reloads configs on its file watcher thread, hence the volatile.
+public record RuntimeSettings(
+        // Budget shared by every script in one server tick
+        long instructionsPerTick, long tickNanos, int blockWritesPerTick,
+        // Instructions a task may run before the next ready task gets a turn
+        long sliceInstructions,
+        // Instructions one player's scripts may run per tick together, 0 for no limit
+        long playerInstructionsPerTick,
+        // Scripts one player may have queued at once, 0 for no limit
+        int maxScriptsPerPlayer,
+        // Heap one script execution may hold, in bytes, 0 for no limit
+        long memoryLimit,
+        // A player's chat allowance refills by chatLinesPerTick up to chatBurstLines
+        int chatLinesPerTick, int chatBurstLines,
+        // Footprints kept for incremental builds, and quickened sites kept per script
+        int footprintCacheSize, int inlineCacheSites,
+        // Changed blocks in one chunk from which a full chunk resend is cheaper than section updates
+        int chunkResendThreshold,
+        boolean debugMessages, ExecutionEngine engine,
+        // Iterations a loop runs in the interpreter before the compiled engine compiles it
+        int compileThreshold) {
+
+    public static final RuntimeSettings DEFAULTS = new RuntimeSettings(20_000, 5_000_000L, 4096, 500, 0, 0, 128L << 20,
+            1, 40, 32, 4096, 1024, false, ExecutionEngine.COMPILED, LoopProfile.COMPILE_THRESHOLD);
+
+    private static volatile RuntimeSettings current = DEFAULTS;
+
+    public static RuntimeSettings get() {
+        return current;
+    }
+
+    public static void apply(RuntimeSettings settings) {
+        current = settings;
+    }
+}
@@ -0,0 +1,88 @@
+package net.chris.mcscript.runtime;
+
+import net.chris.mcscript.Config;
+import net.chris.mcscript.item.custom.MCScriptInterpreter;
+import net.chris.mcscript.item.custom.ScriptEstimate;
+import net.chris.mcscript.item.custom.ScriptEstimator;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.Level;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Decides from a dry run whether a script may start. Scripts estimated over a Config limit are
+// refused, unless their owner has the bypass permission level; big ones that are allowed become
+// large builds, which the scheduler runs one at a time. The dry run stops after estimateMillis, so
+// a script can look small only because its estimate was cut short; the scheduler therefore holds
+// running scripts to the same limits with checkRunning and stops any that go over.
+public class ScriptAdmission {
+    public enum Decision {
+        ACCEPT, QUEUE, REJECT
+    }
+
+    public record Result(Decision decision, ScriptEstimate estimate, List<String> reasons) {
+    }
+
+    public static Result admit(Player player, Level level, String code) {
+        ScriptEstimate estimate = ScriptEstimator.estimate(player, level, code, limits(Config.estimateMillis * 1_000_000L));
+        return decide(estimate, player != null && player.hasPermissions(Config.admissionBypassLevel));
+    }
+
+    // The Config limits, with the given time limit for the dry run
+    public static ScriptEstimator.Limits limits(long nanos) {
+        return new ScriptEstimator.Limits(Config.maxScriptInstructions, Config.maxScriptBlocks, Config.maxScriptChunks,
+                Config.maxScriptEntities, nanos);
+    }
+
+    public static Result decide(ScriptEstimate estimate, boolean bypass) {
+        List<String> reasons = new ArrayList<>();
+        checkLimit(reasons, "instructions", estimate.instructions(), Config.maxScriptInstructions);
+        checkLimit(reasons, "blocks", estimate.blocks(), Config.maxScriptBlocks);
+        checkLimit(reasons, "chunks", estimate.chunks(), Config.maxScriptChunks);
+        checkLimit(reasons, "mobs", estimate.entities(), Config.maxScriptEntities);
+
+        Decision decision;
+        if (!reasons.isEmpty()) {
+            decision = bypass ? Decision.QUEUE : Decision.REJECT;
+        } else if (Config.largeScriptBlocks > 0 && estimate.blocks() > Config.largeScriptBlocks) {
+            decision = Decision.QUEUE;
+        } else {
+            decision = Decision.ACCEPT;
+        }
+        return new Result(decision, estimate, reasons);
+    }
+
+    // Which Config limit a running script has gone over, or null while it is within all of them.
+    // Chunks aren't checked, a running script's writes are spread over many flushes.
+    public static String checkRunning(MCScriptInterpreter interpreter) {
+        if (over(interpreter.getInstructionCount(), Config.maxScriptInstructions)) {
+            return "it ran more than " + Config.maxScriptInstructions + " instructions";
+        }
+        if (over(interpreter.getBlocksWritten(), Config.maxScriptBlocks)) {
+            return "it wrote more than " + Config.maxScriptBlocks + " blocks";
+        }
+        if (over(interpreter.getSpawnCount(), Config.maxScriptEntities)) {
+            return "it spawned more than " + Config.maxScriptEntities + " mobs";
+        }
+        return null;
+    }
+
+    private static boolean over(long value, int limit) {
+        return limit > 0 && value > limit;
+    }
+
+    // One line summary of an estimate, "at least" when the dry run was cut short
+    public static String describe(ScriptEstimate estimate) {
+        String prefix = estimate.complete() ? "" : "at least ";
+        return String.format(Locale.ROOT, "%s%d instructions, %d blocks in %d chunks, %d mobs (dry run %.1fms%s)",
+                prefix, estimate.instructions(), estimate.blocks(), estimate.chunks(), estimate.entities(),
+                estimate.nanos() / 1_000_000.0, estimate.complete() ? "" : ", stopped early");
+    }
+
+    private static void checkLimit(List<String> reasons, String what, long value, int limit) {
+        if (over(value, limit)) {
+            reasons.add(value + " " + what + " is over the limit of " + limit);
+        }
+    }
+}
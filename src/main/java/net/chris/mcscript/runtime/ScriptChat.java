@@ -0,0 +1,119 @@
+package net.chris.mcscript.runtime;
+
+import net.minecraft.network.chat.Component;
+import net.minecraft.world.entity.player.Player;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// Delivers script output to players, once per tick and under a per-player line rate.
+// Each script's waiting lines go out as one multi-line message. A player's scripts share one
+// allowance that refills by RuntimeSettings.chatLinesPerTick up to chatBurstLines, and output
+// that had to be dropped is summarised at most once a second.
+public class ScriptChat {
+    private static final ScriptChat INSTANCE = new ScriptChat();
+
+    private static final int SUMMARY_INTERVAL_TICKS = 20;
+    // Recent runs kept per player for /mcsl log
+    private static final int RECENT_RUNS = 8;
+
+    private final List<ScriptOutput> scheduled = new ArrayList<>();
+    // Lines each player may still receive; players missing from the map have a full allowance
+    private final Map<UUID, Integer> allowances = new HashMap<>();
+    private final Map<UUID, ArrayDeque<Run>> recentRuns = new HashMap<>();
+    private long tick;
+
+    public record Run(String scriptName, ScriptOutput output) {
+    }
+
+    public static ScriptChat get() {
+        return INSTANCE;
+    }
+
+    void schedule(ScriptOutput output) {
+        scheduled.add(output);
+    }
+
+    // Remembers a run so its output can be looked at with /mcsl log
+    public void track(UUID ownerId, String scriptName, ScriptOutput output) {
+        if (ownerId == null) return;
+        ArrayDeque<Run> runs = recentRuns.computeIfAbsent(ownerId, id -> new ArrayDeque<>());
+        if (runs.size() >= RECENT_RUNS) {
+            runs.pollLast();
+        }
+        runs.addFirst(new Run(scriptName, output));
+    }
+
+    // The player's most recent run of the named script, or their most recent run if name is null
+    public Run findRun(UUID ownerId, String scriptName) {
+        ArrayDeque<Run> runs = recentRuns.get(ownerId);
+        if (runs == null) return null;
+        for (Run run : runs) {
+            if (scriptName == null || run.scriptName().equalsIgnoreCase(scriptName)) {
+                return run;
+            }
+        }
+        return null;
+    }
+
+    // Called at the end of every server tick
+    public void flush() {
+        tick++;
+        RuntimeSettings settings = RuntimeSettings.get();
+        int linesPerTick = settings.chatLinesPerTick();
+        int burstLines = settings.chatBurstLines();
+        allowances.replaceAll((id, lines) -> lines + linesPerTick);
+        allowances.values().removeIf(lines -> lines >= burstLines);
+
+        Iterator<ScriptOutput> it = scheduled.iterator();
+        while (it.hasNext()) {
+            ScriptOutput output = it.next();
+            if (deliver(output, burstLines)) {
+                output.scheduled = false;
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        for (ScriptOutput output : scheduled) {
+            output.scheduled = false;
+        }
+        scheduled.clear();
+        allowances.clear();
+        recentRuns.clear();
+    }
+
+    // Sends what the player's allowance permits; returns true once nothing is left to send
+    private boolean deliver(ScriptOutput output, int burstLines) {
+        Player player = output.getRecipient();
+        if (player == null || player.isRemoved()) {
+            output.dropPending();
+            return true;
+        }
+
+        UUID id = player.getUUID();
+        int allowance = allowances.getOrDefault(id, burstLines);
+        if (allowance > 0 && output.hasPending()) {
+            List<String> lines = output.takePending(allowance);
+            player.sendSystemMessage(Component.literal(String.join("\n", lines)));
+            allowances.put(id, allowance - lines.size());
+        }
+
+        boolean summaryDue = tick - output.lastSummaryTick >= SUMMARY_INTERVAL_TICKS
+                || (output.isFinished() && !output.hasPending());
+        if (output.suppressed > 0 && summaryDue) {
+            player.sendSystemMessage(Component.literal(String.format(Locale.ROOT,
+                    "… %,d lines suppressed, see /mcsl log", output.suppressed)));
+            output.suppressed = 0;
+            output.lastSummaryTick = tick;
+        }
+        return !output.hasPending() && output.suppressed == 0;
+    }
+}
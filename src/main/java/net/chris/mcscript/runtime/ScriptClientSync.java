@@ -0,0 +1,69 @@
+package net.chris.mcscript.runtime;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Resends whole chunks that scripts changed heavily in one tick. Script writes go through the
+// usual client update, which already batches them into one section update per section per tick,
+// and also counts them here. A chunk with so many changes that the section updates would outweigh
+// the chunk itself is resent whole once the tick is over.
+public class ScriptClientSync {
+    private static final ScriptClientSync INSTANCE = new ScriptClientSync();
+
+    private final Map<ServerLevel, Long2IntOpenHashMap> levels = new IdentityHashMap<>();
+
+    public static ScriptClientSync get() {
+        return INSTANCE;
+    }
+
+    public void blockChanged(ServerLevel level, BlockPos pos) {
+        Long2IntOpenHashMap chunks = levels.get(level);
+        if (chunks == null) {
+            chunks = new Long2IntOpenHashMap();
+            levels.put(level, chunks);
+        }
+        chunks.addTo(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4), 1);
+    }
+
+    // Resends the chunks changed past RuntimeSettings.chunkResendThreshold, called at the end of each server tick
+    public void flush() {
+        if (levels.isEmpty()) return;
+
+        int threshold = RuntimeSettings.get().chunkResendThreshold();
+        for (Map.Entry<ServerLevel, Long2IntOpenHashMap> entry : levels.entrySet()) {
+            ServerLevel level = entry.getKey();
+            for (Long2IntMap.Entry chunk : entry.getValue().long2IntEntrySet()) {
+                if (chunk.getIntValue() >= threshold) {
+                    resend(level, new ChunkPos(chunk.getLongKey()));
+                }
+            }
+        }
+        levels.clear();
+    }
+
+    public void clear() {
+        levels.clear();
+    }
+
+    private void resend(ServerLevel level, ChunkPos pos) {
+        List<ServerPlayer> players = level.getChunkSource().chunkMap.getPlayers(pos, false);
+        if (players.isEmpty()) return;
+        LevelChunk chunk = level.getChunkSource().getChunkNow(pos.x, pos.z);
+        if (chunk == null) return;
+
+        ClientboundLevelChunkWithLightPacket packet = new ClientboundLevelChunkWithLightPacket(chunk, level.getLightEngine(), null, null);
+        for (ServerPlayer player : players) {
+            player.connection.send(packet);
+        }
+    }
+}
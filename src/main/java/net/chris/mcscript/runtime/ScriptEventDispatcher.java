@@ -0,0 +1,246 @@
+package net.chris.mcscript.runtime;
+
+import com.mojang.logging.LogUtils;
+import net.chris.mcscript.item.custom.MCScriptInterpreter;
+import net.chris.mcscript.item.custom.ScriptFunction;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.LivingEntity;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Routes game events to the On blocks scripts have registered.
+// Handlers are indexed by event type and then by filter key, so an event only costs a few
+// hash lookups however many scripts are listening. Matching handlers are queued on the
+// ScriptScheduler like any other script rather than run inside the event.
+public class ScriptEventDispatcher {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final ScriptEventDispatcher INSTANCE = new ScriptEventDispatcher();
+
+    // Runs of one handler that may be queued at once, so a busy event can't flood the scheduler
+    private static final int MAX_QUEUED_RUNS = 4;
+
+    private final Map<ScriptEventType, Map<String, List<ScriptHandler>>> index = new EnumMap<>(ScriptEventType.class);
+    private final Map<String, Registration> registrations = new LinkedHashMap<>();
+    private boolean dirty;
+
+    public static ScriptEventDispatcher get() {
+        return INSTANCE;
+    }
+
+    // The handlers one run of a script registered, and what's needed to run them again later
+    public record Registration(String scriptName, UUID ownerId, String source, ResourceKey<Level> dimension,
+                               BlockPos origin, Map<String, ScriptFunction> functions, List<ScriptHandler> handlers) {
+    }
+
+    // Registers the On blocks of a script that was just loaded, replacing whatever the same
+    // script registered for the same player before. Returns the number of handlers registered.
+    public int register(String scriptName, MCScriptInterpreter interpreter) {
+        return register(scriptName, interpreter.getOwnerId(), interpreter.getSource(),
+                interpreter.getLevel().dimension(), interpreter.getOrigin(), interpreter.getFunctions(), interpreter.getHandlers());
+    }
+
+    public int register(String scriptName, UUID ownerId, String source, ResourceKey<Level> dimension,
+                        BlockPos origin, Map<String, ScriptFunction> functions, List<ScriptHandler> handlers) {
+        String id = ownerId + "/" + scriptName;
+        remove(registrations.remove(id));
+        dirty = true;
+        if (handlers.isEmpty()) {
+            return 0;
+        }
+
+        Registration registration = new Registration(scriptName, ownerId, source, dimension, origin,
+                Map.copyOf(functions), List.copyOf(handlers));
+        registrations.put(id, registration);
+        for (ScriptHandler handler : registration.handlers()) {
+            handler.registration = registration;
+            index.computeIfAbsent(handler.getType(), type -> new HashMap<>())
+                    .computeIfAbsent(handler.getKey(), key -> new ArrayList<>())
+                    .add(handler);
+        }
+        return registration.handlers().size();
+    }
+
+    // Removes every registration made by scripts with the given name, returning how many were removed
+    public int unregister(String scriptName) {
+        List<String> ids = new ArrayList<>();
+        registrations.forEach((id, registration) -> {
+            if (registration.scriptName().equals(scriptName)) ids.add(id);
+        });
+        for (String id : ids) {
+            remove(registrations.remove(id));
+        }
+        dirty |= !ids.isEmpty();
+        return ids.size();
+    }
+
+    public Collection<Registration> getRegistrations() {
+        return registrations.values();
+    }
+
+    // Forgets every handler without touching the save, used when the server stops
+    public void clear() {
+        index.clear();
+        registrations.clear();
+        dirty = false;
+    }
+
+    private void remove(Registration registration) {
+        if (registration == null) return;
+        for (ScriptHandler handler : registration.handlers()) {
+            Map<String, List<ScriptHandler>> byKey = index.get(handler.getType());
+            List<ScriptHandler> handlers = byKey.get(handler.getKey());
+            handlers.remove(handler);
+            if (handlers.isEmpty()) {
+                byKey.remove(handler.getKey());
+                if (byKey.isEmpty()) index.remove(handler.getType());
+            }
+        }
+    }
+
+    public void onDamage(ServerLevel level, LivingEntity target, Player attacker, float amount) {
+        Map<String, List<ScriptHandler>> byKey = index.get(ScriptEventType.DAMAGE);
+        if (byKey == null) return;
+
+        String entity = idOf(BuiltInRegistries.ENTITY_TYPE.getKey(target.getType()));
+        String item = attacker != null ? idOf(BuiltInRegistries.ITEM.getKey(attacker.getMainHandItem().getItem())) : "";
+
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("entity", entity);
+        variables.put("item", item);
+        variables.put("attacker", attacker != null ? attacker.getName().getString() : "");
+        variables.put("amount", Math.round(amount));
+
+        BlockPos pos = target.blockPosition();
+        runAll(byKey.get(ScriptHandler.damageKey(entity, item)), level, pos, variables);
+        runAll(byKey.get(ScriptHandler.damageKey(entity, ScriptHandler.ANY)), level, pos, variables);
+        runAll(byKey.get(ScriptHandler.damageKey(ScriptHandler.ANY, item)), level, pos, variables);
+        runAll(byKey.get(ScriptHandler.damageKey(ScriptHandler.ANY, ScriptHandler.ANY)), level, pos, variables);
+    }
+
+    public void onBlockBreak(ServerLevel level, BlockPos pos, BlockState state, Player player) {
+        Map<String, List<ScriptHandler>> byKey = index.get(ScriptEventType.BLOCK_BREAK);
+        if (byKey == null) return;
+
+        String block = idOf(BuiltInRegistries.BLOCK.getKey(state.getBlock()));
+
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("block", block);
+        variables.put("breaker", player != null ? player.getName().getString() : "");
+        variables.put("item", player != null ? idOf(BuiltInRegistries.ITEM.getKey(player.getMainHandItem().getItem())) : "");
+
+        runAll(byKey.get(block), level, pos, variables);
+        runAll(byKey.get(ScriptHandler.ANY), level, pos, variables);
+    }
+
+    // Called once per server tick; tick handlers are grouped by period so only due groups are visited
+    public void tick(MinecraftServer server) {
+        Map<String, List<ScriptHandler>> byKey = index.get(ScriptEventType.TICK);
+        if (byKey == null) return;
+
+        int tick = server.getTickCount();
+        for (List<ScriptHandler> handlers : byKey.values()) {
+            if (tick % handlers.get(0).getPeriod() != 0) continue;
+
+            for (ScriptHandler handler : List.copyOf(handlers)) {
+                ServerLevel level = server.getLevel(handler.registration.dimension());
+                if (level != null) {
+                    run(handler, level, handler.registration.origin(), Map.of("tick", tick));
+                }
+            }
+        }
+    }
+
+    private void runAll(List<ScriptHandler> handlers, ServerLevel level, BlockPos pos, Map<String, Object> variables) {
+        if (handlers == null) return;
+        // A handler may re-run its own script and replace the list while we walk it
+        for (ScriptHandler handler : List.copyOf(handlers)) {
+            run(handler, level, pos, variables);
+        }
+    }
+
+    private void run(ScriptHandler handler, ServerLevel level, BlockPos origin, Map<String, Object> variables) {
+        if (handler.queuedRuns >= MAX_QUEUED_RUNS) return;
+
+        Registration registration = handler.registration;
+        // Handler runs count against their owner's script limit like any other script
+        if (ScriptScheduler.get().atScriptLimit(registration.ownerId())) return;
+        Player owner = registration.ownerId() != null ? level.getServer().getPlayerList().getPlayer(registration.ownerId()) : null;
+        MCScriptInterpreter interpreter = new MCScriptInterpreter(owner, level);
+        interpreter.loadHandler(registration.source(), registration.functions(), handler.getBody(), origin, variables);
+        if (registration.ownerId() != null) {
+            interpreter.setOwnerId(registration.ownerId());
+        }
+
+        ScriptTask task = new ScriptTask(registration.scriptName() + " (On " + handler.getType().getScriptName() + ")", interpreter, false);
+        handler.queuedRuns++;
+        task.onFinish = () -> handler.queuedRuns--;
+        ScriptScheduler.get().submit(task);
+    }
+
+    private static String idOf(ResourceLocation id) {
+        return ScriptHandler.normalize(id.toString());
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    // Registrations to keep in the world save; the handlers themselves are parsed again from the source
+    public List<CompoundTag> save() {
+        dirty = false;
+        List<CompoundTag> tags = new ArrayList<>();
+        for (Registration registration : registrations.values()) {
+            CompoundTag tag = new CompoundTag();
+            tag.putString("Name", registration.scriptName());
+            if (registration.ownerId() != null) {
+                tag.putUUID("Owner", registration.ownerId());
+            }
+            tag.putString("Source", registration.source());
+            tag.putString("Dimension", registration.dimension().location().toString());
+            tag.putLong("Origin", registration.origin().asLong());
+            tags.add(tag);
+        }
+        return tags;
+    }
+
+    public void restore(MinecraftServer server, List<CompoundTag> tags) {
+        int restored = 0;
+        for (CompoundTag tag : tags) {
+            String name = tag.getString("Name");
+            ResourceLocation location = ResourceLocation.tryParse(tag.getString("Dimension"));
+            ServerLevel level = location != null ? server.getLevel(ResourceKey.create(Registries.DIMENSION, location)) : null;
+            if (level == null) {
+                LOGGER.warn("Dropping MCSL handlers for {}: dimension {} no longer exists", name, tag.getString("Dimension"));
+                continue;
+            }
+
+            MCScriptInterpreter interpreter = new MCScriptInterpreter(null, level);
+            List<ScriptHandler> handlers = interpreter.readHandlers(tag.getString("Source"));
+            UUID owner = tag.hasUUID("Owner") ? tag.getUUID("Owner") : null;
+            restored += register(name, owner, tag.getString("Source"), level.dimension(), BlockPos.of(tag.getLong("Origin")),
+                    interpreter.getFunctions(), handlers);
+        }
+        dirty = false;
+        if (restored > 0) {
+            LOGGER.info("Restored {} MCSL event handlers from the last save", restored);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package net.chris.mcscript.runtime;
+
+// Game events a script can react to with an On block
+public enum ScriptEventType {
+    DAMAGE("damage"),
+    BLOCK_BREAK("blockBreak"),
+    TICK("tick");
+
+    private final String scriptName;
+
+    ScriptEventType(String scriptName) {
+        this.scriptName = scriptName;
+    }
+
+    // The name used after On in a script
+    public String getScriptName() {
+        return scriptName;
+    }
+
+    // Returns the event with the given script name, or null if there isn't one
+    public static ScriptEventType byName(String name) {
+        for (ScriptEventType type : values()) {
+            if (type.scriptName.equals(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,92 @@
+package net.chris.mcscript.runtime;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The blocks each script run left in the world, so running an edited script again at the same
+// spot only has to write what changed. A footprint maps every position the run wrote to the
+// id of the block state it ended up with. Footprints are only kept in memory, for the most
+// recently used anchors; how many is set by RuntimeSettings.footprintCacheSize.
+public class ScriptFootprints {
+    private static final ScriptFootprints INSTANCE = new ScriptFootprints();
+
+    // Runs that write more positions than this aren't remembered
+    public static final int MAX_FOOTPRINT_BLOCKS = 1 << 20;
+
+    // A script run at one anchor position, scripts are told apart by file name
+    public record Key(String script, ResourceKey<Level> dimension, long anchor) {
+    }
+
+    // Writes that turn one footprint into another, as parallel arrays of positions and state ids
+    public record Delta(long[] positions, int[] states, int changed, int cleared) {
+    }
+
+    private final Map<Key, Long2IntOpenHashMap> footprints = new LinkedHashMap<>(16, 0.75f, true);
+
+    public static ScriptFootprints get() {
+        return INSTANCE;
+    }
+
+    // Called from the server thread only
+    public Long2IntOpenHashMap find(Key key) {
+        return footprints.get(key);
+    }
+
+    public void store(Key key, Long2IntOpenHashMap footprint) {
+        footprints.put(key, footprint);
+        trim(RuntimeSettings.get().footprintCacheSize());
+    }
+
+    // Forgets the least recently used footprints until at most max are left
+    public void trim(int max) {
+        Iterator<Key> it = footprints.keySet().iterator();
+        while (footprints.size() > max && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public void invalidate(Key key) {
+        footprints.remove(key);
+    }
+
+    public void clear() {
+        footprints.clear();
+    }
+
+    // Positions whose state differs in next, then positions only in previous, which are set to air.
+    // Only reads its arguments, so it can run off the server thread once both are complete.
+    public static Delta diff(Long2IntOpenHashMap previous, Long2IntOpenHashMap next) {
+        LongArrayList positions = new LongArrayList();
+        IntArrayList states = new IntArrayList();
+        for (Long2IntMap.Entry entry : next.long2IntEntrySet()) {
+            long pos = entry.getLongKey();
+            int state = entry.getIntValue();
+            if (!previous.containsKey(pos) || previous.get(pos) != state) {
+                positions.add(pos);
+                states.add(state);
+            }
+        }
+        int changed = positions.size();
+
+        int air = Block.getId(Blocks.AIR.defaultBlockState());
+        for (Long2IntMap.Entry entry : previous.long2IntEntrySet()) {
+            long pos = entry.getLongKey();
+            if (!next.containsKey(pos) && entry.getIntValue() != air) {
+                positions.add(pos);
+                states.add(air);
+            }
+        }
+        return new Delta(positions.toLongArray(), states.toIntArray(), changed, positions.size() - changed);
+    }
+}
@@ -0,0 +1,107 @@
+package net.chris.mcscript.runtime;
+
+import java.util.Locale;
+import java.util.Map;
+
+// One On block from a script: the event it listens for, the filter it was declared with and its body.
+// The filter is folded into a single key so the dispatcher can find matching handlers with a hash lookup.
+public class ScriptHandler {
+    // Filter value that matches anything
+    public static final String ANY = "*";
+
+    private final ScriptEventType type;
+    private final String key;
+    private final int period;
+    private final String[] body;
+
+    // Set when the handler is registered
+    ScriptEventDispatcher.Registration registration;
+    // Runs of this handler waiting in or running on the scheduler
+    int queuedRuns;
+
+    private ScriptHandler(ScriptEventType type, String key, int period, String[] body) {
+        this.type = type;
+        this.key = key;
+        this.period = period;
+        this.body = body;
+    }
+
+    // Builds a handler from On event(name="value", ...), throwing IllegalArgumentException for bad filters
+    public static ScriptHandler create(String event, Map<String, String> filters, String[] body) {
+        ScriptEventType type = ScriptEventType.byName(event);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown event: " + event);
+        }
+
+        switch (type) {
+            case DAMAGE -> {
+                checkFilters(type, filters, "entity", "item");
+                return new ScriptHandler(type, damageKey(normalize(filters.get("entity")), normalize(filters.get("item"))), 0, body);
+            }
+            case BLOCK_BREAK -> {
+                checkFilters(type, filters, "block");
+                return new ScriptHandler(type, normalize(filters.get("block")), 0, body);
+            }
+            default -> {
+                checkFilters(type, filters, "every");
+                int period = 1;
+                if (filters.containsKey("every")) {
+                    try {
+                        period = Integer.parseInt(filters.get("every"));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("every must be a number of ticks");
+                    }
+                    if (period < 1) {
+                        throw new IllegalArgumentException("every must be at least 1 tick");
+                    }
+                }
+                return new ScriptHandler(type, String.valueOf(period), period, body);
+            }
+        }
+    }
+
+    public ScriptEventType getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    // How often a tick handler runs, in ticks
+    public int getPeriod() {
+        return period;
+    }
+
+    public String[] getBody() {
+        return body;
+    }
+
+    static String damageKey(String entity, String item) {
+        return entity + "|" + item;
+    }
+
+    // Accepts ids with or without the minecraft: namespace
+    static String normalize(String id) {
+        if (id == null || id.isEmpty()) {
+            return ANY;
+        }
+        id = id.toLowerCase(Locale.ROOT);
+        return id.startsWith("minecraft:") ? id.substring("minecraft:".length()) : id;
+    }
+
+    private static void checkFilters(ScriptEventType type, Map<String, String> filters, String... allowed) {
+        for (String name : filters.keySet()) {
+            boolean known = false;
+            for (String option : allowed) {
+                if (option.equals(name)) {
+                    known = true;
+                    break;
+                }
+            }
+            if (!known) {
+                throw new IllegalArgumentException("Unknown filter for On " + type.getScriptName() + ": " + name);
+            }
+        }
+    }
+}
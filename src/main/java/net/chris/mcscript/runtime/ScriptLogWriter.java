@@ -0,0 +1,254 @@
+package net.chris.mcscript.runtime;
+
+import com.mojang.logging.LogUtils;
+import net.minecraftforge.fml.loading.FMLPaths;
+import org.slf4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+// Writes each script execution's output to <game dir>/mcscript/logs/<time>_<script>_<run>.log.
+// The server thread only adds entries to a lock-free queue; one background thread owns every
+// open file and does all of the IO. When a run's log is closed, older logs are gzipped and the
+// oldest archives deleted.
+public class ScriptLogWriter {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final ScriptLogWriter INSTANCE = new ScriptLogWriter();
+
+    // Most recent logs left uncompressed
+    private static final int KEEP_UNCOMPRESSED = 10;
+    // Compressed logs kept before the oldest are deleted
+    private static final int KEEP_ARCHIVED = 200;
+    // How long closeAll waits for the queue to drain before giving up
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    private final AtomicLong nextRunId = new AtomicLong();
+    private volatile Thread thread;
+
+    // Writer thread only
+    private final Map<Long, BufferedWriter> open = new HashMap<>();
+    private final Map<Long, Path> openFiles = new HashMap<>();
+    private final SimpleDateFormat fileTime = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.ROOT);
+    private final SimpleDateFormat lineTime = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ROOT);
+
+    // done is only set on CLOSE_ALL, counted down once every file before it is written and closed
+    private record Entry(int kind, long runId, long time, String text, CountDownLatch done) {
+        Entry(int kind, long runId, long time, String text) {
+            this(kind, runId, time, text, null);
+        }
+
+        static final int OPEN = 0;
+        static final int LINE = 1;
+        static final int CLOSE = 2;
+        static final int CLOSE_ALL = 3;
+    }
+
+    public static ScriptLogWriter get() {
+        return INSTANCE;
+    }
+
+    // Starts a log for a run and returns its id
+    public long open(String scriptName, UUID ownerId) {
+        long runId = nextRunId.incrementAndGet();
+        String header = scriptName + " run by " + (ownerId != null ? ownerId : "nobody");
+        enqueue(new Entry(Entry.OPEN, runId, System.currentTimeMillis(), scriptName + "\n" + header));
+        return runId;
+    }
+
+    public void line(long runId, String text) {
+        enqueue(new Entry(Entry.LINE, runId, System.currentTimeMillis(), text));
+    }
+
+    // Writes the closing summary and closes the run's file
+    public void close(long runId, String summary) {
+        enqueue(new Entry(Entry.CLOSE, runId, System.currentTimeMillis(), summary));
+    }
+
+    // Closes every open log, used when the server stops. The writer is a daemon thread, so this
+    // waits for it to drain the queue; otherwise the JVM could exit with lines still buffered.
+    public void closeAll() {
+        if (thread == null) return;
+        CountDownLatch done = new CountDownLatch(1);
+        enqueue(new Entry(Entry.CLOSE_ALL, 0, System.currentTimeMillis(), null, done));
+        try {
+            if (!done.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("MCSL script logs did not finish writing within {}s", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        queue.add(entry);
+        if (thread == null) {
+            start();
+        }
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void start() {
+        if (thread != null) return;
+        Thread writer = new Thread(this::run, "MCSL-Log-Writer");
+        writer.setDaemon(true);
+        thread = writer;
+        writer.start();
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                flushOpen();
+                sleeping.set(true);
+                // Re-check after announcing the sleep so an entry added in between isn't missed
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                sleeping.set(false);
+                continue;
+            }
+
+            try {
+                switch (entry.kind()) {
+                    case Entry.OPEN -> openFile(entry);
+                    case Entry.LINE -> writeLine(entry.runId(), entry.time(), entry.text());
+                    case Entry.CLOSE -> {
+                        writeLine(entry.runId(), entry.time(), entry.text());
+                        closeFile(entry.runId());
+                        rotate();
+                    }
+                    case Entry.CLOSE_ALL -> closeAllFiles(entry);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not write MCSL script log: {}", e.getMessage());
+            } catch (RuntimeException e) {
+                // Keep the thread alive, nothing else would ever drain the queue
+                LOGGER.error("MCSL script log writer failed on an entry", e);
+            }
+        }
+    }
+
+    private static Path directory() {
+        return FMLPaths.GAMEDIR.get().resolve("mcscript").resolve("logs");
+    }
+
+    private void openFile(Entry entry) throws IOException {
+        int split = entry.text().indexOf('\n');
+        String scriptName = entry.text().substring(0, split).replaceAll("[^A-Za-z0-9_.-]", "_");
+        Path dir = directory();
+        Files.createDirectories(dir);
+        Path file = dir.resolve(fileTime.format(new Date(entry.time())) + "_" + scriptName + "_" + entry.runId() + ".log");
+        open.put(entry.runId(), Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+        openFiles.put(entry.runId(), file);
+        writeLine(entry.runId(), entry.time(), entry.text().substring(split + 1));
+    }
+
+    private void writeLine(long runId, long time, String text) throws IOException {
+        BufferedWriter writer = open.get(runId);
+        if (writer == null) return;
+        writer.write(lineTime.format(new Date(time)));
+        writer.write(' ');
+        writer.write(text);
+        writer.newLine();
+    }
+
+    private void closeFile(long runId) throws IOException {
+        BufferedWriter writer = open.remove(runId);
+        openFiles.remove(runId);
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void closeAllFiles(Entry entry) {
+        try {
+            for (Long runId : new ArrayList<>(open.keySet())) {
+                try {
+                    writeLine(runId, entry.time(), "Server stopped");
+                    closeFile(runId);
+                } catch (IOException e) {
+                    open.remove(runId);
+                    openFiles.remove(runId);
+                    LOGGER.warn("Could not close MCSL script log: {}", e.getMessage());
+                }
+            }
+        } finally {
+            entry.done().countDown();
+        }
+    }
+
+    private void flushOpen() {
+        for (BufferedWriter writer : open.values()) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                LOGGER.warn("Could not flush MCSL script log: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Compresses all but the newest plain logs and deletes the oldest archives
+    private void rotate() throws IOException {
+        Path dir = directory();
+        List<Path> plain = new ArrayList<>(list(dir, ".log"));
+        plain.removeAll(openFiles.values());
+        for (int i = 0; i < plain.size() - KEEP_UNCOMPRESSED; i++) {
+            Path file = plain.get(i);
+            Path archive = file.resolveSibling(file.getFileName() + ".gz");
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(archive))) {
+                in.transferTo(out);
+            }
+            Files.delete(file);
+        }
+
+        List<Path> archived = list(dir, ".log.gz");
+        for (int i = 0; i < archived.size() - KEEP_ARCHIVED; i++) {
+            Files.delete(archived.get(i));
+        }
+    }
+
+    // Files in dir with the suffix, oldest first
+    private static List<Path> list(Path dir, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(suffix))
+                    .sorted(Comparator.comparingLong(ScriptLogWriter::modifiedTime))
+                    .toList();
+        }
+    }
+
+    private static long modifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package net.chris.mcscript.runtime;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters for the MCSL runtime.
+// Counters are LongAdders so interpreter threads can bump them without contention;
+// the tick bookkeeping is only ever touched from the server thread.
+public class ScriptMetrics {
+    private static final ScriptMetrics INSTANCE = new ScriptMetrics();
+
+    // How many ticks to wait between instruction rate samples
+    private static final int RATE_SAMPLE_TICKS = 20;
+    // Smoothing factor for the average tick share
+    private static final double SHARE_SMOOTHING = 0.05;
+
+    private final LongAdder scriptsStarted = new LongAdder();
+    private final LongAdder scriptsCompleted = new LongAdder();
+    private final LongAdder scriptsAborted = new LongAdder();
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder blocksPlaced = new LongAdder();
+    private final LongAdder entitiesSpawned = new LongAdder();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // Tick accounting, server thread only
+    private boolean inTick;
+    private long tickStartNanos;
+    private long mcslNanosInTick;
+    private long mcslNanosOutsideTick;
+    private long blocksAtTickStart;
+    private int ticksSinceRateSample;
+    private long rateSampleNanos = System.nanoTime();
+    private long rateSampleInstructions;
+
+    private volatile double lastTickShare;
+    private volatile double averageTickShare;
+    private volatile long lastTickBlocks;
+    private volatile long peakTickBlocks;
+    private volatile double instructionsPerSecond;
+
+    public static ScriptMetrics get() {
+        return INSTANCE;
+    }
+
+    public void scriptStarted() {
+        scriptsStarted.increment();
+    }
+
+    // Called once a script has finished, successfully or not
+    public void scriptFinished(long elapsedNanos, boolean aborted) {
+        if (aborted) {
+            scriptsAborted.increment();
+        } else {
+            scriptsCompleted.increment();
+        }
+        latency.record(elapsedNanos);
+    }
+
+    // Called for every slice of interpreter work, so the tick share can be worked out
+    public void recordExecutionTime(long nanos) {
+        if (inTick) {
+            mcslNanosInTick += nanos;
+        } else {
+            mcslNanosOutsideTick += nanos;
+        }
+    }
+
+    public void recordInstructions(long count) {
+        instructions.add(count);
+    }
+
+    public void blockPlaced() {
+        blocksPlaced.increment();
+    }
+
+    public void entitySpawned() {
+        entitiesSpawned.increment();
+    }
+
+    public void queued() {
+        queueDepth.incrementAndGet();
+    }
+
+    public void dequeued() {
+        queueDepth.decrementAndGet();
+    }
+
+    public void beginTick() {
+        inTick = true;
+        tickStartNanos = System.nanoTime();
+    }
+
+    public void endTick() {
+        long now = System.nanoTime();
+        inTick = false;
+
+        // Scripts run from packet handlers land between ticks, so count them towards the tick they precede
+        long mcslNanos = mcslNanosInTick + mcslNanosOutsideTick;
+        long busyNanos = (now - tickStartNanos) + mcslNanosOutsideTick;
+        double share = busyNanos > 0 ? (double) mcslNanos / busyNanos : 0.0;
+        lastTickShare = share;
+        averageTickShare += (share - averageTickShare) * SHARE_SMOOTHING;
+        mcslNanosInTick = 0;
+        mcslNanosOutsideTick = 0;
+
+        long blocks = blocksPlaced.sum();
+        lastTickBlocks = blocks - blocksAtTickStart;
+        peakTickBlocks = Math.max(peakTickBlocks, lastTickBlocks);
+        blocksAtTickStart = blocks;
+
+        if (++ticksSinceRateSample >= RATE_SAMPLE_TICKS) {
+            long total = instructions.sum();
+            instructionsPerSecond = (total - rateSampleInstructions) * 1_000_000_000.0 / (now - rateSampleNanos);
+            rateSampleInstructions = total;
+            rateSampleNanos = now;
+            ticksSinceRateSample = 0;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(
+                System.currentTimeMillis(),
+                scriptsStarted.sum(),
+                scriptsCompleted.sum(),
+                scriptsAborted.sum(),
+                queueDepth.get(),
+                instructions.sum(),
+                instructionsPerSecond,
+                blocksPlaced.sum(),
+                lastTickBlocks,
+                peakTickBlocks,
+                entitiesSpawned.sum(),
+                latency.count(),
+                latency.percentile(50),
+                latency.percentile(90),
+                latency.percentile(99),
+                latency.max(),
+                lastTickShare,
+                averageTickShare
+        );
+    }
+
+    // Immutable copy of the metrics, latencies in nanoseconds and shares as fractions
+    public record Snapshot(long timestamp, long started, long completed, long aborted, int queueDepth,
+                           long instructions, double instructionsPerSecond,
+                           long blocksPlaced, long lastTickBlocks, long peakTickBlocks, long entitiesSpawned,
+                           long runs, long latencyP50, long latencyP90, long latencyP99, long latencyMax,
+                           double lastTickShare, double averageTickShare) {
+
+        public static final String CSV_HEADER = "timestamp,started,completed,aborted,queueDepth,instructions,"
+                + "instructionsPerSecond,blocksPlaced,lastTickBlocks,peakTickBlocks,entitiesSpawned,runs,"
+                + "latencyP50Nanos,latencyP90Nanos,latencyP99Nanos,latencyMaxNanos,lastTickShare,averageTickShare";
+
+        public String toCsvRow() {
+            return timestamp + "," + started + "," + completed + "," + aborted + "," + queueDepth + ","
+                    + instructions + "," + String.format(Locale.ROOT, "%.1f", instructionsPerSecond) + ","
+                    + blocksPlaced + "," + lastTickBlocks + "," + peakTickBlocks + "," + entitiesSpawned + ","
+                    + runs + "," + latencyP50 + "," + latencyP90 + "," + latencyP99 + "," + latencyMax + ","
+                    + String.format(Locale.ROOT, "%.5f", lastTickShare) + "," + String.format(Locale.ROOT, "%.5f", averageTickShare);
+        }
+
+        public String toJson() {
+            return "{\"timestamp\":" + timestamp
+                    + ",\"started\":" + started
+                    + ",\"completed\":" + completed
+                    + ",\"aborted\":" + aborted
+                    + ",\"queueDepth\":" + queueDepth
+                    + ",\"instructions\":" + instructions
+                    + ",\"instructionsPerSecond\":" + String.format(Locale.ROOT, "%.1f", instructionsPerSecond)
+                    + ",\"blocksPlaced\":" + blocksPlaced
+                    + ",\"lastTickBlocks\":" + lastTickBlocks
+                    + ",\"peakTickBlocks\":" + peakTickBlocks
+                    + ",\"entitiesSpawned\":" + entitiesSpawned
+                    + ",\"latencyNanos\":{\"count\":" + runs
+                    + ",\"p50\":" + latencyP50
+                    + ",\"p90\":" + latencyP90
+                    + ",\"p99\":" + latencyP99
+                    + ",\"max\":" + latencyMax + "}"
+                    + ",\"lastTickShare\":" + String.format(Locale.ROOT, "%.5f", lastTickShare)
+                    + ",\"averageTickShare\":" + String.format(Locale.ROOT, "%.5f", averageTickShare)
+                    + "}";
+        }
+    }
+}
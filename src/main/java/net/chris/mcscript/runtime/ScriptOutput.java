@@ -0,0 +1,146 @@
+package net.chris.mcscript.runtime;
+
+import net.minecraft.world.entity.player.Player;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// Chat output of one script execution.
+// Lines wait here until ScriptChat sends them at the end of the tick, and the most recent
+// ones are kept in a bounded log for /mcsl log. Once the backlog is full, new lines only go
+// to the log and are counted so the player can be told how many were suppressed.
+// Every line also goes to the run's log file, which is only created once there is output.
+public class ScriptOutput {
+    // Lines kept for /mcsl log
+    public static final int MAX_LOG_LINES = 1000;
+    // Unsent lines held back for the rate limit before new ones are suppressed
+    private static final int MAX_BACKLOG = 200;
+
+    private final String[] log = new String[MAX_LOG_LINES];
+    private int logStart;
+    private int logCount;
+    private long totalLines;
+
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private Player recipient;
+    // Set once the run is scheduled; the file itself is opened on the first line after that
+    private String logName;
+    private UUID logOwner;
+    private long logId = -1;
+    long suppressed;
+    long lastSummaryTick;
+    boolean scheduled;
+    boolean finished;
+
+    public ScriptOutput(Player recipient) {
+        this.recipient = recipient;
+    }
+
+    public void add(String line) {
+        append(line, false);
+    }
+
+    // Runtime notices such as completion are never suppressed
+    public void addNotice(String line) {
+        append(line, true);
+    }
+
+    private void append(String line, boolean notice) {
+        int slot = (logStart + logCount) % MAX_LOG_LINES;
+        log[slot] = line;
+        if (logCount < MAX_LOG_LINES) {
+            logCount++;
+        } else {
+            logStart = (logStart + 1) % MAX_LOG_LINES;
+        }
+        totalLines++;
+        if (logName != null) {
+            if (logId < 0) {
+                logId = ScriptLogWriter.get().open(logName, logOwner);
+            }
+            ScriptLogWriter.get().line(logId, line);
+        }
+
+        if (notice || pending.size() < MAX_BACKLOG) {
+            pending.addLast(line);
+        } else {
+            suppressed++;
+        }
+        if (!scheduled) {
+            scheduled = true;
+            ScriptChat.get().schedule(this);
+        }
+    }
+
+    // Names the run's log file, and writes out anything printed before the run was scheduled
+    public void startLog(String scriptName, UUID ownerId) {
+        if (logName != null) return;
+        logName = scriptName;
+        logOwner = ownerId;
+        if (logCount > 0) {
+            logId = ScriptLogWriter.get().open(logName, logOwner);
+            for (String line : tail(logCount)) {
+                ScriptLogWriter.get().line(logId, line);
+            }
+        }
+    }
+
+    // Called when the script leaves the scheduler, so a last summary can go out.
+    // The summary ends the run's log file.
+    public void finish(String summary) {
+        finished = true;
+        if (logId >= 0) {
+            ScriptLogWriter.get().close(logId, summary + ", " + totalLines + " lines of output");
+        }
+        if (!scheduled && suppressed > 0) {
+            scheduled = true;
+            ScriptChat.get().schedule(this);
+        }
+    }
+
+    public Player getRecipient() {
+        return recipient;
+    }
+
+    public void setRecipient(Player recipient) {
+        this.recipient = recipient;
+    }
+
+    // The last count lines of the log, oldest first
+    public List<String> tail(int count) {
+        int n = Math.min(count, logCount);
+        List<String> lines = new ArrayList<>(n);
+        for (int i = logCount - n; i < logCount; i++) {
+            lines.add(log[(logStart + i) % MAX_LOG_LINES]);
+        }
+        return lines;
+    }
+
+    public long getTotalLines() {
+        return totalLines;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    List<String> takePending(int max) {
+        List<String> lines = new ArrayList<>(Math.min(max, pending.size()));
+        while (lines.size() < max && !pending.isEmpty()) {
+            lines.add(pending.pollFirst());
+        }
+        return lines;
+    }
+
+    boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    // Lines that can't be delivered, for an owner who is offline
+    void dropPending() {
+        pending.clear();
+        suppressed = 0;
+    }
+}
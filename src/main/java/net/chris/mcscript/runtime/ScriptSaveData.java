@@ -0,0 +1,73 @@
+package net.chris.mcscript.runtime;
+
+import net.minecraft.core.HolderLookup;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.saveddata.SavedData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Checkpoints of every scheduled script and every registered event handler, kept in the
+// overworld's data folder as mcscript_scripts.dat. Nothing is copied into this object while
+// scripts run; the scheduler and dispatcher are asked for fresh state whenever the world is saved.
+public class ScriptSaveData extends SavedData {
+    private static final String DATA_NAME = "mcscript_scripts";
+
+    // Checkpoints and handler registrations read from disk that haven't been restored yet
+    private final List<CompoundTag> pending = new ArrayList<>();
+    private final List<CompoundTag> pendingHandlers = new ArrayList<>();
+
+    public static ScriptSaveData get(MinecraftServer server) {
+        return server.overworld().getDataStorage().computeIfAbsent(
+                new SavedData.Factory<>(ScriptSaveData::new, ScriptSaveData::load, null), DATA_NAME);
+    }
+
+    private static ScriptSaveData load(CompoundTag tag, HolderLookup.Provider registries) {
+        ScriptSaveData data = new ScriptSaveData();
+        ListTag scripts = tag.getList("Scripts", Tag.TAG_COMPOUND);
+        for (int i = 0; i < scripts.size(); i++) {
+            data.pending.add(scripts.getCompound(i));
+        }
+        ListTag handlers = tag.getList("Handlers", Tag.TAG_COMPOUND);
+        for (int i = 0; i < handlers.size(); i++) {
+            data.pendingHandlers.add(handlers.getCompound(i));
+        }
+        return data;
+    }
+
+    // Returns the checkpoints loaded from disk, only once
+    public List<CompoundTag> takePending() {
+        List<CompoundTag> taken = new ArrayList<>(pending);
+        pending.clear();
+        return taken;
+    }
+
+    public List<CompoundTag> takePendingHandlers() {
+        List<CompoundTag> taken = new ArrayList<>(pendingHandlers);
+        pendingHandlers.clear();
+        return taken;
+    }
+
+    @Override
+    public CompoundTag save(CompoundTag tag, HolderLookup.Provider registries) {
+        ListTag scripts = new ListTag();
+        scripts.addAll(pending);
+        scripts.addAll(ScriptScheduler.get().checkpoint());
+        tag.put("Scripts", scripts);
+
+        ListTag handlers = new ListTag();
+        handlers.addAll(pendingHandlers);
+        handlers.addAll(ScriptEventDispatcher.get().save());
+        tag.put("Handlers", handlers);
+        return tag;
+    }
+
+    // Running scripts change every tick, so there is always something new to save while any exist
+    @Override
+    public boolean isDirty() {
+        return super.isDirty() || ScriptScheduler.get().size() > 0 || ScriptEventDispatcher.get().isDirty();
+    }
+}
@@ -0,0 +1,360 @@
+package net.chris.mcscript.runtime;
+
+import com.mojang.logging.LogUtils;
+import net.chris.mcscript.item.custom.MCScriptInterpreter;
+import net.chris.mcscript.item.custom.ScriptCheckpoint;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+// Runs scripts a slice at a time on the server thread so a long script can't stall the tick.
+// Ready tasks take turns in round-robin order until the tick's instruction or time budget is
+// used up; tasks that called wait() sit in a queue ordered by the tick they wake up on.
+// Block writes are flushed from each script's buffer under a separate per-tick budget.
+// Large builds, as judged by ScriptAdmission, run one at a time; the rest wait in a queue of their own.
+// The budgets come from RuntimeSettings, which are re-read at the start of every tick so Config
+// changes apply straight away, including to scripts already running.
+public class ScriptScheduler {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final ScriptScheduler INSTANCE = new ScriptScheduler();
+
+    private final ArrayDeque<ScriptTask> ready = new ArrayDeque<>();
+    private final PriorityQueue<ScriptTask> waiting = new PriorityQueue<>(Comparator.comparingLong(task -> task.wakeTick));
+    // Large builds waiting for the one in progress to finish
+    private final ArrayDeque<ScriptTask> largeQueue = new ArrayDeque<>();
+    private int largeRunning;
+    private long currentTick;
+    private MinecraftServer server;
+    // The settings queued scripts were last given
+    private RuntimeSettings applied;
+    // Instructions each player's scripts ran this tick, for the per-player budget
+    private final Map<UUID, Long> playerInstructions = new HashMap<>();
+
+    public static ScriptScheduler get() {
+        return INSTANCE;
+    }
+
+    // Returns false if the task is a large build that has to wait for another one to finish
+    public boolean submit(ScriptTask task) {
+        return admit(task, 0);
+    }
+
+    private boolean admit(ScriptTask task, int wait) {
+        if (task.isLarge()) {
+            if (largeRunning > 0) {
+                largeQueue.addLast(task);
+                return false;
+            }
+            largeRunning++;
+        }
+        schedule(task, wait);
+        return true;
+    }
+
+    private void schedule(ScriptTask task, int wait) {
+        ScriptMetrics metrics = ScriptMetrics.get();
+        metrics.scriptStarted();
+        metrics.queued();
+        MCScriptInterpreter interpreter = task.getInterpreter();
+        interpreter.getOutput().startLog(task.getName(), interpreter.getOwnerId());
+        if (task.isAnnounced()) {
+            ScriptChat.get().track(interpreter.getOwnerId(), task.getName(), interpreter.getOutput());
+        }
+        if (wait > 0) {
+            task.wakeTick = currentTick + wait;
+            waiting.add(task);
+        } else {
+            ready.addLast(task);
+        }
+    }
+
+    public int size() {
+        return ready.size() + waiting.size() + largeQueue.size();
+    }
+
+    // Whether the player already has as many scripts queued as RuntimeSettings allows
+    public boolean atScriptLimit(UUID ownerId) {
+        int limit = RuntimeSettings.get().maxScriptsPerPlayer();
+        if (limit <= 0 || ownerId == null) return false;
+        int count = 0;
+        for (Collection<ScriptTask> tasks : List.of(ready, waiting, largeQueue)) {
+            for (ScriptTask task : tasks) {
+                if (ownerId.equals(task.getInterpreter().getOwnerId()) && ++count >= limit) return true;
+            }
+        }
+        return false;
+    }
+
+    // Called once per server tick
+    public void tick() {
+        currentTick++;
+        while (!waiting.isEmpty() && waiting.peek().wakeTick <= currentTick) {
+            ready.addLast(waiting.poll());
+        }
+
+        RuntimeSettings settings = RuntimeSettings.get();
+        if (settings != applied) {
+            reconfigure(settings);
+        }
+
+        ScriptMetrics metrics = ScriptMetrics.get();
+        long tickStart = System.nanoTime();
+        long instructionsLeft = settings.instructionsPerTick();
+        int writesLeft = settings.blockWritesPerTick();
+        long playerLimit = settings.playerInstructionsPerTick();
+        playerInstructions.clear();
+        // Tasks whose owner used up their share this tick, they go first next tick
+        List<ScriptTask> throttled = new ArrayList<>();
+
+        while (!ready.isEmpty() && instructionsLeft > 0 && writesLeft > 0
+                && System.nanoTime() - tickStart < settings.tickNanos()) {
+            ScriptTask task = ready.pollFirst();
+            MCScriptInterpreter interpreter = task.getInterpreter();
+            reattachOwner(interpreter);
+
+            long slice = Math.min(settings.sliceInstructions(), instructionsLeft);
+            UUID ownerId = interpreter.getOwnerId();
+            if (playerLimit > 0 && ownerId != null) {
+                long playerLeft = playerLimit - playerInstructions.getOrDefault(ownerId, 0L);
+                if (playerLeft <= 0) {
+                    // Blocks it already queued still go out under the write budget
+                    writesLeft -= flush(interpreter, writesLeft);
+                    throttled.add(task);
+                    continue;
+                }
+                slice = Math.min(slice, playerLeft);
+            }
+
+            long before = interpreter.getInstructionCount();
+            long sliceStart = System.nanoTime();
+            ExecutionState state;
+            try {
+                state = interpreter.resume(slice);
+            } catch (Exception e) {
+                task.sendMessage("Error executing script: " + e.getMessage());
+                state = ExecutionState.ABORTED;
+            }
+            if ((state == ExecutionState.RUNNING || state == ExecutionState.WAITING) && !task.isUnlimited()) {
+                String over = ScriptAdmission.checkRunning(interpreter);
+                if (over != null) {
+                    interpreter.abort("Error: Script stopped, " + over);
+                    state = ExecutionState.ABORTED;
+                }
+            }
+            int flushed = flush(interpreter, writesLeft);
+            writesLeft -= flushed;
+            long elapsed = System.nanoTime() - sliceStart;
+            task.cpuNanos += elapsed;
+            metrics.recordExecutionTime(elapsed);
+            long ran = interpreter.getInstructionCount() - before;
+            instructionsLeft -= ran;
+            if (playerLimit > 0 && ownerId != null) {
+                playerInstructions.merge(ownerId, ran, Long::sum);
+            }
+
+            switch (state) {
+                case RUNNING -> ready.addLast(task);
+                case WAITING -> {
+                    task.wakeTick = currentTick + interpreter.getWaitTicks();
+                    waiting.add(task);
+                }
+                case FINISHED, ABORTED -> {
+                    if (task.build != null && !task.build.complete(task, state == ExecutionState.ABORTED)) {
+                        // Check back next tick for the difference from the last run
+                        task.wakeTick = currentTick + 1;
+                        waiting.add(task);
+                    } else if (interpreter.getPendingWrites() > 0) {
+                        // A finished script stays queued until all of its blocks are in the world,
+                        // and waits for the next tick if they are all in chunks that are still loading
+                        if (flushed > 0) {
+                            ready.addLast(task);
+                        } else {
+                            task.wakeTick = currentTick + 1;
+                            waiting.add(task);
+                        }
+                    } else {
+                        finish(task, state == ExecutionState.ABORTED);
+                    }
+                }
+            }
+        }
+
+        for (int i = throttled.size() - 1; i >= 0; i--) {
+            ready.addFirst(throttled.get(i));
+        }
+
+        // Sleeping scripts can still have blocks left over from before they went to sleep
+        for (ScriptTask task : waiting) {
+            if (writesLeft <= 0) break;
+            if (task.getInterpreter().getPendingWrites() > 0) {
+                writesLeft -= flush(task.getInterpreter(), writesLeft);
+            }
+        }
+    }
+
+    // Gives every queued script the engine and trace level from new settings, and shrinks the
+    // footprint cache if it was made smaller. Runs on the server thread, at the start of a tick.
+    private void reconfigure(RuntimeSettings settings) {
+        if (applied != null) {
+            LOGGER.info("Applying MCSL runtime settings to {} queued scripts", size());
+        }
+        applied = settings;
+        for (Collection<ScriptTask> tasks : List.of(ready, waiting, largeQueue)) {
+            for (ScriptTask task : tasks) {
+                task.getInterpreter().configure(settings);
+            }
+        }
+        ScriptFootprints.get().trim(settings.footprintCacheSize());
+    }
+
+    // Drops every task, used when the server stops after its final save
+    public void clear() {
+        ScriptMetrics metrics = ScriptMetrics.get();
+        for (int i = ready.size() + waiting.size(); i > 0; i--) {
+            metrics.dequeued();
+        }
+        ready.clear();
+        waiting.clear();
+        largeQueue.clear();
+        largeRunning = 0;
+        server = null;
+    }
+
+    // Picks up scripts that were checkpointed when the server last saved
+    public void restore(MinecraftServer server) {
+        this.server = server;
+        ScriptSaveData data = ScriptSaveData.get(server);
+        int restored = 0;
+        for (CompoundTag tag : data.takePending()) {
+            String name = tag.getString("Name");
+            try {
+                byte[] state = tag.getByteArray("State");
+                String dimension = ScriptCheckpoint.readDimension(new DataInputStream(new ByteArrayInputStream(state)));
+                ResourceLocation location = ResourceLocation.tryParse(dimension);
+                ServerLevel level = location != null ? server.getLevel(ResourceKey.create(Registries.DIMENSION, location)) : null;
+                if (level == null) {
+                    LOGGER.warn("Dropping MCSL script {}: dimension {} no longer exists", name, dimension);
+                    continue;
+                }
+
+                MCScriptInterpreter interpreter = ScriptCheckpoint.read(
+                        new DataInputStream(new ByteArrayInputStream(state)), level, null);
+                reattachOwner(interpreter);
+
+                // Older saves have no Announce flag and only held announced scripts
+                boolean announce = !tag.contains("Announce") || tag.getBoolean("Announce");
+                ScriptTask task = new ScriptTask(name, interpreter, announce);
+                task.cpuNanos = tag.getLong("CpuNanos");
+                task.setLarge(tag.getBoolean("Large"));
+                task.setUnlimited(tag.getBoolean("Unlimited"));
+                admit(task, tag.getInt("Wait"));
+                restored++;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Could not restore MCSL script {}: {}", name, e.getMessage());
+            }
+        }
+        if (restored > 0) {
+            LOGGER.info("Resumed {} MCSL scripts from the last save", restored);
+        }
+    }
+
+    // Binary checkpoints of every queued script, written into the world save by ScriptSaveData
+    public List<CompoundTag> checkpoint() {
+        List<CompoundTag> tags = new ArrayList<>();
+        for (ScriptTask task : ready) {
+            addCheckpoint(tags, task, 0);
+        }
+        for (ScriptTask task : waiting) {
+            addCheckpoint(tags, task, (int) Math.max(0, task.wakeTick - currentTick));
+        }
+        for (ScriptTask task : largeQueue) {
+            addCheckpoint(tags, task, 0);
+        }
+        return tags;
+    }
+
+    private void addCheckpoint(List<CompoundTag> tags, ScriptTask task, int wait) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ScriptCheckpoint.write(task.getInterpreter(), out);
+            out.flush();
+
+            CompoundTag tag = new CompoundTag();
+            tag.putString("Name", task.getName());
+            tag.putInt("Wait", wait);
+            tag.putLong("CpuNanos", task.cpuNanos);
+            tag.putBoolean("Announce", task.isAnnounced());
+            tag.putBoolean("Large", task.isLarge());
+            tag.putBoolean("Unlimited", task.isUnlimited());
+            tag.putByteArray("State", bytes.toByteArray());
+            tags.add(tag);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not save MCSL script {}: {}", task.getName(), e.getMessage());
+        }
+    }
+
+    // Owners who logged out, or scripts restored from disk, get the player back when they are online
+    private void reattachOwner(MCScriptInterpreter interpreter) {
+        if (server == null || interpreter.getOwnerId() == null) return;
+        if (interpreter.getPlayer() == null || interpreter.getPlayer().isRemoved()) {
+            interpreter.attachPlayer(server.getPlayerList().getPlayer(interpreter.getOwnerId()));
+        }
+    }
+
+    private int flush(MCScriptInterpreter interpreter, int maxWrites) {
+        int before = interpreter.getPendingWrites();
+        interpreter.flushWrites(maxWrites);
+        return before - interpreter.getPendingWrites();
+    }
+
+    private void finish(ScriptTask task, boolean aborted) {
+        ScriptMetrics metrics = ScriptMetrics.get();
+        metrics.dequeued();
+        metrics.scriptFinished(System.nanoTime() - task.getSubmittedNanos(), aborted);
+        if (!aborted && task.isAnnounced()) {
+            task.sendMessage("Script execution completed.");
+        }
+        MCScriptInterpreter interpreter = task.getInterpreter();
+        interpreter.getOutput().finish(String.format(Locale.ROOT, "%s after %.1fms (%.1fms CPU), %d instructions, %d KB peak memory",
+                aborted ? "Aborted" : "Finished", (System.nanoTime() - task.getSubmittedNanos()) / 1_000_000.0,
+                task.getCpuNanos() / 1_000_000.0, interpreter.getInstructionCount(),
+                interpreter.getMemory().getPeak() / 1024));
+        if (task.onFinish != null) {
+            task.onFinish.run();
+        }
+        if (task.isLarge()) {
+            largeRunning--;
+            ScriptTask next = largeQueue.pollFirst();
+            if (next != null) {
+                largeRunning++;
+                schedule(next, 0);
+                next.sendMessage("Starting large build " + next.getName());
+            }
+        }
+        if (size() == 0 && server != null) {
+            // Make sure the last checkpoint doesn't bring the script back after a restart
+            ScriptSaveData.get(server).setDirty();
+        }
+    }
+}
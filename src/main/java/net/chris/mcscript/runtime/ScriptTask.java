@@ -0,0 +1,88 @@
+package net.chris.mcscript.runtime;
+
+import net.chris.mcscript.item.custom.MCScriptInterpreter;
+import net.minecraft.world.entity.player.Player;
+
+// A script that has been handed to the scheduler, along with its bookkeeping
+public class ScriptTask {
+    private final String name;
+    private final MCScriptInterpreter interpreter;
+    private final long submittedNanos;
+    // Whether the owner is told when the script completes; off for event handlers
+    private final boolean announce;
+
+    // Server tick the task may run again on, while it is waiting
+    long wakeTick;
+    // Time spent actually interpreting this task
+    long cpuNanos;
+    // Called once the task has left the scheduler, may be null
+    Runnable onFinish;
+    // Footprint recording for runs started from the item, may be null
+    IncrementalBuild build;
+    // Admitted as a large build, which only runs while no other large build does
+    private boolean large;
+    // Admitted over the Config limits by someone with the bypass level; every other script is
+    // stopped if it goes over them while it runs
+    private boolean unlimited;
+
+    public ScriptTask(String name, MCScriptInterpreter interpreter) {
+        this(name, interpreter, true);
+    }
+
+    public ScriptTask(String name, MCScriptInterpreter interpreter, boolean announce) {
+        this.name = name;
+        this.interpreter = interpreter;
+        this.announce = announce;
+        this.submittedNanos = System.nanoTime();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MCScriptInterpreter getInterpreter() {
+        return interpreter;
+    }
+
+    // The owner's player entity, or null while they are offline
+    public Player getPlayer() {
+        return interpreter.getPlayer();
+    }
+
+    public long getSubmittedNanos() {
+        return submittedNanos;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public void setIncrementalBuild(IncrementalBuild build) {
+        this.build = build;
+    }
+
+    public boolean isLarge() {
+        return large;
+    }
+
+    public void setLarge(boolean large) {
+        this.large = large;
+    }
+
+    public boolean isUnlimited() {
+        return unlimited;
+    }
+
+    public void setUnlimited(boolean unlimited) {
+        this.unlimited = unlimited;
+    }
+
+    public boolean isAnnounced() {
+        return announce;
+    }
+
+    // Goes out after whatever the script printed before it
+    public void sendMessage(String message) {
+        interpreter.getOutput().addNotice(message);
+    }
+}
@@ -0,0 +1,200 @@
+package net.chris.mcscript.runtime;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.chris.mcscript.MCScript;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.HolderGetter;
+import net.minecraft.core.Vec3i;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.IntTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Mirror;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.levelgen.structure.templatesystem.StructureTemplate;
+import net.minecraft.world.level.levelgen.structure.templatesystem.StructureTemplateManager;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Turns what a script builds into a vanilla structure template, the .nbt format structure blocks and
+// /place template use, and places templates from scripts. Templates are saved and looked up through the
+// server's StructureTemplateManager, so exports land in <world>/generated/mcscript/structure/ and vanilla
+// and datapack templates can be placed too. Placement queues the template's blocks in the script's write
+// buffer like paste() does, so it keeps to the per-tick budget and shows up in dry runs, but skips
+// interpreting the build one block at a time. Block entity contents and entities aren't placed.
+// A template's palette and block list are parsed once and kept per id, so placing it again only
+// rotates and queues.
+public class ScriptTemplates {
+    // Parsed templates kept, least recently placed are dropped first
+    private static final int MAX_PARSED = 32;
+
+    // Server thread only
+    private static final Map<ResourceLocation, Parsed> PARSED = new LinkedHashMap<>(16, 0.75f, true);
+
+    // A template built from a footprint, with its minimum corner relative to where the script ran
+    public record Export(CompoundTag tag, BlockPos corner, Vec3i size, int blocks) {
+    }
+
+    // A template's blocks as packed offsets from its minimum corner and indices into its unrotated
+    // palette. template is the instance it was parsed from, so a reload that replaces it is noticed.
+    public record Parsed(ResourceLocation id, StructureTemplate template, BlockState[] palette, long[] positions, int[] states) {
+    }
+
+    // Names are in the mcscript namespace unless they give one, e.g. "house" or "minecraft:igloo/top".
+    // Returns null for a name that isn't a valid resource location.
+    public static ResourceLocation id(String name) {
+        return name.contains(":") ? ResourceLocation.tryParse(name) : ResourceLocation.tryBuild(MCScript.MOD_ID, name);
+    }
+
+    // Builds a template from a footprint recorded by a BlockWriteBuffer, packed positions to Block.getId
+    // states. Air the script wrote is kept, so placing the template clears what the script cleared.
+    public static Export toTemplate(Long2IntOpenHashMap footprint, BlockPos origin) {
+        long[] positions = new long[footprint.size()];
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        int n = 0;
+        for (Long2IntMap.Entry entry : footprint.long2IntEntrySet()) {
+            long packed = entry.getLongKey();
+            positions[n++] = packed;
+            int x = BlockPos.getX(packed);
+            int y = BlockPos.getY(packed);
+            int z = BlockPos.getZ(packed);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        // Sorted so the same build always gives the same file
+        Arrays.sort(positions);
+
+        Int2IntOpenHashMap paletteIndex = new Int2IntOpenHashMap();
+        ListTag palette = new ListTag();
+        ListTag blocks = new ListTag();
+        for (long packed : positions) {
+            int stateId = footprint.get(packed);
+            int index = paletteIndex.getOrDefault(stateId, -1);
+            if (index < 0) {
+                index = palette.size();
+                paletteIndex.put(stateId, index);
+                palette.add(NbtUtils.writeBlockState(Block.stateById(stateId)));
+            }
+            CompoundTag block = new CompoundTag();
+            block.put("pos", intList(BlockPos.getX(packed) - minX, BlockPos.getY(packed) - minY, BlockPos.getZ(packed) - minZ));
+            block.putInt("state", index);
+            blocks.add(block);
+        }
+
+        Vec3i size = new Vec3i(maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1);
+        CompoundTag tag = new CompoundTag();
+        tag.put("size", intList(size.getX(), size.getY(), size.getZ()));
+        tag.put("palette", palette);
+        tag.put("blocks", blocks);
+        tag.put("entities", new ListTag());
+        return new Export(tag, new BlockPos(minX - origin.getX(), minY - origin.getY(), minZ - origin.getZ()),
+                size, positions.length);
+    }
+
+    // Saves the template as id, replacing any template of that name the server has loaded
+    public static void save(ServerLevel level, ResourceLocation id, CompoundTag tag) throws IOException {
+        StructureTemplateManager manager = level.getStructureManager();
+        StructureTemplate template = manager.getOrCreate(id);
+        template.load(BuiltInRegistries.BLOCK.asLookup(), tag);
+        PARSED.remove(id);
+        if (!manager.save(id)) {
+            throw new IOException("Could not write structure " + id);
+        }
+    }
+
+    // Looks the template up the way /place template does and returns it parsed, or null if there is none
+    public static Parsed find(ServerLevel level, ResourceLocation id) {
+        StructureTemplate template = level.getStructureManager().get(id).orElse(null);
+        if (template == null) return null;
+
+        Parsed parsed = PARSED.get(id);
+        if (parsed == null || parsed.template() != template) {
+            parsed = parse(id, template);
+            PARSED.put(id, parsed);
+            trim();
+        }
+        return parsed;
+    }
+
+    // Queues the template's blocks with its minimum corner at target, rotated around target the way
+    // structure blocks rotate. Returns how many blocks were queued.
+    public static int place(Parsed parsed, BlockWriteBuffer writes, BlockPos target, Rotation rotation) {
+        BlockState[] states = new BlockState[parsed.palette().length];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = parsed.palette()[i].rotate(rotation);
+        }
+
+        long[] positions = parsed.positions();
+        for (int i = 0; i < positions.length; i++) {
+            BlockPos offset = StructureTemplate.transform(BlockPos.of(positions[i]), Mirror.NONE, rotation, BlockPos.ZERO);
+            writes.add(target.offset(offset), states[parsed.states()[i]]);
+        }
+        return positions.length;
+    }
+
+    public static void clear() {
+        PARSED.clear();
+    }
+
+    // Reads the palette and block list out of the template's NBT, skipping malformed entries
+    private static Parsed parse(ResourceLocation id, StructureTemplate template) {
+        CompoundTag tag = template.save(new CompoundTag());
+        // Templates with several palettes, such as shipwrecks, use the first
+        ListTag palette = tag.contains("palettes", Tag.TAG_LIST)
+                ? tag.getList("palettes", Tag.TAG_LIST).getList(0)
+                : tag.getList("palette", Tag.TAG_COMPOUND);
+        HolderGetter<Block> blockLookup = BuiltInRegistries.BLOCK.asLookup();
+        BlockState[] states = new BlockState[palette.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = NbtUtils.readBlockState(blockLookup, palette.getCompound(i));
+        }
+
+        ListTag blocks = tag.getList("blocks", Tag.TAG_COMPOUND);
+        long[] positions = new long[blocks.size()];
+        int[] indices = new int[blocks.size()];
+        int n = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            CompoundTag block = blocks.getCompound(i);
+            ListTag pos = block.getList("pos", Tag.TAG_INT);
+            int state = block.getInt("state");
+            if (pos.size() != 3 || state < 0 || state >= states.length) continue;
+
+            positions[n] = BlockPos.asLong(pos.getInt(0), pos.getInt(1), pos.getInt(2));
+            indices[n++] = state;
+        }
+        return new Parsed(id, template, states, Arrays.copyOf(positions, n), Arrays.copyOf(indices, n));
+    }
+
+    private static void trim() {
+        Iterator<ResourceLocation> it = PARSED.keySet().iterator();
+        while (PARSED.size() > MAX_PARSED && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static ListTag intList(int... values) {
+        ListTag list = new ListTag();
+        for (int value : values) {
+            list.add(IntTag.valueOf(value));
+        }
+        return list;
+    }
+}